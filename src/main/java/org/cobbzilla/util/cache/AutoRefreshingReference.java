@@ -1,42 +1,286 @@
 package org.cobbzilla.util.cache;
 
+import com.fasterxml.jackson.databind.JavaType;
+import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.daemon.DaemonThreadFactory;
+import org.cobbzilla.util.json.JsonUtil;
 
+import java.io.File;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.now;
 
+/**
+ * Holds a value that is reloaded with refresh() once it is older than getTimeout().
+ *
+ * Reads are lock-free: the value and the time it was set are read together from one volatile field. Once a value
+ * has been loaded, readers never wait for a refresh. When the value goes stale, the first reader to notice submits
+ * the refresh to getRefreshExecutor() (by default, a scheduler shared by all references), and every reader keeps
+ * getting the stale value until the new one is set. Only the very first load (or the first one after a flush)
+ * makes readers wait.
+ *
+ * A stale value is served for at most getMaxStaleness() millis past its timeout. If refreshes keep failing beyond
+ * that, readers stop getting the old value: they wait on update(), and its failure is thrown to them.
+ *
+ * Optionally, the value can be persisted to a snapshot file (see getSnapshotFile), as JSON. When a reference starts
+ * out empty and a snapshot younger than getSnapshotMaxAge() exists, the first load reads the snapshot instead of
+ * calling refresh(). The snapshot value counts as stale, so it is served only until a refresh replaces it, and
+ * its age is counted from when the snapshot was written, so it is never served past getMaxStaleness() either.
+ */
+@Slf4j
 public abstract class AutoRefreshingReference<T> {
 
+    public static final long DEFAULT_SNAPSHOT_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+    public static final long DEFAULT_MAX_STALENESS = TimeUnit.HOURS.toMillis(1);
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    public static final int SCHEDULER_THREADS = 4;
+
+    private static class SharedScheduler {
+        static final ScheduledExecutorService instance = initScheduler();
+        private static ScheduledExecutorService initScheduler() {
+            final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(SCHEDULER_THREADS, DaemonThreadFactory.instance);
+            scheduler.setRemoveOnCancelPolicy(true);
+            return scheduler;
+        }
+    }
+
+    /**
+     * @return the scheduler shared by all references, for refreshes
+     */
+    public static ScheduledExecutorService sharedScheduler () { return SharedScheduler.instance; }
+
     @Getter private final AtomicReference<T> object = new AtomicReference<>();
     @Getter private final AtomicLong lastSet = new AtomicLong();
 
+    @AllArgsConstructor
+    private static class Snapshot<T> {
+        final T value;
+        final long time;
+    }
+
+    private volatile Snapshot<T> snapshot = null;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private final Object refreshLock = new Object();
+    private final Object setLock = new Object();
+    private final AtomicBoolean snapshotPending = new AtomicBoolean(false);
+    private volatile long lastSnapshotWrite = 0;
+
     public abstract T refresh();
     public abstract long getTimeout();
 
+    /**
+     * @return how many millis past getTimeout() a stale value may still be served while it is refreshed in the
+     * background (one hour by default)
+     */
+    public long getMaxStaleness () { return DEFAULT_MAX_STALENESS; }
+
+    // the age past which a value is not served
+    private long maxAge () {
+        final long timeout = getTimeout();
+        final long maxStaleness = getMaxStaleness();
+        return timeout > Long.MAX_VALUE - maxStaleness ? Long.MAX_VALUE : timeout + maxStaleness;
+    }
+
+    /**
+     * Override to run refreshes of stale values for this reference somewhere else
+     * @return the executor to refresh stale values on
+     */
+    protected Executor getRefreshExecutor () { return sharedScheduler(); }
+
+    /**
+     * @return the file to persist the value to, or null (the default) to not persist it
+     */
+    public File getSnapshotFile () { return null; }
+
+    /**
+     * @return snapshot files older than this many millis are ignored
+     */
+    public long getSnapshotMaxAge () { return DEFAULT_SNAPSHOT_MAX_AGE; }
+
+    /**
+     * @return the minimum number of millis between snapshot writes (one minute by default). Zero writes after
+     * every refresh.
+     */
+    public long getSnapshotInterval () { return DEFAULT_SNAPSHOT_INTERVAL; }
+
+    /**
+     * @return the type to read snapshots as. By default this is the type argument of the subclass's declaration.
+     * Override it if the subclass is itself generic.
+     */
+    protected JavaType getSnapshotType () {
+        Class<?> check = getClass();
+        while (!(check.getGenericSuperclass() instanceof ParameterizedType)) {
+            check = check.getSuperclass();
+            if (check.equals(Object.class)) return die("getSnapshotType: no type parameter found on "+getClass().getName());
+        }
+        final Type type = ((ParameterizedType) check.getGenericSuperclass()).getActualTypeArguments()[0];
+        if (!(type instanceof Class) && !(type instanceof ParameterizedType)) {
+            return die("getSnapshotType: cannot resolve type "+type+" for "+getClass().getName()+", override getSnapshotType");
+        }
+        return JsonUtil.FULL_MAPPER.getTypeFactory().constructType(type);
+    }
+
     public T get() {
-        synchronized (object) {
-            if (isEmpty() || now() - lastSet.get() > getTimeout()) update();
+        final Snapshot<T> current = snapshot;
+        if (current != null && current.value != null) {
+            final long age = now() - current.time;
+            if (age <= getTimeout()) return current.value;
+            if (age <= maxAge()) {
+                refreshStale();
+                return current.value;
+            }
+        }
+        // nothing to serve yet, or what we have is too old to serve: wait for a load
+        synchronized (refreshLock) {
+            final Snapshot<T> latest = snapshot;
+            if (latest == null || latest.value == null) {
+                if (!loadSnapshot()) update();
+            } else if (now() - latest.time > maxAge()) {
+                update();
+            }
             return object.get();
         }
     }
 
-    public boolean isEmpty() { synchronized (object) { return object.get() == null; } }
+    private void refreshStale() {
+        if (!refreshing.compareAndSet(false, true)) return; // someone else is already refreshing
+        try {
+            getRefreshExecutor().execute(staleRefresher);
+        } catch (RejectedExecutionException e) {
+            log.warn("refreshStale: refresh rejected, refreshing inline: "+e);
+            staleRefresher.run();
+        }
+    }
+
+    private final Runnable staleRefresher = new Runnable() {
+        @Override public void run() {
+            try {
+                // re-check: the value may have been refreshed between our read and the compareAndSet
+                final Snapshot<T> current = snapshot;
+                if (current == null || now() - current.time > getTimeout()) update();
+            } catch (Exception e) {
+                log.warn("refreshStale: error refreshing, keeping stale value for up to getMaxStaleness: "+e);
+            } finally {
+                refreshing.set(false);
+            }
+        }
+    };
+
+    public boolean isEmpty() {
+        final Snapshot<T> current = snapshot;
+        return current == null || current.value == null;
+    }
 
     public void update() {
-        synchronized (object) {
-            object.set(refresh());
-            lastSet.set(now());
+        synchronized (refreshLock) {
+            set(refresh());
         }
     }
 
     public void flush() { set(null); }
 
     public void set(T thing) {
-        synchronized (object) {
+        final long now = now();
+        // readers only look at snapshot; the lock keeps object and lastSet consistent with it
+        synchronized (setLock) {
             object.set(thing);
-            lastSet.set(now());
+            lastSet.set(now);
+            snapshot = new Snapshot<>(thing, now);
+        }
+        if (thing != null && getSnapshotFile() != null && now - lastSnapshotWrite >= getSnapshotInterval()) {
+            snapshotLater();
+        }
+    }
+
+    // snapshots are written on the refresh executor, so set() never waits on serialization or disk
+    private void snapshotLater () {
+        if (!snapshotPending.compareAndSet(false, true)) return;
+        try {
+            getRefreshExecutor().execute(snapshotWriter);
+        } catch (RejectedExecutionException e) {
+            log.warn("snapshotLater: snapshot rejected: "+e);
+            snapshotPending.set(false);
+        }
+    }
+
+    private final Runnable snapshotWriter = new Runnable() {
+        @Override public void run() {
+            try {
+                writeSnapshot();
+            } finally {
+                snapshotPending.set(false);
+            }
+        }
+    };
+
+    /**
+     * Write the value to the snapshot file now
+     * @return true if the snapshot was written
+     */
+    public boolean writeSnapshot () {
+        final Snapshot<T> current = snapshot;
+        final T thing = current == null ? null : current.value;
+        return thing != null && getSnapshotFile() != null && writeSnapshot(thing);
+    }
+
+    private boolean writeSnapshot (T thing) {
+        final File file = getSnapshotFile();
+        File temp = null;
+        try {
+            final File dir = file.getAbsoluteFile().getParentFile();
+            if (!dir.exists() && !dir.mkdirs()) return die("writeSnapshot: error creating directory: "+dir);
+            // write to a temp file and rename it, so a crash mid-write never leaves a truncated snapshot
+            temp = File.createTempFile(file.getName(), ".tmp", dir);
+            Files.write(temp.toPath(), JsonUtil.FULL_MAPPER.writeValueAsBytes(thing));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastSnapshotWrite = now();
+            return true;
+
+        } catch (Exception e) {
+            log.warn("writeSnapshot: error writing "+file+": "+e);
+            if (temp != null && temp.exists() && !temp.delete()) log.warn("writeSnapshot: error deleting "+temp);
+            return false;
+        }
+    }
+
+    private boolean loadSnapshot () {
+        final File file = getSnapshotFile();
+        if (file == null || !file.exists()) return false;
+        final long age = System.currentTimeMillis() - file.lastModified();
+        if (age > getSnapshotMaxAge() || age > maxAge()) {
+            log.info("loadSnapshot: ignoring snapshot that is "+age+"ms old: "+file);
+            return false;
+        }
+        try {
+            final T thing = JsonUtil.FULL_MAPPER.readValue(file, getSnapshotType());
+            if (thing == null) return false;
+            // stamped with when it was written, but no later than the timeout allows: it is stale, so the next read
+            // triggers a refresh, and it is not served past maxAge. don't clobber a refresh that completed while we
+            // were reading the file.
+            final long now = now();
+            final long time = Math.min(now - age, now - getTimeout() - 1);
+            synchronized (setLock) {
+                if (snapshot != null) return !isEmpty();
+                snapshot = new Snapshot<>(thing, time);
+                object.set(thing);
+                lastSet.set(time);
+            }
+            log.info("loadSnapshot: loaded stale value from "+file);
+            return true;
+
+        } catch (Exception e) {
+            log.warn("loadSnapshot: error reading "+file+": "+e);
+            return false;
         }
     }
 
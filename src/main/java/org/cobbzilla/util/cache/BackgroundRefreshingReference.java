@@ -1,51 +1,134 @@
 package org.cobbzilla.util.cache;
 
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.cobbzilla.util.system.Sleep;
+import org.cobbzilla.util.time.LatencyHistogram;
 
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static org.cobbzilla.util.daemon.ZillaRuntime.realNow;
+
+/**
+ * An AutoRefreshingReference whose refreshes run in the background, on a scheduler shared by all instances.
+ * Readers always get the current value, even while it is being refreshed.
+ *
+ * After a failed refresh, the next attempt is delayed with exponential backoff (2s, 4s, ... up to about a minute).
+ * If getRefreshAhead() is positive, each successful refresh schedules the next one getRefreshAhead() millis before
+ * the value would expire, so the value stays fresh even when nobody reads it. Call cancel() to stop that.
+ */
 @Slf4j
 public abstract class BackgroundRefreshingReference<T> extends AutoRefreshingReference<T> {
 
+    public static final int MAX_BACKOFF_EXPONENT = 6;
+
     private final AtomicBoolean updateInProgress = new AtomicBoolean(false);
     private final Refresher refresher = new Refresher();
     private final AtomicInteger errorCount = new AtomicInteger(0);
+    // only the refresh-ahead task of the current generation runs, so there is never more than one chain of them
+    private final AtomicLong aheadGeneration = new AtomicLong();
+    private volatile ScheduledFuture<?> scheduledAhead;
+    private volatile boolean cancelled = false;
+
+    @Getter private final LatencyHistogram refreshLatency = new LatencyHistogram();
+    @Getter private final AtomicLong refreshCount = new AtomicLong();
+    @Getter private final AtomicLong refreshErrors = new AtomicLong();
+    @Getter private volatile Exception lastError;
 
     public boolean initialize () { return true; }
 
+    /**
+     * @return how many millis before the value expires to refresh it proactively. Zero (the default) means only
+     * refresh when a reader finds the value stale.
+     */
+    public long getRefreshAhead () { return 0; }
+
+    /**
+     * Override to run refreshes for this reference on a different scheduler
+     * @return the scheduler to run refreshes on
+     */
+    protected ScheduledExecutorService getScheduler () { return sharedScheduler(); }
+
+    @Override protected Executor getRefreshExecutor () { return getScheduler(); }
+
     public BackgroundRefreshingReference() {
         if (initialize()) update();
     }
 
+    public int getConsecutiveErrors () { return errorCount.get(); }
+
     @Override public void update() {
-        synchronized (updateInProgress) {
-            if (updateInProgress.get()) return;
-            updateInProgress.set(true);
-            new Thread(refresher).start();
+        if (!updateInProgress.compareAndSet(false, true)) return;
+        aheadGeneration.incrementAndGet(); // we're refreshing now, the pending refresh-ahead is moot
+        schedule(backoff());
+    }
+
+    /**
+     * Stop any proactive refresh. The reference keeps working, and later reads of a stale value still refresh it.
+     */
+    public void cancel () {
+        cancelled = true;
+        aheadGeneration.incrementAndGet();
+        final ScheduledFuture<?> ahead = scheduledAhead;
+        if (ahead != null) ahead.cancel(false);
+    }
+
+    private long backoff () {
+        final int errCount = errorCount.get();
+        return errCount == 0 ? 0 : TimeUnit.SECONDS.toMillis(1) * (long) Math.pow(2, Math.min(errCount, MAX_BACKOFF_EXPONENT));
+    }
+
+    private void schedule (long delay) {
+        try {
+            getScheduler().schedule(refresher, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.warn("schedule: refresh rejected: "+e);
+            updateInProgress.set(false);
+        }
+    }
+
+    private void scheduleAhead () {
+        final long refreshAhead = getRefreshAhead();
+        if (cancelled || refreshAhead <= 0) return;
+        final long delay = Math.max(getTimeout() - refreshAhead, 0);
+        final long generation = aheadGeneration.incrementAndGet();
+        try {
+            scheduledAhead = getScheduler().schedule(new Runnable() {
+                @Override public void run() {
+                    if (!cancelled && aheadGeneration.get() == generation) update();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.warn("scheduleAhead: refresh rejected: "+e);
         }
     }
 
     private class Refresher implements Runnable {
         @Override public void run() {
+            final long start = realNow();
+            boolean ok = false;
             try {
-                int errCount = errorCount.get();
-                if (errCount > 0) {
-                    Sleep.sleep(TimeUnit.SECONDS.toMillis(1) * (long) Math.pow(2, Math.min(errCount, 6)));
-                }
                 set(refresh());
+                refreshLatency.record(realNow() - start);
+                refreshCount.incrementAndGet();
                 errorCount.set(0);
+                ok = true;
 
             } catch (Exception e) {
                 log.warn("error refreshing: "+e);
+                lastError = e;
+                refreshErrors.incrementAndGet();
                 errorCount.incrementAndGet();
 
             } finally {
-                synchronized (updateInProgress) {
-                    updateInProgress.set(false);
-                }
+                updateInProgress.set(false);
+            }
+            if (ok) {
+                scheduleAhead();
+            } else if (getRefreshAhead() > 0 && !cancelled) {
+                update(); // keep trying in the background, with backoff
             }
         }
     }
@@ -0,0 +1,500 @@
+package org.cobbzilla.util.cache;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.daemon.DaemonThreadFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+
+/**
+ * A keyed cache bounded by entry count or by total weight, for use where an unbounded ConcurrentHashMap would
+ * otherwise grow forever.
+ *
+ * Eviction is segmented LRU: new entries go into a probation segment, and entries that are read again are promoted
+ * to a protected segment (by default 80% of the capacity). The victim is the least recently used entry in
+ * probation, so a burst of one-off keys cannot flush out the entries that are used repeatedly.
+ *
+ * Lookups are lock-free. Reordering the segments on a hit takes a lock, but it is skipped under contention:
+ * the recency order becomes approximate, and readers never wait.
+ *
+ * Entries can expire a fixed time after they were written (expireAfterWrite, or a TTL per put). With a loader and
+ * refreshAfterWrite, an entry read after refreshAfterWrite is reloaded in the background while the old value is
+ * still served, in the same way as BackgroundRefreshingReference. Concurrent misses for the same key share a
+ * single load.
+ *
+ * With an offHeapTier, entries evicted for size are serialized into an OffHeapCache instead of being dropped, and
+ * a miss here that finds the key there moves the entry back onto the heap, with the TTL it had left.
+ *
+ * @param <K> key class
+ * @param <V> value class
+ */
+@NoArgsConstructor @Accessors(chain=true) @Slf4j
+public class BoundedCache<K, V> {
+
+    public static final long DEFAULT_MAX_SIZE = 10000;
+    public static final double DEFAULT_PROTECTED_RATIO = 0.8;
+    public static final int REFRESH_THREADS = 4;
+
+    public interface Loader<K, V> { V load(K key) throws Exception; }
+
+    public interface Weigher<K, V> { long weigh(K key, V value); }
+
+    private static class SharedRefreshPool {
+        static final ExecutorService instance = DaemonThreadFactory.fixedPool(REFRESH_THREADS);
+    }
+
+    @Getter @Setter private long maxSize = DEFAULT_MAX_SIZE;   // in units of weight: the number of entries, unless there is a weigher
+    @Getter @Setter private Weigher<K, V> weigher;
+    @Getter @Setter private double protectedRatio = DEFAULT_PROTECTED_RATIO;
+    @Getter @Setter private long expireAfterWrite = 0;         // millis, zero means never
+    @Getter @Setter private long refreshAfterWrite = 0;        // millis, zero means never. requires a loader
+    @Getter @Setter private Loader<K, V> loader;
+    @Getter @Setter private ExecutorService refreshExecutor;
+    @Getter @Setter private OffHeapCache<K, V> offHeapTier;    // if set, evicted entries move here, and move back when read
+
+    @Getter private final AtomicLong hits = new AtomicLong();
+    @Getter private final AtomicLong misses = new AtomicLong();
+    @Getter private final AtomicLong loads = new AtomicLong();
+    @Getter private final AtomicLong loadFailures = new AtomicLong();
+    @Getter private final AtomicLong refreshes = new AtomicLong();
+    @Getter private final AtomicLong evictions = new AtomicLong();
+    @Getter private final AtomicLong expirations = new AtomicLong();
+    @Getter private final AtomicLong offHeapHits = new AtomicLong();
+
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<K, FutureTask<V>> loading = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Segment<K, V> probation = new Segment<>(Node.PROBATION);
+    private final Segment<K, V> protect = new Segment<>(Node.PROTECTED);
+
+    public BoundedCache (long maxSize) { this.maxSize = maxSize; }
+
+    public BoundedCache (long maxSize, Loader<K, V> loader) { this(maxSize); this.loader = loader; }
+
+    /**
+     * @return the number of entries, which may include expired entries that have not been cleaned up yet
+     */
+    public int size () { return map.size(); }
+
+    /**
+     * @return the total weight of all entries
+     */
+    public long getWeight () {
+        lock.lock();
+        try { return probation.weight + protect.weight; } finally { lock.unlock(); }
+    }
+
+    public double getHitRate () {
+        final long h = hits.get();
+        final long total = h + misses.get();
+        return total == 0 ? 1.0 : ((double) h) / total;
+    }
+
+    public boolean containsKey (K key) {
+        return getIfPresent(key, false) != null || (offHeapTier != null && offHeapTier.containsKey(key));
+    }
+
+    /**
+     * @param key the key to find
+     * @return the cached value, or null if there is none (or it has expired). Never loads.
+     */
+    public V getIfPresent (K key) {
+        final V value = getIfPresent(key, true);
+        if (value != null || offHeapTier == null) return value;
+        final OffHeapCache.Entry<V> promoted = offHeapTier.removeEntry(key);
+        if (promoted == null) return null;
+        final long ttl = promoted.ttl(now());
+        if (ttl < 0) return null; // expired while off-heap
+        offHeapHits.incrementAndGet();
+        put(key, promoted.getValue(), ttl);
+        return promoted.getValue();
+    }
+
+    private V getIfPresent (K key, boolean record) {
+        final Node<K, V> node = map.get(key);
+        if (node == null) {
+            if (record) misses.incrementAndGet();
+            return null;
+        }
+        final long now = now();
+        if (node.isExpired(now)) {
+            if (map.remove(key, node)) {
+                expirations.incrementAndGet();
+                unlink(node);
+            }
+            if (record) misses.incrementAndGet();
+            return null;
+        }
+        if (record) {
+            hits.incrementAndGet();
+            onAccess(node);
+            if (refreshAfterWrite > 0 && now - node.written > refreshAfterWrite && loader != null) refresh(node, loader);
+        }
+        return node.value;
+    }
+
+    /**
+     * @param key the key to find
+     * @return the cached value, loading it with this cache's loader if it is not present
+     */
+    public V get (K key) {
+        if (loader == null) return die("get: no loader set, use getIfPresent or get(key, loader)");
+        return get(key, loader);
+    }
+
+    /**
+     * @param key the key to find
+     * @param loader how to load the value if it is not present. Only one thread loads a given key at a time:
+     *               others wait for its result.
+     * @return the cached or loaded value
+     */
+    public V get (final K key, final Loader<K, V> loader) {
+        final V value = getIfPresent(key);
+        if (value != null) return value;
+
+        FutureTask<V> task = loading.get(key);
+        if (task == null) {
+            final FutureTask<V> newTask = new FutureTask<>(new Callable<V>() {
+                @Override public V call() throws Exception { return load(key, loader); }
+            });
+            task = loading.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                try {
+                    task.run();
+                } finally {
+                    loading.remove(key, task);
+                }
+            }
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return die("get: interrupted loading "+key, e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            return die("get: error loading "+key+": "+cause, e);
+        }
+    }
+
+    private V load (K key, Loader<K, V> loader) throws Exception {
+        final V value;
+        try {
+            value = loader.load(key);
+        } catch (Exception e) {
+            loadFailures.incrementAndGet();
+            throw e;
+        }
+        loads.incrementAndGet();
+        if (value != null) put(key, value);
+        return value;
+    }
+
+    private void refresh (final Node<K, V> node, final Loader<K, V> loader) {
+        if (!node.refreshing.compareAndSet(false, true)) return;
+        final ExecutorService executor = refreshExecutor != null ? refreshExecutor : SharedRefreshPool.instance;
+        try {
+            executor.submit(new Runnable() {
+                @Override public void run() {
+                    try {
+                        final V value = loader.load(node.key);
+                        refreshes.incrementAndGet();
+                        // don't clobber a value that was put (or removed) while we were loading
+                        if (value != null && map.get(node.key) == node) put(node.key, value);
+
+                    } catch (Exception e) {
+                        log.warn("refresh: error refreshing "+node.key+": "+e);
+                        loadFailures.incrementAndGet();
+
+                    } finally {
+                        node.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            node.refreshing.set(false);
+            log.warn("refresh: executor rejected refresh of "+node.key+": "+e);
+        }
+    }
+
+    public V put (K key, V value) { return put(key, value, expireAfterWrite); }
+
+    /**
+     * Add or replace an entry
+     * @param key the key
+     * @param value the value, which must not be null
+     * @param ttl millis until the entry expires, zero means never
+     * @return the previous value, or null if there was none
+     */
+    public V put (K key, V value, long ttl) {
+        if (value == null) return die("put: null value for key "+key);
+        final long now = now();
+        final long weight = weigher == null ? 1 : weigher.weigh(key, value);
+        if (weight < 0) return die("put: negative weight for key "+key);
+        final Node<K, V> node = new Node<>(key, value, weight, now, ttl > 0 ? now + ttl : 0);
+        final Node<K, V> old = map.put(key, node);
+
+        final List<Node<K, V>> evicted = new ArrayList<>();
+        lock.lock();
+        try {
+            if (old != null) removeFromSegment(old);
+            // a put that lost a race with another put for the same key stays out of the segments
+            if (map.get(key) == node) probation.addFirst(node);
+            evict(evicted);
+        } finally {
+            lock.unlock();
+        }
+        for (Node<K, V> victim : evicted) {
+            if (map.remove(victim.key, victim)) {
+                evictions.incrementAndGet();
+                if (offHeapTier != null && !victim.isExpired(now)) {
+                    offHeapTier.put(victim.key, victim.value, victim.expires > 0 ? victim.expires - now : 0);
+                }
+            }
+        }
+        return old == null || old.isExpired(now) ? null : old.value;
+    }
+
+    /**
+     * Remove an entry
+     * @param key the key to remove
+     * @return the value that was removed, or null if there was none
+     */
+    public V invalidate (K key) {
+        if (offHeapTier != null) offHeapTier.invalidate(key);
+        final Node<K, V> node = map.remove(key);
+        if (node == null) return null;
+        unlink(node);
+        return node.isExpired(now()) ? null : node.value;
+    }
+
+    public void invalidateAll () {
+        if (offHeapTier != null) offHeapTier.invalidateAll();
+        lock.lock();
+        try {
+            map.clear();
+            probation.clear();
+            protect.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove all expired entries now, rather than as they are found
+     * @return the number of entries removed
+     */
+    public int cleanUp () {
+        final long now = now();
+        int count = 0;
+        for (Node<K, V> node : map.values()) {
+            if (node.isExpired(now) && map.remove(node.key, node)) {
+                unlink(node);
+                expirations.incrementAndGet();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return a live Map view of this cache, for code written against a Map. get never loads, put and remove
+     * are put and invalidate, and iteration covers the unexpired entries on the heap (not the offHeapTier).
+     */
+    public Map<K, V> asMap () { return mapView; }
+
+    private final Map<K, V> mapView = new AbstractMap<K, V>() {
+        @Override public int size() { return BoundedCache.this.size(); }
+        @Override public V get(Object key) { return getIfPresent((K) key); }
+        @Override public boolean containsKey(Object key) { return BoundedCache.this.containsKey((K) key); }
+        @Override public V put(K key, V value) { return BoundedCache.this.put(key, value); }
+        @Override public V remove(Object key) { return invalidate((K) key); }
+        @Override public void clear() { invalidateAll(); }
+        @Override public Set<Map.Entry<K, V>> entrySet() {
+            return new AbstractSet<Map.Entry<K, V>>() {
+                @Override public int size() { return BoundedCache.this.size(); }
+                @Override public Iterator<Map.Entry<K, V>> iterator() {
+                    final Iterator<Node<K, V>> nodes = map.values().iterator();
+                    return new Iterator<Map.Entry<K, V>>() {
+                        private Node<K, V> next = advance();
+                        private Node<K, V> last;
+                        private Node<K, V> advance() {
+                            final long now = now();
+                            while (nodes.hasNext()) {
+                                final Node<K, V> n = nodes.next();
+                                if (!n.isExpired(now)) return n;
+                            }
+                            return null;
+                        }
+                        @Override public boolean hasNext() { return next != null; }
+                        @Override public Map.Entry<K, V> next() {
+                            if (next == null) throw new NoSuchElementException();
+                            last = next;
+                            next = advance();
+                            return new AbstractMap.SimpleImmutableEntry<>(last.key, last.value);
+                        }
+                        @Override public void remove() {
+                            if (last == null) throw new IllegalStateException("remove: next has not been called");
+                            invalidate(last.key);
+                            last = null;
+                        }
+                    };
+                }
+            };
+        }
+    };
+
+    public void resetStats () {
+        for (AtomicLong counter : new AtomicLong[] {hits, misses, loads, loadFailures, refreshes, evictions, expirations, offHeapHits}) {
+            counter.set(0);
+        }
+    }
+
+    @Override public String toString () {
+        return "BoundedCache{size="+size()+", weight="+getWeight()+"/"+maxSize
+                +", hits="+hits.get()+", misses="+misses.get()+", hitRate="+String.format("%.3f", getHitRate())
+                +", loads="+loads.get()+", loadFailures="+loadFailures.get()+", refreshes="+refreshes.get()
+                +", evictions="+evictions.get()+", expirations="+expirations.get()
+                +(offHeapTier == null ? "" : ", offHeapHits="+offHeapHits.get()+", offHeap="+offHeapTier)+"}";
+    }
+
+    private void onAccess (Node<K, V> node) {
+        if (!lock.tryLock()) return; // contended: skip the reordering rather than make readers wait
+        try {
+            switch (node.segment) {
+                case Node.PROBATION:
+                    probation.remove(node);
+                    protect.addFirst(node);
+                    final long maxProtected = (long) (maxSize * protectedRatio);
+                    while (protect.weight > maxProtected && protect.size > 1) {
+                        final Node<K, V> demoted = protect.removeLast();
+                        probation.addFirst(demoted);
+                    }
+                    break;
+                case Node.PROTECTED:
+                    protect.remove(node);
+                    protect.addFirst(node);
+                    break;
+                default: break; // already removed
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void unlink (Node<K, V> node) {
+        lock.lock();
+        try { removeFromSegment(node); } finally { lock.unlock(); }
+    }
+
+    private void removeFromSegment (Node<K, V> node) {
+        switch (node.segment) {
+            case Node.PROBATION: probation.remove(node); break;
+            case Node.PROTECTED: protect.remove(node); break;
+            default: break;
+        }
+    }
+
+    private void evict (List<Node<K, V>> evicted) {
+        while (probation.weight + protect.weight > maxSize) {
+            final Node<K, V> victim = probation.size > 0 ? probation.removeLast() : protect.removeLast();
+            if (victim == null) break;
+            evicted.add(victim);
+        }
+    }
+
+    private static final class Node<K, V> {
+        static final int NONE = 0;
+        static final int PROBATION = 1;
+        static final int PROTECTED = 2;
+
+        final K key;
+        final V value;
+        final long weight;
+        final long written;
+        final long expires;
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        // guarded by the cache's lock
+        int segment = NONE;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node (K key, V value, long weight, long written, long expires) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.written = written;
+            this.expires = expires;
+        }
+
+        boolean isExpired (long now) { return expires > 0 && now >= expires; }
+    }
+
+    /**
+     * A doubly-linked list of nodes in recency order, most recent first. Guarded by the cache's lock.
+     */
+    private static final class Segment<K, V> {
+        final int id;
+        final Node<K, V> head = new Node<>(null, null, 0, 0, 0); // sentinel
+        long weight;
+        int size;
+
+        Segment (int id) {
+            this.id = id;
+            head.prev = head.next = head;
+        }
+
+        void addFirst (Node<K, V> node) {
+            node.segment = id;
+            node.prev = head;
+            node.next = head.next;
+            head.next.prev = node;
+            head.next = node;
+            weight += node.weight;
+            size++;
+        }
+
+        void remove (Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = node.next = null;
+            node.segment = Node.NONE;
+            weight -= node.weight;
+            size--;
+        }
+
+        Node<K, V> removeLast () {
+            if (size == 0) return null;
+            final Node<K, V> last = head.prev;
+            remove(last);
+            return last;
+        }
+
+        void clear () {
+            for (Node<K, V> n = head.next; n != head; ) {
+                final Node<K, V> next = n.next;
+                n.prev = n.next = null;
+                n.segment = Node.NONE;
+                n = next;
+            }
+            head.prev = head.next = head;
+            weight = 0;
+            size = 0;
+        }
+    }
+
+}
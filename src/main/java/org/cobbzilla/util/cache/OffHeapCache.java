@@ -0,0 +1,214 @@
+package org.cobbzilla.util.cache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.cobbzilla.util.json.JsonUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+
+/**
+ * A cache that keeps its values serialized in direct ByteBuffers, outside the Java heap, so that large values
+ * (rendered templates, decoded JSON blobs, manifests) do not lengthen GC pauses.
+ *
+ * Only the index lives on the heap: it is a BoundedCache from keys to buffers, weighed by buffer size, so the
+ * total off-heap memory is bounded by maxBytes and eviction, expiration and statistics work as they do there.
+ * Every read decodes the value, so this suits large values that are read occasionally. It can be used alone
+ * or as a second tier behind a BoundedCache (see BoundedCache.setOffHeapTier).
+ *
+ * Each buffer starts with the entry's expiry time, so an entry moved back onto the heap keeps its remaining TTL
+ * (see removeEntry).
+ *
+ * Direct memory is released when the GC collects an evicted buffer, so -XX:MaxDirectMemorySize should leave some
+ * room above maxBytes.
+ *
+ * @param <K> key class
+ * @param <V> value class
+ */
+@Accessors(chain=true) @Slf4j
+public class OffHeapCache<K, V> {
+
+    public interface Codec<V> {
+        byte[] encode(V value) throws Exception;
+        V decode(InputStream in) throws Exception;
+    }
+
+    /**
+     * Serializes values as JSON with Jackson.
+     */
+    @AllArgsConstructor
+    public static class JsonCodec<V> implements Codec<V> {
+        private final Class<V> valueClass;
+        private final ObjectMapper mapper;
+        public JsonCodec (Class<V> valueClass) { this(valueClass, JsonUtil.FULL_MAPPER); }
+        @Override public byte[] encode(V value) throws Exception { return mapper.writeValueAsBytes(value); }
+        @Override public V decode(InputStream in) throws Exception { return mapper.readValue(in, valueClass); }
+    }
+
+    public static final Codec<String> STRING_CODEC = new Codec<String>() {
+        @Override public byte[] encode(String value) { return value.getBytes(UTF8cs); }
+        @Override public String decode(InputStream in) throws IOException { return new String(readAll(in), UTF8cs); }
+    };
+
+    public static final Codec<byte[]> BYTES_CODEC = new Codec<byte[]>() {
+        @Override public byte[] encode(byte[] value) { return value; }
+        @Override public byte[] decode(InputStream in) throws IOException { return readAll(in); }
+    };
+
+    /**
+     * A value and the time it expires
+     */
+    @AllArgsConstructor
+    public static class Entry<V> {
+        @Getter private final V value;
+        @Getter private final long expires; // zero means never
+
+        /**
+         * @param now the current time
+         * @return millis until the entry expires: zero means never, and a negative value means it has expired
+         */
+        public long ttl (long now) { return expires == 0 ? 0 : (expires > now ? expires - now : -1); }
+    }
+
+    // each buffer starts with the entry's expiry time
+    private static final int HEADER_BYTES = 8;
+
+    private static byte[] readAll (InputStream in) throws IOException {
+        if (!(in instanceof ByteBufferInputStream)) return IOUtils.toByteArray(in);
+        final ByteBuffer buffer = ((ByteBufferInputStream) in).buffer;
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Getter private final Codec<V> codec;
+    @Getter private final BoundedCache<K, ByteBuffer> index;
+
+    public OffHeapCache (long maxBytes, Codec<V> codec) {
+        this.codec = codec;
+        this.index = new BoundedCache<K, ByteBuffer>(maxBytes).setWeigher(new BoundedCache.Weigher<K, ByteBuffer>() {
+            @Override public long weigh(K key, ByteBuffer value) { return value.capacity(); }
+        });
+    }
+
+    public OffHeapCache (long maxBytes, Class<V> valueClass) { this(maxBytes, new JsonCodec<>(valueClass)); }
+
+    public OffHeapCache<K, V> setExpireAfterWrite (long millis) { index.setExpireAfterWrite(millis); return this; }
+
+    /**
+     * @return the number of entries
+     */
+    public int size () { return index.size(); }
+
+    /**
+     * @return the number of off-heap bytes in use
+     */
+    public long getBytes () { return index.getWeight(); }
+
+    public long getMaxBytes () { return index.getMaxSize(); }
+
+    public boolean containsKey (K key) { return index.containsKey(key); }
+
+    public V getIfPresent (K key) {
+        final ByteBuffer buffer = index.getIfPresent(key);
+        return buffer == null ? null : decode(key, buffer);
+    }
+
+    public void put (K key, V value) { put(key, value, index.getExpireAfterWrite()); }
+
+    /**
+     * Serialize a value and store it off-heap
+     * @param key the key
+     * @param value the value
+     * @param ttl millis until the entry expires, zero means never
+     */
+    public void put (K key, V value, long ttl) {
+        final byte[] bytes;
+        try {
+            bytes = codec.encode(value);
+        } catch (Exception e) {
+            die("put: error encoding value for "+key+": "+e, e);
+            return;
+        }
+        if (HEADER_BYTES + bytes.length > index.getMaxSize()) {
+            log.warn("put: value for "+key+" ("+bytes.length+" bytes) is larger than maxBytes, not caching");
+            index.invalidate(key);
+            return;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(HEADER_BYTES + bytes.length);
+        buffer.putLong(ttl > 0 ? now() + ttl : 0).put(bytes).flip();
+        index.put(key, buffer, ttl);
+    }
+
+    /**
+     * Remove an entry
+     * @param key the key to remove
+     * @return the value that was removed, or null if there was none
+     */
+    public V remove (K key) {
+        final ByteBuffer buffer = index.invalidate(key);
+        return buffer == null ? null : decode(key, buffer);
+    }
+
+    /**
+     * Remove an entry
+     * @param key the key to remove
+     * @return the value that was removed and when it would have expired, or null if there was none
+     */
+    public Entry<V> removeEntry (K key) {
+        final ByteBuffer buffer = index.invalidate(key);
+        return buffer == null ? null : new Entry<>(decode(key, buffer), buffer.getLong(0));
+    }
+
+    public void invalidate (K key) { index.invalidate(key); }
+
+    public void invalidateAll () { index.invalidateAll(); }
+
+    @Override public String toString () { return "OffHeapCache{"+index+"}"; }
+
+    private V decode (K key, ByteBuffer buffer) {
+        // duplicate: each reader gets its own position over the shared (read-only) contents
+        final ByteBuffer contents = buffer.duplicate();
+        contents.position(HEADER_BYTES);
+        try (ByteBufferInputStream in = new ByteBufferInputStream(contents)) {
+            return codec.decode(in);
+        } catch (Exception e) {
+            return die("decode: error decoding value for "+key+": "+e, e);
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream (ByteBuffer buffer) { this.buffer = buffer; }
+
+        @Override public int read() { return buffer.hasRemaining() ? buffer.get() & 0xff : -1; }
+
+        @Override public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override public long skip(long n) {
+            final int skipped = (int) Math.min(Math.max(n, 0), buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override public int available() { return buffer.remaining(); }
+    }
+
+}
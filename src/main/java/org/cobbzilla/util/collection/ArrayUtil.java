@@ -34,6 +34,7 @@ public class ArrayUtil {
         final T[] newArray = (T[]) Array.newInstance(componentType, size);
         int destPos = 0;
         for (T[] array : arrays) {
+            if (array == null) continue;
             System.arraycopy(array, 0, newArray, destPos, array.length);
             destPos += array.length;
         }
@@ -43,10 +44,10 @@ public class ArrayUtil {
     public static <T> T[] remove(T[] array, int indexToRemove) {
         if (array == null) throw new NullPointerException("remove: array was null");
         if (indexToRemove >= array.length || indexToRemove < 0) throw new IndexOutOfBoundsException("remove: cannot remove element "+indexToRemove+" from array of length "+array.length);
-        final List<T> list = new ArrayList<>(Arrays.asList(array));
-        list.remove(indexToRemove);
         final T[] newArray = (T[]) Array.newInstance(array.getClass().getComponentType(), array.length-1);
-        return list.toArray(newArray);
+        System.arraycopy(array, 0, newArray, 0, indexToRemove);
+        System.arraycopy(array, indexToRemove+1, newArray, indexToRemove, array.length-indexToRemove-1);
+        return newArray;
     }
 
     /**
@@ -69,6 +70,152 @@ public class ArrayUtil {
         return newArray;
     }
 
+    // int[], long[], byte[] and double[] versions of append, concat, remove and slice, so primitive arrays are never boxed
+
+    public static int[] append (int[] array, int... elements) {
+        if (array == null || array.length == 0) return Arrays.copyOf(elements, elements.length);
+        final int[] copy = Arrays.copyOf(array, array.length + elements.length);
+        System.arraycopy(elements, 0, copy, array.length, elements.length);
+        return copy;
+    }
+
+    public static int[] concat (int[]... arrays) {
+        int size = 0;
+        for (int[] array : arrays) size += array == null ? 0 : array.length;
+        final int[] newArray = new int[size];
+        int destPos = 0;
+        for (int[] array : arrays) {
+            if (array == null) continue;
+            System.arraycopy(array, 0, newArray, destPos, array.length);
+            destPos += array.length;
+        }
+        return newArray;
+    }
+
+    public static int[] remove(int[] array, int indexToRemove) {
+        if (array == null) throw new NullPointerException("remove: array was null");
+        if (indexToRemove >= array.length || indexToRemove < 0) throw new IndexOutOfBoundsException("remove: cannot remove element "+indexToRemove+" from array of length "+array.length);
+        final int[] newArray = new int[array.length-1];
+        System.arraycopy(array, 0, newArray, 0, indexToRemove);
+        System.arraycopy(array, indexToRemove+1, newArray, indexToRemove, array.length-indexToRemove-1);
+        return newArray;
+    }
+
+    public static int[] slice(int[] array, int from, int to) {
+        if (array == null) throw new NullPointerException("slice: array was null");
+        if (from < 0 || from > array.length) die("slice: invalid 'from' index ("+from+") for array of size "+array.length);
+        if (to < 0 || to < from || to > array.length) die("slice: invalid 'to' index ("+to+") for array of size "+array.length);
+        return Arrays.copyOfRange(array, from, to);
+    }
+
+    public static long[] append (long[] array, long... elements) {
+        if (array == null || array.length == 0) return Arrays.copyOf(elements, elements.length);
+        final long[] copy = Arrays.copyOf(array, array.length + elements.length);
+        System.arraycopy(elements, 0, copy, array.length, elements.length);
+        return copy;
+    }
+
+    public static long[] concat (long[]... arrays) {
+        int size = 0;
+        for (long[] array : arrays) size += array == null ? 0 : array.length;
+        final long[] newArray = new long[size];
+        int destPos = 0;
+        for (long[] array : arrays) {
+            if (array == null) continue;
+            System.arraycopy(array, 0, newArray, destPos, array.length);
+            destPos += array.length;
+        }
+        return newArray;
+    }
+
+    public static long[] remove(long[] array, int indexToRemove) {
+        if (array == null) throw new NullPointerException("remove: array was null");
+        if (indexToRemove >= array.length || indexToRemove < 0) throw new IndexOutOfBoundsException("remove: cannot remove element "+indexToRemove+" from array of length "+array.length);
+        final long[] newArray = new long[array.length-1];
+        System.arraycopy(array, 0, newArray, 0, indexToRemove);
+        System.arraycopy(array, indexToRemove+1, newArray, indexToRemove, array.length-indexToRemove-1);
+        return newArray;
+    }
+
+    public static long[] slice(long[] array, int from, int to) {
+        if (array == null) throw new NullPointerException("slice: array was null");
+        if (from < 0 || from > array.length) die("slice: invalid 'from' index ("+from+") for array of size "+array.length);
+        if (to < 0 || to < from || to > array.length) die("slice: invalid 'to' index ("+to+") for array of size "+array.length);
+        return Arrays.copyOfRange(array, from, to);
+    }
+
+    public static byte[] append (byte[] array, byte... elements) {
+        if (array == null || array.length == 0) return Arrays.copyOf(elements, elements.length);
+        final byte[] copy = Arrays.copyOf(array, array.length + elements.length);
+        System.arraycopy(elements, 0, copy, array.length, elements.length);
+        return copy;
+    }
+
+    public static byte[] concat (byte[]... arrays) {
+        int size = 0;
+        for (byte[] array : arrays) size += array == null ? 0 : array.length;
+        final byte[] newArray = new byte[size];
+        int destPos = 0;
+        for (byte[] array : arrays) {
+            if (array == null) continue;
+            System.arraycopy(array, 0, newArray, destPos, array.length);
+            destPos += array.length;
+        }
+        return newArray;
+    }
+
+    public static byte[] remove(byte[] array, int indexToRemove) {
+        if (array == null) throw new NullPointerException("remove: array was null");
+        if (indexToRemove >= array.length || indexToRemove < 0) throw new IndexOutOfBoundsException("remove: cannot remove element "+indexToRemove+" from array of length "+array.length);
+        final byte[] newArray = new byte[array.length-1];
+        System.arraycopy(array, 0, newArray, 0, indexToRemove);
+        System.arraycopy(array, indexToRemove+1, newArray, indexToRemove, array.length-indexToRemove-1);
+        return newArray;
+    }
+
+    public static byte[] slice(byte[] array, int from, int to) {
+        if (array == null) throw new NullPointerException("slice: array was null");
+        if (from < 0 || from > array.length) die("slice: invalid 'from' index ("+from+") for array of size "+array.length);
+        if (to < 0 || to < from || to > array.length) die("slice: invalid 'to' index ("+to+") for array of size "+array.length);
+        return Arrays.copyOfRange(array, from, to);
+    }
+
+    public static double[] append (double[] array, double... elements) {
+        if (array == null || array.length == 0) return Arrays.copyOf(elements, elements.length);
+        final double[] copy = Arrays.copyOf(array, array.length + elements.length);
+        System.arraycopy(elements, 0, copy, array.length, elements.length);
+        return copy;
+    }
+
+    public static double[] concat (double[]... arrays) {
+        int size = 0;
+        for (double[] array : arrays) size += array == null ? 0 : array.length;
+        final double[] newArray = new double[size];
+        int destPos = 0;
+        for (double[] array : arrays) {
+            if (array == null) continue;
+            System.arraycopy(array, 0, newArray, destPos, array.length);
+            destPos += array.length;
+        }
+        return newArray;
+    }
+
+    public static double[] remove(double[] array, int indexToRemove) {
+        if (array == null) throw new NullPointerException("remove: array was null");
+        if (indexToRemove >= array.length || indexToRemove < 0) throw new IndexOutOfBoundsException("remove: cannot remove element "+indexToRemove+" from array of length "+array.length);
+        final double[] newArray = new double[array.length-1];
+        System.arraycopy(array, 0, newArray, 0, indexToRemove);
+        System.arraycopy(array, indexToRemove+1, newArray, indexToRemove, array.length-indexToRemove-1);
+        return newArray;
+    }
+
+    public static double[] slice(double[] array, int from, int to) {
+        if (array == null) throw new NullPointerException("slice: array was null");
+        if (from < 0 || from > array.length) die("slice: invalid 'from' index ("+from+") for array of size "+array.length);
+        if (to < 0 || to < from || to > array.length) die("slice: invalid 'to' index ("+to+") for array of size "+array.length);
+        return Arrays.copyOfRange(array, from, to);
+    }
+
     public static <T> List<T> merge(Collection<T>... collections) {
         if (empty(collections)) return Collections.emptyList();
         final Set<T> result = new HashSet<>();
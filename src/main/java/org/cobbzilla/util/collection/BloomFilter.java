@@ -0,0 +1,173 @@
+package org.cobbzilla.util.collection;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.common.hash.HashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.json;
+
+/**
+ * A Bloom filter: a fixed-size bit set that answers "have we seen this?" with no false negatives and a tunable
+ * rate of false positives, in a small fraction of the memory of a HashSet of the same elements.
+ *
+ * Elements are hashed with murmur3 (see SketchHash), and bits are set with atomic operations, so a filter can be
+ * shared between threads without locking. Filters built with the same size can be merged, for example to combine
+ * filters built on different nodes. Serialize with toJson: the bits are Base64-encoded.
+ */
+@NoArgsConstructor
+public class BloomFilter {
+
+    @Getter private int numHashes;
+    private AtomicLongArray words;
+
+    /**
+     * @param expectedInsertions the number of elements the filter is sized for
+     * @param fpp the desired false positive probability once it holds that many, for example 0.01
+     */
+    public BloomFilter (long expectedInsertions, double fpp) {
+        this(optimalNumBits(expectedInsertions, fpp), optimalNumHashes(expectedInsertions, optimalNumBits(expectedInsertions, fpp)));
+    }
+
+    public BloomFilter (long numBits, int numHashes) {
+        if (numBits <= 0) die("BloomFilter: numBits must be positive");
+        if (numHashes <= 0) die("BloomFilter: numHashes must be positive");
+        final long numWords = (numBits + 63) / 64;
+        if (numWords > Integer.MAX_VALUE) die("BloomFilter: too many bits: "+numBits);
+        this.numHashes = numHashes;
+        this.words = new AtomicLongArray((int) numWords);
+    }
+
+    public static long optimalNumBits (long expectedInsertions, double fpp) {
+        if (expectedInsertions <= 0) die("optimalNumBits: expectedInsertions must be positive");
+        if (fpp <= 0 || fpp >= 1) die("optimalNumBits: fpp must be between 0 and 1");
+        return Math.max((long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2))), 64);
+    }
+
+    public static int optimalNumHashes (long expectedInsertions, long numBits) {
+        return Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+    }
+
+    /**
+     * @return the number of bits. This is always a multiple of 64.
+     */
+    @JsonIgnore public long getNumBits () { return words.length() * 64L; }
+
+    public boolean put (String s) { return put(SketchHash.hash(s)); }
+    public boolean put (byte[] bytes) { return put(SketchHash.hash(bytes)); }
+    public boolean put (long value) { return put(SketchHash.hash(value)); }
+
+    public boolean mightContain (String s) { return mightContain(SketchHash.hash(s)); }
+    public boolean mightContain (byte[] bytes) { return mightContain(SketchHash.hash(bytes)); }
+    public boolean mightContain (long value) { return mightContain(SketchHash.hash(value)); }
+
+    /**
+     * @param hash the element's hash
+     * @return true if any bit changed, which means the element was definitely not in the filter before
+     */
+    private boolean put (HashCode hash) {
+        final long numBits = getNumBits();
+        final long h1 = hash.asLong();
+        final long h2 = SketchHash.upper(hash);
+        boolean changed = false;
+        long combined = h1;
+        for (int i=0; i<numHashes; i++) {
+            if (setBit((combined & Long.MAX_VALUE) % numBits)) changed = true;
+            combined += h2;
+        }
+        return changed;
+    }
+
+    private boolean mightContain (HashCode hash) {
+        final long numBits = getNumBits();
+        final long h1 = hash.asLong();
+        final long h2 = SketchHash.upper(hash);
+        long combined = h1;
+        for (int i=0; i<numHashes; i++) {
+            if (!getBit((combined & Long.MAX_VALUE) % numBits)) return false;
+            combined += h2;
+        }
+        return true;
+    }
+
+    private boolean setBit (long index) {
+        final int word = (int) (index >>> 6);
+        final long mask = 1L << index;
+        long old;
+        do {
+            old = words.get(word);
+            if ((old & mask) != 0) return false;
+        } while (!words.compareAndSet(word, old, old | mask));
+        return true;
+    }
+
+    private boolean getBit (long index) { return (words.get((int) (index >>> 6)) & (1L << index)) != 0; }
+
+    /**
+     * @return the number of bits set
+     */
+    @JsonIgnore public long getBitCount () {
+        long count = 0;
+        for (int i=0; i<words.length(); i++) count += Long.bitCount(words.get(i));
+        return count;
+    }
+
+    /**
+     * @return the estimated number of distinct elements that have been added
+     */
+    @JsonIgnore public long getApproximateCount () {
+        final double numBits = getNumBits();
+        final double fractionSet = getBitCount() / numBits;
+        if (fractionSet >= 1) return Long.MAX_VALUE;
+        return Math.round(-Math.log1p(-fractionSet) * numBits / numHashes);
+    }
+
+    /**
+     * @return the probability that mightContain returns true for an element that was never added, given the bits
+     * set so far
+     */
+    @JsonIgnore public double getExpectedFpp () { return Math.pow((double) getBitCount() / getNumBits(), numHashes); }
+
+    public boolean isCompatible (BloomFilter other) {
+        return other != null && other.numHashes == numHashes && other.words.length() == words.length();
+    }
+
+    /**
+     * Add all the elements of another filter to this one
+     * @param other a filter with the same number of bits and hashes
+     * @return this
+     */
+    public BloomFilter merge (BloomFilter other) {
+        if (!isCompatible(other)) die("merge: incompatible filter");
+        for (int i=0; i<words.length(); i++) {
+            final long bits = other.words.get(i);
+            long old;
+            do { old = words.get(i); } while ((old | bits) != old && !words.compareAndSet(i, old, old | bits));
+        }
+        return this;
+    }
+
+    public void clear () { for (int i=0; i<words.length(); i++) words.set(i, 0); }
+
+    public BloomFilter copy () { return new BloomFilter(getNumBits(), numHashes).merge(this); }
+
+    // for JSON
+    public void setNumHashes (int numHashes) { this.numHashes = numHashes; }
+
+    public String getBits () {
+        final long[] copy = new long[words.length()];
+        for (int i=0; i<copy.length; i++) copy[i] = words.get(i);
+        return SketchHash.encode(copy);
+    }
+
+    public void setBits (String bits) { words = new AtomicLongArray(SketchHash.decodeLongs(bits)); }
+
+    public String toJson () { return json(this); }
+
+    public static BloomFilter fromJson (String json) { return fromJsonOrDie(json, BloomFilter.class); }
+
+}
@@ -0,0 +1,150 @@
+package org.cobbzilla.util.collection;
+
+import lombok.Getter;
+
+import java.util.*;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * The Cartesian product of several lists, generated lazily: every list formed by taking one element from each input
+ * list, in order, with the last list varying fastest. Only (a copy of) the inputs is held in memory, never the
+ * tuples, so later changes to the input lists do not affect the product.
+ *
+ * Each tuple has a rank, its position in the product. get(rank) computes any tuple directly, and iterators step
+ * from one tuple to the next with an array of indexes, like an odometer. getCount() is computed up front, without
+ * enumerating anything.
+ *
+ * For parallel processing, split(n) or range(from, to) divide the product into independent ranges of ranks, which
+ * can be handed to ForkJoin tasks or executor threads.
+ *
+ * This list is read-only. Each tuple returned is a new list, which callers may keep or modify.
+ *
+ * A List cannot hold more than Integer.MAX_VALUE elements: if the product has more tuples than that, then as a List
+ * (size, iterator, toArray, equals...) it holds only the first Integer.MAX_VALUE of them. getCount(), get(long),
+ * range and split reach all of them.
+ *
+ * @param <T> element class
+ */
+public class CartesianProduct<T> extends AbstractList<List<T>> implements RandomAccess {
+
+    private final List<List<T>> dimensions;
+    @Getter private final long count;
+
+    public CartesianProduct (List<? extends Collection<T>> collections) {
+        final List<List<T>> dims = new ArrayList<>(collections == null ? 0 : collections.size());
+        long c = collections == null || collections.isEmpty() ? 0 : 1;
+        if (collections != null) {
+            for (Collection<T> collection : collections) {
+                final List<T> dim = new ArrayList<>(collection);
+                dims.add(dim);
+                final int size = dim.size();
+                if (size != 0 && c > Long.MAX_VALUE / size) die("CartesianProduct: too many tuples");
+                c *= size;
+            }
+        }
+        this.dimensions = dims;
+        this.count = c;
+    }
+
+    /**
+     * @return the number of tuples, or Integer.MAX_VALUE if there are more than that (see the class comment). Use
+     * getCount() for the exact number.
+     */
+    @Override public int size() { return (int) Math.min(count, Integer.MAX_VALUE); }
+
+    @Override public boolean isEmpty() { return count == 0; }
+
+    @Override public List<T> get(int rank) { return get((long) rank); }
+
+    /**
+     * @param rank the position of the tuple, from 0 to getCount() - 1
+     * @return the tuple at that position
+     */
+    public List<T> get(long rank) { return tuple(indexes(rank)); }
+
+    private int[] indexes (long rank) {
+        if (rank < 0 || rank >= count) throw new IndexOutOfBoundsException("rank "+rank+" out of range, count="+count);
+        final int[] indexes = new int[dimensions.size()];
+        for (int d=indexes.length-1; d>=0; d--) {
+            final int size = dimensions.get(d).size();
+            indexes[d] = (int) (rank % size);
+            rank /= size;
+        }
+        return indexes;
+    }
+
+    private List<T> tuple (int[] indexes) {
+        final List<T> tuple = new ArrayList<>(indexes.length);
+        for (int d=0; d<indexes.length; d++) tuple.add(dimensions.get(d).get(indexes[d]));
+        return tuple;
+    }
+
+    @Override public Iterator<List<T>> iterator() { return iterator(0, size()); }
+
+    /**
+     * @param from the rank of the first tuple, inclusive
+     * @param to the rank to stop at, exclusive
+     * @return an iterator over the tuples in that range
+     */
+    public Iterator<List<T>> iterator(final long from, final long to) {
+        if (from < 0 || to > count || from > to) throw new IndexOutOfBoundsException("range "+from+"-"+to+" out of range, count="+count);
+        return new Iterator<List<T>>() {
+            private long remaining = to - from;
+            private int[] indexes = null;
+
+            @Override public boolean hasNext() { return remaining > 0; }
+
+            @Override public List<T> next() {
+                if (remaining <= 0) throw new NoSuchElementException();
+                if (indexes == null) {
+                    indexes = indexes(from);
+                } else {
+                    // advance the odometer: bump the last index, carrying into earlier ones as they wrap around
+                    for (int d=indexes.length-1; d>=0; d--) {
+                        if (++indexes[d] < dimensions.get(d).size()) break;
+                        indexes[d] = 0;
+                    }
+                }
+                remaining--;
+                return tuple(indexes);
+            }
+
+            @Override public void remove() { throw new UnsupportedOperationException("remove: CartesianProduct is read-only"); }
+        };
+    }
+
+    /**
+     * @param from the rank of the first tuple, inclusive
+     * @param to the rank to stop at, exclusive
+     * @return the tuples in that range, generated lazily
+     */
+    public Iterable<List<T>> range(final long from, final long to) {
+        iterator(from, to); // validate now, not when someone iterates
+        return new Iterable<List<T>>() {
+            @Override public Iterator<List<T>> iterator() { return CartesianProduct.this.iterator(from, to); }
+        };
+    }
+
+    /**
+     * Divide the product into contiguous ranges of nearly equal size, for processing in parallel
+     * @param parts the number of ranges wanted
+     * @return the ranges, at most parts of them (fewer if there are fewer tuples), in rank order
+     */
+    public List<Iterable<List<T>>> split(int parts) {
+        if (parts <= 0) die("split: parts must be positive");
+        final int n = (int) Math.min(parts, Math.max(count, 1));
+        final List<Iterable<List<T>>> ranges = new ArrayList<>(n);
+        if (count == 0) return ranges;
+        final long base = count / n;
+        final long extra = count % n;
+        long start = 0;
+        for (int i=0; i<n; i++) {
+            final long end = start + base + (i < extra ? 1 : 0);
+            ranges.add(range(start, end));
+            start = end;
+        }
+        return ranges;
+    }
+
+}
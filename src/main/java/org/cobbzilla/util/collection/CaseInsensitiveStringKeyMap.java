@@ -1,20 +1,50 @@
 package org.cobbzilla.util.collection;
 
-import java.util.Collections;
-import java.util.Enumeration;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * A ConcurrentHashMap with String keys that are compared without regard to case. The most recently put spelling of
+ * each key is kept and returned by keys, keySet and entrySet.
+ *
+ * Entries are stored under their lowercase key (see key). Lowercasing a key that is already lowercase returns the
+ * same String, so it allocates nothing and reuses the String's cached hash. The original spelling is only stored (in
+ * origKeys) when it differs from the lowercase key. keySet, values and entrySet are live views, and changes made
+ * through them go through put and remove, so subclasses that override those see every change.
+ */
 public class CaseInsensitiveStringKeyMap<V> extends ConcurrentHashMap<String, V> {
 
-    private ConcurrentHashMap<String, String> origKeys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> origKeys = new ConcurrentHashMap<>();
 
-    public String key(Object key) { return key == null ? null : key.toString().toLowerCase(); }
+    public CaseInsensitiveStringKeyMap () { super(); }
 
-    @Override public Set<String> keySet() { return new HashSet<>(origKeys.values()); }
+    public CaseInsensitiveStringKeyMap (int size) { super(size); }
 
-    @Override public Enumeration<String> keys() { return Collections.enumeration(origKeys.values()); }
+    public CaseInsensitiveStringKeyMap (Map<String, ? extends V> other) {
+        super(Math.max(other.size(), 16));
+        putAll(other);
+    }
+
+    /**
+     * @param key a key
+     * @return the key in lowercase, independent of the default locale. If the key is already lowercase, this is
+     * the key itself.
+     */
+    public String key(Object key) { return key == null ? null : key.toString().toLowerCase(Locale.ROOT); }
+
+    private void spell (String key, String ciKey) {
+        if (!ciKey.equals(key)) {
+            origKeys.put(ciKey, key);
+        } else if (!origKeys.isEmpty()) {
+            origKeys.remove(ciKey);
+        }
+    }
+
+    private String spelling (String ciKey) {
+        if (origKeys.isEmpty()) return ciKey;
+        final String orig = origKeys.get(ciKey);
+        return orig == null ? ciKey : orig;
+    }
 
     @Override public V get(Object key) { return super.get(key(key)); }
 
@@ -22,36 +52,129 @@ public class CaseInsensitiveStringKeyMap<V> extends ConcurrentHashMap<String, V>
 
     @Override public V put(String key, V value) {
         final String ciKey = key(key);
-        origKeys.put(ciKey, key);
+        spell(key, ciKey);
         return super.put(ciKey, value);
     }
 
     @Override public V putIfAbsent(String key, V value) {
         final String ciKey = key(key);
-        origKeys.putIfAbsent(ciKey, key);
-        return super.putIfAbsent(ciKey, value);
+        final V old = super.putIfAbsent(ciKey, value);
+        if (old == null) spell(key, ciKey);
+        return old;
+    }
+
+    // ConcurrentHashMap.putAll does not call put
+    @Override public void putAll(Map<? extends String, ? extends V> m) {
+        for (Map.Entry<? extends String, ? extends V> entry : m.entrySet()) put(entry.getKey(), entry.getValue());
     }
 
     @Override public V remove(Object key) {
         final String ciKey = key(key);
-        origKeys.remove(ciKey);
-        return super.remove(ciKey);
+        final V old = super.remove(ciKey);
+        if (old != null) origKeys.remove(ciKey);
+        return old;
     }
 
     @Override public boolean remove(Object key, Object value) {
         final String ciKey = key(key);
-        origKeys.remove(ciKey, value);
-        return super.remove(ciKey, value);
+        if (!super.remove(ciKey, value)) return false;
+        origKeys.remove(ciKey);
+        return true;
     }
 
-    @Override public boolean replace(String key, V oldValue, V newValue) {
-        final String ciKey = key(key);
-        return super.replace(ciKey, oldValue, newValue);
+    @Override public boolean replace(String key, V oldValue, V newValue) { return super.replace(key(key), oldValue, newValue); }
+
+    @Override public V replace(String key, V value) { return super.replace(key(key), value); }
+
+    @Override public void clear() {
+        super.clear();
+        origKeys.clear();
     }
 
-    @Override public V replace(String key, V value) {
-        final String ciKey = key(key);
-        return super.replace(ciKey, value);
+    /**
+     * @return the keys, as most recently put
+     */
+    @Override public Enumeration<String> keys() { return Collections.enumeration(keySet()); }
+
+    @Override public Set<String> keySet() {
+        return new AbstractSet<String>() {
+            @Override public int size() { return CaseInsensitiveStringKeyMap.this.size(); }
+            @Override public boolean contains(Object o) { return o != null && containsKey(o); }
+            @Override public boolean remove(Object o) { return o != null && CaseInsensitiveStringKeyMap.this.remove(o) != null; }
+            @Override public void clear() { CaseInsensitiveStringKeyMap.this.clear(); }
+            @Override public Iterator<String> iterator() {
+                final Iterator<Map.Entry<String, V>> entries = entrySet().iterator();
+                return new Iterator<String>() {
+                    @Override public boolean hasNext() { return entries.hasNext(); }
+                    @Override public String next() { return entries.next().getKey(); }
+                    @Override public void remove() { entries.remove(); }
+                };
+            }
+        };
+    }
+
+    @Override public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override public int size() { return CaseInsensitiveStringKeyMap.this.size(); }
+            @Override public boolean contains(Object o) { return o != null && containsValue(o); }
+            @Override public void clear() { CaseInsensitiveStringKeyMap.this.clear(); }
+            @Override public Iterator<V> iterator() {
+                final Iterator<Map.Entry<String, V>> entries = entrySet().iterator();
+                return new Iterator<V>() {
+                    @Override public boolean hasNext() { return entries.hasNext(); }
+                    @Override public V next() { return entries.next().getValue(); }
+                    @Override public void remove() { entries.remove(); }
+                };
+            }
+        };
+    }
+
+    @Override public Set<Map.Entry<String, V>> entrySet() {
+        return new AbstractSet<Map.Entry<String, V>>() {
+            @Override public int size() { return CaseInsensitiveStringKeyMap.this.size(); }
+            @Override public void clear() { CaseInsensitiveStringKeyMap.this.clear(); }
+
+            @Override public boolean contains(Object o) {
+                if (!(o instanceof Map.Entry)) return false;
+                final Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                if (e.getKey() == null) return false;
+                final V value = get(e.getKey());
+                return value != null && value.equals(e.getValue());
+            }
+
+            @Override public boolean remove(Object o) {
+                if (!(o instanceof Map.Entry)) return false;
+                final Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                return e.getKey() != null && e.getValue() != null && CaseInsensitiveStringKeyMap.this.remove(e.getKey(), e.getValue());
+            }
+
+            @Override public Iterator<Map.Entry<String, V>> iterator() {
+                final Iterator<Map.Entry<String, V>> entries = CaseInsensitiveStringKeyMap.super.entrySet().iterator();
+                return new Iterator<Map.Entry<String, V>>() {
+                    private String last;
+                    @Override public boolean hasNext() { return entries.hasNext(); }
+                    @Override public Map.Entry<String, V> next() {
+                        final Map.Entry<String, V> entry = entries.next();
+                        last = entry.getKey();
+                        return new MapEntry(spelling(last), entry.getValue());
+                    }
+                    @Override public void remove() {
+                        if (last == null) throw new IllegalStateException("remove: next has not been called");
+                        CaseInsensitiveStringKeyMap.this.remove(last);
+                        last = null;
+                    }
+                };
+            }
+        };
+    }
+
+    private class MapEntry extends AbstractMap.SimpleEntry<String, V> {
+        MapEntry (String key, V value) { super(key, value); }
+        @Override public V setValue(V value) {
+            final V old = super.setValue(value);
+            put(getKey(), value);
+            return old;
+        }
     }
 
 }
@@ -0,0 +1,164 @@
+package org.cobbzilla.util.collection;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.common.hash.HashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.json;
+
+/**
+ * A Bloom filter that also supports remove, by keeping a 4-bit counter instead of a bit at each position (16
+ * counters per long), so it takes 4 times the memory of a BloomFilter of the same size.
+ *
+ * A counter that reaches 15 sticks there, since its true count is no longer known: elements that hashed to it can
+ * no longer be removed completely, but there are still no false negatives. Only remove elements that were added.
+ *
+ * Methods are synchronized. Filters of the same size can be merged (counters are added). Serialize with toJson.
+ */
+@NoArgsConstructor
+public class CountingBloomFilter {
+
+    public static final int MAX_COUNT = 15;
+
+    @Getter private int numHashes;
+    private long[] words;
+
+    public CountingBloomFilter (long expectedInsertions, double fpp) {
+        this(BloomFilter.optimalNumBits(expectedInsertions, fpp),
+             BloomFilter.optimalNumHashes(expectedInsertions, BloomFilter.optimalNumBits(expectedInsertions, fpp)));
+    }
+
+    public CountingBloomFilter (long numCounters, int numHashes) {
+        if (numCounters <= 0) die("CountingBloomFilter: numCounters must be positive");
+        if (numHashes <= 0) die("CountingBloomFilter: numHashes must be positive");
+        // a multiple of 64 counters, so toBloomFilter maps each counter to a bit at the same index
+        final long numWords = (numCounters + 63) / 64 * 4;
+        if (numWords > Integer.MAX_VALUE) die("CountingBloomFilter: too many counters: "+numCounters);
+        this.numHashes = numHashes;
+        this.words = new long[(int) numWords];
+    }
+
+    /**
+     * @return the number of counters. This is always a multiple of 64.
+     */
+    @JsonIgnore public long getNumCounters () { return words.length * 16L; }
+
+    public void add (String s) { add(SketchHash.hash(s)); }
+    public void add (byte[] bytes) { add(SketchHash.hash(bytes)); }
+    public void add (long value) { add(SketchHash.hash(value)); }
+
+    public boolean remove (String s) { return remove(SketchHash.hash(s)); }
+    public boolean remove (byte[] bytes) { return remove(SketchHash.hash(bytes)); }
+    public boolean remove (long value) { return remove(SketchHash.hash(value)); }
+
+    public boolean mightContain (String s) { return mightContain(SketchHash.hash(s)); }
+    public boolean mightContain (byte[] bytes) { return mightContain(SketchHash.hash(bytes)); }
+    public boolean mightContain (long value) { return mightContain(SketchHash.hash(value)); }
+
+    private long[] indexes (HashCode hash) {
+        final long numCounters = getNumCounters();
+        final long h2 = SketchHash.upper(hash);
+        final long[] indexes = new long[numHashes];
+        long combined = hash.asLong();
+        for (int i=0; i<numHashes; i++) {
+            indexes[i] = (combined & Long.MAX_VALUE) % numCounters;
+            combined += h2;
+        }
+        return indexes;
+    }
+
+    private int getCounter (long index) { return (int) (words[(int) (index >>> 4)] >>> ((index & 15) << 2)) & 0xf; }
+
+    private void setCounter (long index, int count) {
+        final int word = (int) (index >>> 4);
+        final int shift = (int) (index & 15) << 2;
+        words[word] = (words[word] & ~(0xfL << shift)) | ((long) count << shift);
+    }
+
+    private synchronized void add (HashCode hash) {
+        for (long index : indexes(hash)) {
+            final int count = getCounter(index);
+            if (count < MAX_COUNT) setCounter(index, count + 1);
+        }
+    }
+
+    /**
+     * @return false if the element was definitely not in the filter, in which case nothing was changed
+     */
+    private synchronized boolean remove (HashCode hash) {
+        final long[] indexes = indexes(hash);
+        for (long index : indexes) if (getCounter(index) == 0) return false;
+        for (long index : indexes) {
+            final int count = getCounter(index);
+            if (count < MAX_COUNT) setCounter(index, count - 1);
+        }
+        return true;
+    }
+
+    private synchronized boolean mightContain (HashCode hash) {
+        for (long index : indexes(hash)) if (getCounter(index) == 0) return false;
+        return true;
+    }
+
+    /**
+     * @return the number of counters that have stuck at MAX_COUNT
+     */
+    @JsonIgnore public synchronized long getSaturatedCount () {
+        long count = 0;
+        final long numCounters = getNumCounters();
+        for (long i=0; i<numCounters; i++) if (getCounter(i) == MAX_COUNT) count++;
+        return count;
+    }
+
+    public boolean isCompatible (CountingBloomFilter other) {
+        return other != null && other.numHashes == numHashes && other.words.length == words.length;
+    }
+
+    /**
+     * Add all the elements of another filter to this one. Counters that would pass MAX_COUNT stick at MAX_COUNT.
+     * @param other a filter with the same number of counters and hashes
+     * @return this
+     */
+    public CountingBloomFilter merge (CountingBloomFilter other) {
+        if (!isCompatible(other)) die("merge: incompatible filter");
+        final long[] theirs;
+        synchronized (other) { theirs = other.words.clone(); }
+        synchronized (this) {
+            final long numCounters = getNumCounters();
+            for (long i=0; i<numCounters; i++) {
+                final int add = (int) (theirs[(int) (i >>> 4)] >>> ((i & 15) << 2)) & 0xf;
+                if (add != 0) setCounter(i, Math.min(getCounter(i) + add, MAX_COUNT));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return a plain BloomFilter with the same elements, which is 4 times smaller
+     */
+    public synchronized BloomFilter toBloomFilter () {
+        final BloomFilter filter = new BloomFilter(getNumCounters(), numHashes);
+        final long[] bits = new long[words.length / 4];
+        final long numCounters = getNumCounters();
+        for (long i=0; i<numCounters; i++) if (getCounter(i) != 0) bits[(int) (i >>> 6)] |= 1L << i;
+        filter.setBits(SketchHash.encode(bits));
+        return filter;
+    }
+
+    public synchronized void clear () { for (int i=0; i<words.length; i++) words[i] = 0; }
+
+    // for JSON
+    public synchronized void setNumHashes (int numHashes) { this.numHashes = numHashes; }
+
+    public synchronized String getCounters () { return SketchHash.encode(words); }
+
+    public synchronized void setCounters (String counters) { words = SketchHash.decodeLongs(counters); }
+
+    public String toJson () { return json(this); }
+
+    public static CountingBloomFilter fromJson (String json) { return fromJsonOrDie(json, CountingBloomFilter.class); }
+
+}
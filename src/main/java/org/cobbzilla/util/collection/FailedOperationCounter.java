@@ -1,47 +1,157 @@
 package org.cobbzilla.util.collection;
 
-import lombok.AllArgsConstructor;
 import lombok.Getter;
-import lombok.NoArgsConstructor;
-import lombok.Setter;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.Iterator;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
-import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+import static org.cobbzilla.util.daemon.ZillaRuntime.notSupported;
 
-@NoArgsConstructor @AllArgsConstructor @Accessors(chain=true) @Slf4j
+/**
+ * Counts failures per key, and tells when a key has failed maxFailures times within the last expiration millis.
+ *
+ * Failures are counted in a SlidingWindowCounter, so each key costs a small fixed amount of memory however often it
+ * fails, and the number of keys tracked is bounded by maxKeys.
+ *
+ * This is still a Map, for code written when it stored failure timestamps directly, but it no longer stores anything
+ * in the map itself: get returns a snapshot of a key's failures (bucket start time -> failures in that bucket),
+ * keySet, values and entrySet are snapshots too, remove, clear, size and isEmpty act on the counter, and the map
+ * cannot be written to except through fail.
+ */
+@Accessors(chain=true) @Slf4j
 public class FailedOperationCounter<T> extends ConcurrentHashMap<T, Map<Long, Long>> {
 
-    @Getter @Setter private long expiration = TimeUnit.MINUTES.toMillis(5);
-    @Getter @Setter private int maxFailures = 1;
+    @Getter private long expiration = TimeUnit.MINUTES.toMillis(5);
+    @Getter private int maxFailures = 1;
+    @Getter private int maxKeys = KeyedLimiterBase.DEFAULT_MAX_KEYS;
 
-    public void fail(T value) {
-        Map<Long, Long> failures = get(value);
-        if (failures == null) {
-            failures = new ConcurrentHashMap<>();
-            put(value, failures);
+    private transient volatile SlidingWindowCounter<T> counter;
+
+    public FailedOperationCounter () {}
+
+    public FailedOperationCounter (long expiration, int maxFailures) {
+        this.expiration = expiration;
+        this.maxFailures = maxFailures;
+    }
+
+    // failures already recorded are kept, as far as they fall within the new window
+    public FailedOperationCounter<T> setExpiration (long expiration) {
+        synchronized (this) {
+            this.expiration = expiration;
+            final SlidingWindowCounter<T> c = counter;
+            if (c != null) counter = c.resize(window(expiration));
         }
-        final long ftime = now();
-        failures.put(ftime, ftime);
+        return this;
+    }
+
+    public FailedOperationCounter<T> setMaxFailures (int maxFailures) { this.maxFailures = maxFailures; return this; }
+
+    public FailedOperationCounter<T> setMaxKeys (int maxKeys) {
+        this.maxKeys = maxKeys;
+        final SlidingWindowCounter<T> c = counter;
+        if (c != null) c.setMaxKeys(maxKeys);
+        return this;
     }
 
-    public boolean tooManyFailures(T value) {
-        final Map<Long, Long> failures = get(value);
-        if (failures == null) return false;
-        int count = 0;
-        for (Iterator<Long> iter = failures.keySet().iterator(); iter.hasNext();) {
-            Long ftime = iter.next();
-            if (now() - ftime > expiration) {
-                iter.remove();
-            } else {
-                if (++count >= maxFailures) return true;
+    private static long window (long expiration) { return Math.max(expiration, SlidingWindowCounter.DEFAULT_BUCKETS); }
+
+    private SlidingWindowCounter<T> getCounter () {
+        SlidingWindowCounter<T> c = counter;
+        if (c == null) {
+            synchronized (this) {
+                c = counter;
+                if (c == null) {
+                    c = new SlidingWindowCounter<>(window(expiration));
+                    c.setMaxKeys(maxKeys);
+                    counter = c;
+                }
             }
         }
-        return false;
+        return c;
     }
+
+    public void fail(T value) { getCounter().increment(value); }
+
+    public boolean tooManyFailures(T value) { return getCounter().count(value) >= maxFailures; }
+
+    /**
+     * @param value the key
+     * @return the number of failures for the key within the expiration window
+     */
+    public int getFailures(T value) { return getCounter().count(value); }
+
+    /**
+     * @param key the key
+     * @return the key's failures within the expiration window, by the start time of their bucket, or null if none
+     */
+    @Override public Map<Long, Long> get(Object key) {
+        final SortedMap<Long, Integer> counts = getCounter().getCounts((T) key);
+        if (counts.isEmpty()) return null;
+        final Map<Long, Long> failures = new LinkedHashMap<>(counts.size());
+        for (Map.Entry<Long, Integer> count : counts.entrySet()) failures.put(count.getKey(), count.getValue().longValue());
+        return Collections.unmodifiableMap(failures);
+    }
+
+    @Override public boolean containsKey(Object key) { return getCounter().count((T) key) > 0; }
+
+    /**
+     * Forget the failures for a key
+     * @param key the key
+     * @return the key's failures, as returned by get, or null if it had none
+     */
+    @Override public Map<Long, Long> remove(Object key) {
+        final Map<Long, Long> failures = get(key);
+        getCounter().remove(key);
+        return failures;
+    }
+
+    @Override public boolean remove(Object key, Object value) { return notSupported("remove(key, value): use remove(key)"); }
+
+    @Override public void clear() { getCounter().clear(); }
+
+    /**
+     * @return the number of keys tracked
+     */
+    @Override public int size() { return getCounter().size(); }
+
+    @Override public boolean isEmpty() { return getCounter().isEmpty(); }
+
+    private Map<T, Map<Long, Long>> snapshot () {
+        final Map<T, Map<Long, Long>> snapshot = new HashMap<>();
+        for (T key : getCounter().states().keySet()) {
+            final Map<Long, Long> failures = get(key);
+            if (failures != null) snapshot.put(key, failures);
+        }
+        return snapshot;
+    }
+
+    @Override public Set<T> keySet() { return snapshot().keySet(); }
+
+    @Override public Enumeration<T> keys() { return Collections.enumeration(keySet()); }
+
+    @Override public Set<Map.Entry<T, Map<Long, Long>>> entrySet() { return snapshot().entrySet(); }
+
+    @Override public Collection<Map<Long, Long>> values() { return snapshot().values(); }
+
+    @Override public Enumeration<Map<Long, Long>> elements() { return Collections.enumeration(values()); }
+
+    @Override public boolean equals(Object o) { return o == this || (o instanceof Map && snapshot().equals(o)); }
+
+    @Override public int hashCode() { return snapshot().hashCode(); }
+
+    @Override public String toString() { return snapshot().toString(); }
+
+    @Override public Map<Long, Long> put(T key, Map<Long, Long> value) { return notSupported("put: use fail"); }
+
+    @Override public Map<Long, Long> putIfAbsent(T key, Map<Long, Long> value) { return notSupported("putIfAbsent: use fail"); }
+
+    @Override public void putAll(Map<? extends T, ? extends Map<Long, Long>> m) { notSupported("putAll: use fail"); }
+
+    @Override public Map<Long, Long> replace(T key, Map<Long, Long> value) { return notSupported("replace: use fail"); }
+
+    @Override public boolean replace(T key, Map<Long, Long> oldValue, Map<Long, Long> newValue) { return notSupported("replace: use fail"); }
+
 }
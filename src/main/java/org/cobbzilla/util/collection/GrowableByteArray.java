@@ -0,0 +1,120 @@
+package org.cobbzilla.util.collection;
+
+import java.util.Arrays;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * A growable byte[], for collecting bytes without boxing them into a List&lt;Byte&gt;.
+ * Not thread-safe.
+ */
+public class GrowableByteArray {
+
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private byte[] values;
+    private int size;
+
+    public GrowableByteArray () { this(DEFAULT_CAPACITY); }
+
+    public GrowableByteArray (int capacity) {
+        if (capacity < 0) die("GrowableByteArray: invalid capacity: "+capacity);
+        values = new byte[capacity];
+    }
+
+    public GrowableByteArray (byte[] initial) {
+        values = Arrays.copyOf(initial, Math.max(initial.length, DEFAULT_CAPACITY));
+        size = initial.length;
+    }
+
+    public int size () { return size; }
+
+    public boolean isEmpty () { return size == 0; }
+
+    private void ensureCapacity (int needed) {
+        if (needed < 0) die("ensureCapacity: too large");
+        if (needed <= values.length) return;
+        final long grown = values.length + (values.length >> 1) + 1L;
+        values = Arrays.copyOf(values, (int) Math.min(Math.max(grown, needed), Integer.MAX_VALUE - 8));
+    }
+
+    public GrowableByteArray add (byte value) {
+        if (size == values.length) ensureCapacity(size + 1);
+        values[size++] = value;
+        return this;
+    }
+
+    public GrowableByteArray addAll (byte... more) { return addAll(more, 0, more.length); }
+
+    public GrowableByteArray addAll (byte[] more, int offset, int length) {
+        ensureCapacity(size + length);
+        System.arraycopy(more, offset, values, size, length);
+        size += length;
+        return this;
+    }
+
+    public byte get (int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("get: index "+index+" out of range, size="+size);
+        return values[index];
+    }
+
+    public byte set (int index, byte value) {
+        final byte old = get(index);
+        values[index] = value;
+        return old;
+    }
+
+    /**
+     * Remove the element at an index, shifting later elements down
+     * @param index the index to remove
+     * @return the element that was removed
+     */
+    public byte remove (int index) {
+        final byte old = get(index);
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        return old;
+    }
+
+    public byte removeLast () {
+        if (size == 0) throw new IndexOutOfBoundsException("removeLast: empty");
+        return values[--size];
+    }
+
+    /**
+     * Empty the buffer, keeping its capacity for reuse
+     */
+    public void clear () { size = 0; }
+
+    /**
+     * @return a copy of the elements, exactly size() long
+     */
+    public byte[] toArray () { return Arrays.copyOf(values, size); }
+
+    /**
+     * Release unused capacity
+     * @return this
+     */
+    public GrowableByteArray trim () {
+        if (values.length > size) values = Arrays.copyOf(values, size);
+        return this;
+    }
+
+    @Override public boolean equals (Object o) {
+        if (this == o) return true;
+        if (!(o instanceof GrowableByteArray)) return false;
+        final GrowableByteArray other = (GrowableByteArray) o;
+        if (size != other.size) return false;
+        for (int i=0; i<size; i++) if (values[i] != other.values[i]) return false;
+        return true;
+    }
+
+    @Override public int hashCode () {
+        int h = 1;
+        for (int i=0; i<size; i++) h = 31 * h + values[i];
+        return h;
+    }
+
+    @Override public String toString () { return Arrays.toString(toArray()); }
+
+}
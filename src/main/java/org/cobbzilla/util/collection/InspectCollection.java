@@ -2,30 +2,207 @@ package org.cobbzilla.util.collection;
 
 import java.util.*;
 
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * Graph methods take a Map from each node to the nodes it points to. Targets that are not keys in the map are
+ * nodes with no outgoing edges. All of them are iterative and run in time linear in the size of the graph, so deep
+ * or dense graphs neither overflow the stack nor blow up.
+ */
 public class InspectCollection {
 
     public static boolean containsCircularReference(String start, Map<String, List<String>> graph) {
         return containsCircularReference(new HashSet<String>(), start, graph);
     }
 
+    /**
+     * @param found nodes to treat as already on the path: reaching any of them counts as a circular reference
+     * @param start the node to start from
+     * @param graph the graph
+     * @return true if a cycle, or a node in found, is reachable from start
+     */
     public static boolean containsCircularReference(Set<String> found, String start, Map<String, List<String>> graph) {
-        final List<String> descendents = graph.get(start);
-        if (descendents == null) return false; // special case: our starting point is outside the graph.
-        for (String target : descendents)  {
-            if (found.contains(target)) {
-                // we've seen this target already, we have a circular reference
-                return true;
-            }
-            if (graph.containsKey(target)) {
-                // this target is also a member of the graph -- add to found and recurse
-                found.add(target);
-                if (containsCircularReference(new HashSet<>(found), target, graph)) return true;
+        if (!graph.containsKey(start)) return false; // special case: our starting point is outside the graph.
+
+        // depth-first, with an explicit stack. a node is "open" while it is on the current path, and "done" once
+        // everything below it has been explored without finding a cycle, so each node and edge is visited once.
+        final Set<String> open = new HashSet<>();
+        final Set<String> done = new HashSet<>();
+        final Deque<String> nodes = new ArrayDeque<>();
+        final Deque<Iterator<String>> edges = new ArrayDeque<>();
+        open.add(start);
+        nodes.push(start);
+        edges.push(targets(graph, start).iterator());
+        while (!nodes.isEmpty()) {
+            final Iterator<String> iter = edges.peek();
+            if (!iter.hasNext()) {
+                final String node = nodes.pop();
+                edges.pop();
+                open.remove(node);
+                done.add(node);
+                continue;
             }
-            // no "else" clause here: we don't care about anything not in the graph, it can't create a circular reference.
+            final String target = iter.next();
+            if (open.contains(target) || found.contains(target)) return true;
+            // we don't care about anything not in the graph, it can't create a circular reference.
+            if (done.contains(target) || !graph.containsKey(target)) continue;
+            open.add(target);
+            nodes.push(target);
+            edges.push(targets(graph, target).iterator());
         }
         return false;
     }
 
+    private static List<String> targets(Map<String, List<String>> graph, String node) {
+        final List<String> targets = graph.get(node);
+        return targets == null ? Collections.<String>emptyList() : targets;
+    }
+
+    /**
+     * @param graph the graph
+     * @return true if the graph contains any cycle, including a node that points to itself
+     */
+    public static boolean hasCycle(Map<String, List<String>> graph) { return !findCycles(graph).isEmpty(); }
+
+    /**
+     * Find the cycles in a graph, as its strongly connected components (Tarjan's algorithm): each group of nodes
+     * that can all reach each other. A node that points to itself is a group of one.
+     * @param graph the graph
+     * @return the groups of nodes that form cycles, empty if there are none
+     */
+    public static List<List<String>> findCycles(Map<String, List<String>> graph) {
+        final IndexedGraph g = new IndexedGraph(graph);
+        final int n = g.names.size();
+        final int[] index = new int[n];
+        final int[] lowLink = new int[n];
+        final boolean[] onStack = new boolean[n];
+        Arrays.fill(index, -1);
+
+        final int[] sccStack = new int[n];
+        int sccTop = 0;
+        final int[] callNode = new int[n];
+        final int[] callEdge = new int[n];
+        int nextIndex = 0;
+        final List<List<String>> cycles = new ArrayList<>();
+
+        for (int root=0; root<n; root++) {
+            if (index[root] != -1) continue;
+            int depth = 0;
+            callNode[0] = root;
+            callEdge[0] = 0;
+            index[root] = lowLink[root] = nextIndex++;
+            sccStack[sccTop++] = root;
+            onStack[root] = true;
+
+            while (depth >= 0) {
+                final int v = callNode[depth];
+                final int[] targets = g.edges[v];
+                if (callEdge[depth] < targets.length) {
+                    final int w = targets[callEdge[depth]++];
+                    if (index[w] == -1) {
+                        // "recurse" into w
+                        index[w] = lowLink[w] = nextIndex++;
+                        sccStack[sccTop++] = w;
+                        onStack[w] = true;
+                        depth++;
+                        callNode[depth] = w;
+                        callEdge[depth] = 0;
+                    } else if (onStack[w]) {
+                        lowLink[v] = Math.min(lowLink[v], index[w]);
+                    }
+                    continue;
+                }
+                // all of v's edges are done: if v is the root of a component, pop the component
+                if (lowLink[v] == index[v]) {
+                    final List<String> component = new ArrayList<>();
+                    int w;
+                    do {
+                        w = sccStack[--sccTop];
+                        onStack[w] = false;
+                        component.add(g.names.get(w));
+                    } while (w != v);
+                    if (component.size() > 1 || g.hasSelfLoop(v)) {
+                        Collections.reverse(component);
+                        cycles.add(component);
+                    }
+                }
+                depth--;
+                if (depth >= 0) {
+                    final int parent = callNode[depth];
+                    lowLink[parent] = Math.min(lowLink[parent], lowLink[v]);
+                }
+            }
+        }
+        return cycles;
+    }
+
+    /**
+     * Order the nodes of a graph so that every node comes before all the nodes it points to (Kahn's algorithm).
+     * Nodes with no ordering between them keep the order in which they first appear in the graph.
+     * @param graph the graph
+     * @return every node of the graph, in topological order
+     * @throws IllegalStateException (via die) if the graph has a cycle, naming the nodes involved
+     */
+    public static List<String> topologicalSort(Map<String, List<String>> graph) {
+        final IndexedGraph g = new IndexedGraph(graph);
+        final int n = g.names.size();
+        final int[] inDegree = new int[n];
+        for (int[] targets : g.edges) for (int t : targets) inDegree[t]++;
+
+        final int[] queue = new int[n];
+        int head = 0, tail = 0;
+        for (int i=0; i<n; i++) if (inDegree[i] == 0) queue[tail++] = i;
+
+        final List<String> sorted = new ArrayList<>(n);
+        while (head < tail) {
+            final int v = queue[head++];
+            sorted.add(g.names.get(v));
+            for (int t : g.edges[v]) if (--inDegree[t] == 0) queue[tail++] = t;
+        }
+        if (sorted.size() < n) return die("topologicalSort: graph has cycles: "+findCycles(graph));
+        return sorted;
+    }
+
+    /**
+     * The graph with nodes numbered in order of first appearance and edges as int arrays
+     */
+    private static class IndexedGraph {
+        final List<String> names = new ArrayList<>();
+        final int[][] edges;
+
+        IndexedGraph (Map<String, List<String>> graph) {
+            final Map<String, Integer> ids = new HashMap<>();
+            final List<int[]> edgeList = new ArrayList<>();
+            for (Map.Entry<String, List<String>> entry : graph.entrySet()) {
+                final int from = id(ids, entry.getKey(), edgeList);
+                final List<String> targets = entry.getValue();
+                if (targets == null || targets.isEmpty()) continue;
+                final int[] out = new int[targets.size()];
+                for (int i=0; i<out.length; i++) out[i] = id(ids, targets.get(i), edgeList);
+                edgeList.set(from, out);
+            }
+            edges = edgeList.toArray(new int[edgeList.size()][]);
+        }
+
+        private int id (Map<String, Integer> ids, String name, List<int[]> edgeList) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = names.size();
+                ids.put(name, id);
+                names.add(name);
+                edgeList.add(EMPTY);
+            }
+            return id;
+        }
+
+        boolean hasSelfLoop (int v) {
+            for (int t : edges[v]) if (t == v) return true;
+            return false;
+        }
+
+        private static final int[] EMPTY = new int[0];
+    }
+
     public static boolean isLargerThan (Collection c, int size) {
         int count = 0;
         final Iterator i = c.iterator();
@@ -0,0 +1,214 @@
+package org.cobbzilla.util.collection;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.daemon.DaemonThreadFactory;
+import org.cobbzilla.util.time.ClockProvider;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-key state for rate limiters and failure counters, bounded in the number of keys it tracks.
+ *
+ * Each key has a small state object. States that have gone idle (nothing left to remember) are swept out every
+ * getSweepInterval() millis. If there are still more than maxKeys keys (say, under attack traffic with random keys),
+ * the least recently used quarter is evicted, so memory stays bounded however many distinct keys are seen.
+ *
+ * Sweeps scan every key, so they run on getSweepExecutor() (by default, one daemon thread shared by all limiters),
+ * never on the thread that was counting or acquiring. Until a sweep catches up, there can briefly be more than
+ * maxKeys keys.
+ *
+ * A state is marked removed, under its lock, when it is dropped. Subclasses that get a state from state() must check
+ * removed after locking it, and if it is set, get the state again: otherwise their update could land on a state
+ * that is no longer tracked, and be lost.
+ *
+ * @param <K> key class
+ * @param <S> state class
+ */
+@Accessors(chain=true) @Slf4j
+public abstract class KeyedLimiterBase<K, S extends KeyedLimiterBase.KeyState> {
+
+    public static final int DEFAULT_MAX_KEYS = 100_000;
+    public static final double EVICT_TO = 0.75;
+
+    public static abstract class KeyState {
+        volatile long lastUsed;
+        protected boolean removed; // guarded by the state's lock
+    }
+
+    private static class SharedSweeper {
+        static final ExecutorService instance = DaemonThreadFactory.fixedPool(1);
+    }
+
+    @Getter @Setter private int maxKeys = DEFAULT_MAX_KEYS;
+    @Getter @Setter private ClockProvider clock = ClockProvider.ZILLA;
+
+    private final ConcurrentHashMap<K, S> states = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean(false); // a background sweep is queued or running
+    private final Object sweepLock = new Object();
+    private volatile boolean enforceMaxPending = false;
+    private final AtomicLong nextSweep = new AtomicLong();
+    @Getter private final AtomicLong evictions = new AtomicLong();
+
+    protected abstract S newState (long now);
+
+    /**
+     * @param state a state
+     * @param now the current time
+     * @return true if the state holds nothing worth keeping, so the key can be dropped
+     */
+    protected abstract boolean isIdle (S state, long now);
+
+    /**
+     * @return how often to sweep out idle states, in millis
+     */
+    protected abstract long getSweepInterval ();
+
+    protected long now () { return clock.now(); }
+
+    /**
+     * Override to run sweeps for this limiter somewhere else
+     * @return the executor to sweep on
+     */
+    protected Executor getSweepExecutor () { return SharedSweeper.instance; }
+
+    /**
+     * @return the number of keys tracked
+     */
+    public int size () { return states.size(); }
+
+    public boolean isEmpty () { return states.isEmpty(); }
+
+    /**
+     * Forget a key
+     * @param key the key
+     * @return true if the key was tracked
+     */
+    public boolean remove (Object key) {
+        final S state = states.get(key);
+        return state != null && drop((K) key, state);
+    }
+
+    public void clear () { for (K key : states.keySet()) remove(key); }
+
+    private boolean drop (K key, S state) {
+        synchronized (state) {
+            if (!states.remove(key, state)) return false;
+            state.removed = true;
+            return true;
+        }
+    }
+
+    /**
+     * @return the tracked keys and their states. Callers must synchronize on a state to use it.
+     */
+    protected Map<K, S> states () { return states; }
+
+    /**
+     * @param key the key
+     * @return the key's state, or null if it is not tracked. Callers must synchronize on the state to use it.
+     */
+    protected S peek (K key) { return states.get(key); }
+
+    /**
+     * @param key the key
+     * @param now the current time
+     * @return the key's state, created if needed. Callers must synchronize on the state to use it, and get it again
+     * if it has been removed.
+     */
+    protected S state (K key, long now) {
+        S state = states.get(key);
+        if (state == null) {
+            final S created = newState(now);
+            created.lastUsed = now; // before it is visible, so a sweep never drops it as idle
+            state = states.putIfAbsent(key, created);
+            if (state == null) {
+                state = created;
+                if (states.size() > maxKeys) sweepLater(true);
+            }
+        }
+        state.lastUsed = now;
+        final long next = nextSweep.get();
+        if (now >= next && nextSweep.compareAndSet(next, now + getSweepInterval())) sweepLater(false);
+        return state;
+    }
+
+    /**
+     * Drop idle keys, and then, if there are still too many, the least recently used ones. This sweeps on the
+     * calling thread, after waiting for any background sweep to finish.
+     */
+    public void cleanUp () { sweep(now(), true); }
+
+    private void sweepLater (boolean enforceMax) {
+        if (enforceMax) enforceMaxPending = true;
+        if (!sweeping.compareAndSet(false, true)) return; // a sweep is already on its way
+        try {
+            getSweepExecutor().execute(sweeper);
+        } catch (RejectedExecutionException e) {
+            log.warn("sweepLater: sweep rejected: "+e);
+            sweeping.set(false);
+        }
+    }
+
+    private final Runnable sweeper = new Runnable() {
+        @Override public void run() {
+            try {
+                final boolean enforceMax = enforceMaxPending;
+                enforceMaxPending = false;
+                sweep(now(), enforceMax);
+            } catch (Exception e) {
+                log.warn("sweeper: error sweeping: "+e, e);
+            } finally {
+                sweeping.set(false);
+            }
+            // keys added while we swept may have gone over the limit again, with nobody left to start a sweep
+            if (states.size() > maxKeys) sweepLater(true);
+        }
+    };
+
+    private void sweep (long now, boolean enforceMax) {
+        synchronized (sweepLock) {
+            for (Iterator<Map.Entry<K, S>> iter = states.entrySet().iterator(); iter.hasNext(); ) {
+                final Map.Entry<K, S> entry = iter.next();
+                final S state = entry.getValue();
+                synchronized (state) {
+                    // keep states used since the sweep started: their user is likely about to update them
+                    if (isIdle(state, now) && state.lastUsed < now) drop(entry.getKey(), state);
+                }
+            }
+            if (enforceMax && states.size() > maxKeys) evictLeastRecentlyUsed();
+        }
+    }
+
+    private void evictLeastRecentlyUsed () {
+        final int target = (int) (maxKeys * EVICT_TO);
+        final long[] used = new long[states.size()];
+        int n = 0;
+        for (S state : states.values()) {
+            if (n == used.length) break;
+            used[n++] = state.lastUsed;
+        }
+        final int toEvict = n - target;
+        if (toEvict <= 0) return;
+        Arrays.sort(used, 0, n);
+        final long cutoff = used[toEvict - 1];
+        int evicted = 0;
+        for (Iterator<Map.Entry<K, S>> iter = states.entrySet().iterator(); iter.hasNext() && evicted < toEvict; ) {
+            final Map.Entry<K, S> entry = iter.next();
+            if (entry.getValue().lastUsed <= cutoff && drop(entry.getKey(), entry.getValue())) evicted++;
+        }
+        evictions.addAndGet(evicted);
+        log.warn("evictLeastRecentlyUsed: more than "+maxKeys+" keys, evicted "+evicted);
+    }
+
+}
@@ -1,6 +1,5 @@
 package org.cobbzilla.util.collection;
 
-import com.google.common.collect.Lists;
 import org.cobbzilla.util.reflect.ReflectionUtil;
 
 import java.util.*;
@@ -16,8 +15,6 @@ public class ListUtil {
         return newList;
     }
 
-    // adapted from: https://stackoverflow.com/a/23870892/1251543
-
     /**
      * Combines several collections of elements and create permutations of all of them, taking one element from each
      * collection, and keeping the same order in resultant lists as the one in original list of collections.
@@ -27,33 +24,15 @@ public class ListUtil {
      * <li>Output = { {a,1} , {a,2} , {a,3} , {a,4} , {b,1} , {b,2} , {b,3} , {b,4} , {c,1} , {c,2} , {c,3} , {c,4} }</li>
      * </ul>
      *
+     * The permutations are generated lazily, as they are iterated, so large products never have to fit in memory.
+     * See CartesianProduct for the count, random access by rank, and splitting for parallel processing.
+     *
      * @param collections Original list of collections which elements have to be combined.
-     * @return Resultant collection of lists with all permutations of original list.
+     * @return Resultant collection of lists with all permutations of original list. It is read-only, and is a
+     * CartesianProduct.
      */
     public static <T> List<List<T>> permutations(List<List<T>> collections) {
-        if (collections == null || collections.isEmpty()) {
-            return Collections.emptyList();
-        } else {
-            List<List<T>> res = Lists.newLinkedList();
-            permutationsImpl(collections, res, 0, new LinkedList<T>());
-            return res;
-        }
-    }
-
-    private static <T> void permutationsImpl(List<List<T>> ori, Collection<List<T>> res, int d, List<T> current) {
-        // if depth equals number of original collections, final reached, add and return
-        if (d == ori.size()) {
-            res.add(current);
-            return;
-        }
-
-        // iterate from current collection and copy 'current' element N times, one for each element
-        Collection<T> currentCollection = ori.get(d);
-        for (T element : currentCollection) {
-            List<T> copy = Lists.newLinkedList(current);
-            copy.add(element);
-            permutationsImpl(ori, res, d + 1, copy);
-        }
+        return new CartesianProduct<>(collections);
     }
 
     public static List<Object> expand(Object[] things, Map<String, Object> context) {
@@ -0,0 +1,251 @@
+package org.cobbzilla.util.collection;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import lombok.Getter;
+
+import java.util.*;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.notSupported;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+
+/**
+ * A Set whose elements are identified by a 64-bit key, like CustomHashSet is by a String key, but without building
+ * a String (or any other object) for each add, contains or remove. Keys and elements live in two flat arrays of an
+ * open-addressing table, which costs a fraction of the memory of a ConcurrentHashMap of Strings, so it suits large
+ * dedup sets.
+ *
+ * Two different elements can have the same 64-bit key. By default they are then considered the same element (as
+ * with CustomHashSet, the key is the identity). If verifyEquals is true, elements with the same key are also
+ * compared with equals, and both are kept if they differ.
+ *
+ * Unlike CustomHashSet, this class is not thread-safe: use Collections.synchronizedSet to share one. Its iterator
+ * does not support remove: use remove, removeAll or retainAll instead.
+ */
+public class LongHashSet<E> extends AbstractSet<E> {
+
+    public interface LongHasher<E> { long hash (E thing); }
+
+    public static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    /**
+     * Helpers for writing LongHashers
+     * @param s a String
+     * @return the first 64 bits of the murmur3 hash of the String's UTF-8 bytes
+     */
+    public static long hash64 (String s) { return HASH_FUNCTION.hashString(s, UTF8cs).asLong(); }
+
+    public static long hash64 (byte[] bytes) { return HASH_FUNCTION.hashBytes(bytes).asLong(); }
+
+    @Getter private final Class<E> elementClass;
+    @Getter private final LongHasher<E> hasher;
+    @Getter private final boolean verifyEquals;
+
+    private long[] keys;
+    private Object[] elements; // a null slot is an empty slot
+    private int mask;
+    private int resizeAt;
+    private int size;
+    private int modCount;
+
+    public LongHashSet (Class<E> elementClass, LongHasher<E> hasher) { this(elementClass, hasher, false, DEFAULT_CAPACITY); }
+
+    public LongHashSet (Class<E> elementClass, LongHasher<E> hasher, boolean verifyEquals) {
+        this(elementClass, hasher, verifyEquals, DEFAULT_CAPACITY);
+    }
+
+    public LongHashSet (Class<E> elementClass, LongHasher<E> hasher, boolean verifyEquals, int expectedSize) {
+        this.elementClass = elementClass;
+        this.hasher = hasher;
+        this.verifyEquals = verifyEquals;
+        allocate(tableSize(expectedSize));
+    }
+
+    public LongHashSet (Class<E> elementClass, LongHasher<E> hasher, boolean verifyEquals, Collection<E> collection) {
+        this(elementClass, hasher, verifyEquals, collection.size());
+        addAll(collection);
+    }
+
+    private static int tableSize (int expectedSize) {
+        final long needed = (long) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR);
+        if (needed > (1 << 30)) return die("tableSize: too many elements: "+expectedSize);
+        return Integer.highestOneBit((int) Math.max(needed - 1, 1)) << 1;
+    }
+
+    private void allocate (int capacity) {
+        keys = new long[capacity];
+        elements = new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    // keys are often sequential ids or weak hashes: spread them before masking
+    private static int spread (long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slot (long key, Object thing) {
+        int i = spread(key) & mask;
+        while (elements[i] != null) {
+            if (keys[i] == key && (thing == null || !verifyEquals || thing.equals(elements[i]))) return i;
+            i = (i + 1) & mask;
+        }
+        return -(i + 1);
+    }
+
+    private E cast (Object o) {
+        return o != null && elementClass.isAssignableFrom(o.getClass()) ? (E) o : null;
+    }
+
+    @Override public int size() { return size; }
+
+    @Override public boolean isEmpty() { return size == 0; }
+
+    @Override public boolean contains(Object o) {
+        final E thing = cast(o);
+        return thing != null && slot(hasher.hash(thing), thing) >= 0;
+    }
+
+    /**
+     * @param key a key, as returned by the hasher
+     * @return true if any element has this key
+     */
+    public boolean containsKey(long key) { return slot(key, null) >= 0; }
+
+    /**
+     * @param e an element
+     * @return the element in the set that matches e, or null if there is none
+     */
+    public E find(E e) {
+        final int i = slot(hasher.hash(e), e);
+        return i < 0 ? null : (E) elements[i];
+    }
+
+    @Override public boolean add(E e) {
+        if (e == null) return die("add: null element");
+        final long key = hasher.hash(e);
+        int i = slot(key, e);
+        if (i >= 0) return false;
+        if (size >= resizeAt) {
+            rehash(keys.length << 1);
+            i = slot(key, e);
+        }
+        i = -(i + 1);
+        keys[i] = key;
+        elements[i] = e;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    private void rehash (int capacity) {
+        if (capacity <= 0) die("rehash: table too large");
+        final long[] oldKeys = keys;
+        final Object[] oldElements = elements;
+        allocate(capacity);
+        for (int i=0; i<oldKeys.length; i++) {
+            if (oldElements[i] == null) continue;
+            int j = spread(oldKeys[i]) & mask;
+            while (elements[j] != null) j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            elements[j] = oldElements[i];
+        }
+    }
+
+    @Override public boolean remove(Object o) {
+        final E thing = cast(o);
+        if (thing == null) return false;
+        final int i = slot(hasher.hash(thing), thing);
+        if (i < 0) return false;
+        removeSlot(i);
+        return true;
+    }
+
+    private void removeSlot (int i) {
+        // backward-shift deletion: pull later entries of the probe sequence into the gap, so lookups never stop early
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (elements[j] == null) break;
+            final int home = spread(keys[j]) & mask;
+            if ((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))) {
+                keys[i] = keys[j];
+                elements[i] = elements[j];
+                i = j;
+            }
+        }
+        elements[i] = null;
+        size--;
+        modCount++;
+    }
+
+    @Override public boolean removeAll(Collection<?> c) {
+        boolean anyRemoved = false;
+        for (Object o : c) if (remove(o)) anyRemoved = true;
+        return anyRemoved;
+    }
+
+    @Override public boolean retainAll(Collection<?> c) {
+        final long[] oldKeys = keys;
+        final Object[] oldElements = elements;
+        final int before = size;
+        allocate(keys.length);
+        size = 0;
+        modCount++;
+        for (int i=0; i<oldKeys.length; i++) {
+            if (oldElements[i] == null || !c.contains(oldElements[i])) continue;
+            int j = spread(oldKeys[i]) & mask;
+            while (elements[j] != null) j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            elements[j] = oldElements[i];
+            size++;
+        }
+        return size != before;
+    }
+
+    @Override public void clear() {
+        Arrays.fill(elements, null);
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Shrink the table to fit the current size
+     * @return this
+     */
+    public LongHashSet<E> trim () {
+        final int capacity = tableSize(size);
+        if (capacity < keys.length) rehash(capacity);
+        return this;
+    }
+
+    @Override public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private final int expectedModCount = modCount;
+            private int next = advance(0);
+
+            private int advance (int i) {
+                while (i < elements.length && elements[i] == null) i++;
+                return i;
+            }
+
+            @Override public boolean hasNext() { return next < elements.length; }
+
+            @Override public E next() {
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                if (next >= elements.length) throw new NoSuchElementException();
+                final E e = (E) elements[next];
+                next = advance(next + 1);
+                return e;
+            }
+
+            @Override public void remove() { notSupported("remove: use LongHashSet.remove"); }
+        };
+    }
+
+}
@@ -68,4 +68,19 @@ public class MapBuilder {
         return map;
     }
 
-}
\ No newline at end of file
+    /**
+     * Usage:
+     *  PersistentHashMap<K,V> base = MapBuilder.persistent(new Object[][]{ {k,v}, {k,v}, ... });
+     *  PersistentHashMap<K,V> perRequest = base.plus(k, v); // base is unchanged, and shares its structure
+     * @param values [x][2] array. items at [x][0] are keys and [x][1] are values.
+     * @return an immutable PersistentHashMap with the "values" mappings
+     */
+    public static <K,V> PersistentHashMap<K,V> persistent(Object[][] values) {
+        PersistentHashMap<K,V> map = PersistentHashMap.empty();
+        for (Object[] value : values) {
+            map = map.plus((K) value[0], (V) value[1]);
+        }
+        return map;
+    }
+
+}
@@ -17,9 +17,17 @@ public class MapUtil {
     }
 
     public static <K, V> boolean deepEquals (Map<K, V>  m1, Map<K, V>  m2) {
+        if (m1 == m2) return true;
         if (m1 == null) return m2 == null;
         if (m2 == null) return false;
         if (m1.size() != m2.size()) return false;
+        if (m1 instanceof PersistentHashMap && m2 instanceof PersistentHashMap) {
+            // the same trie is equal. cached hashes are never stale, so if they differ the maps do too
+            final PersistentHashMap<K, V> p1 = (PersistentHashMap<K, V>) m1;
+            final PersistentHashMap<K, V> p2 = (PersistentHashMap<K, V>) m2;
+            if (p1.sharesRootWith(p2)) return true;
+            if (p1.hashesDiffer(p2)) return false;
+        }
         final Set<Map.Entry<K, V>> set = m1.entrySet();
         for (Map.Entry<K, V>  e : set) {
             V m1v = e.getValue();
@@ -33,6 +41,11 @@ public class MapUtil {
     }
 
     public static <K, V> int deepHash(Map<K, V> m) {
+        if (m instanceof PersistentHashMap) return ((PersistentHashMap<K, V>) m).deepHash(); // cached
+        return computeDeepHash(m);
+    }
+
+    static <K, V> int computeDeepHash(Map<K, V> m) {
         int hash = 0;
         for (Map.Entry<K, V>  e : m.entrySet()) {
             hash = (31 * hash) + e.getKey().hashCode() + (31 * e.getValue().hashCode());
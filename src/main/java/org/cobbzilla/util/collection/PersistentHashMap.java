@@ -0,0 +1,379 @@
+package org.cobbzilla.util.collection;
+
+import java.util.*;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * An immutable Map whose updates return a new map that shares all unchanged structure with the old one, so
+ * "copy and tweak" costs O(log n) time and memory instead of a full copy.
+ *
+ * This is a hash array mapped trie (HAMT): each level of the trie uses 5 bits of the key's hash to pick one of up
+ * to 32 children, stored compactly with a bitmap. Lookups and updates touch at most 7 levels. Keys with the same
+ * hash share a collision node.
+ *
+ * Use plus, plusAll and minus to derive new maps; the mutators of Map throw UnsupportedOperationException. Null
+ * keys are not allowed, null values are. Iteration order is determined by the keys' hashes, not insertion order.
+ *
+ * If every value is of a known immutable type (Strings, boxed primitives, BigInteger, BigDecimal, enums, or
+ * PersistentHashMaps that qualify themselves), hashCode and MapUtil.deepHash are computed once and cached. Otherwise,
+ * as with any map holding mutable values, they are recomputed on every call.
+ *
+ * @param <K> key class
+ * @param <V> value class
+ */
+public class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+
+    private static final Object NOT_FOUND = new Object();
+    private static final PersistentHashMap EMPTY = new PersistentHashMap(null, 0);
+
+    private final Node root;
+    private final int size;
+    private volatile int hash;
+    private volatile boolean hashed;
+    private volatile int deepHash;
+    private volatile boolean deepHashed;
+    private volatile int immutable; // 0: not checked yet, 1: every value is immutable, 2: some value may not be
+
+    private static final Set<Class<?>> IMMUTABLE_VALUE_CLASSES = new HashSet<Class<?>>(Arrays.asList(
+            String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class,
+            Float.class, Double.class, java.math.BigInteger.class, java.math.BigDecimal.class));
+
+    private PersistentHashMap (Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public static <K, V> PersistentHashMap<K, V> empty () { return (PersistentHashMap<K, V>) EMPTY; }
+
+    public static <K, V> PersistentHashMap<K, V> of (Map<? extends K, ? extends V> map) {
+        if (map instanceof PersistentHashMap) return (PersistentHashMap<K, V>) map;
+        return PersistentHashMap.<K, V>empty().plusAll(map);
+    }
+
+    private static int hash (Object key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    @Override public int size() { return size; }
+
+    @Override public boolean isEmpty() { return size == 0; }
+
+    @Override public V get(Object key) {
+        if (key == null || root == null) return null;
+        final Object found = root.find(0, hash(key), key);
+        return found == NOT_FOUND ? null : (V) found;
+    }
+
+    @Override public boolean containsKey(Object key) {
+        return key != null && root != null && root.find(0, hash(key), key) != NOT_FOUND;
+    }
+
+    /**
+     * @param key the key
+     * @param value the value
+     * @return a map with the key mapped to the value. If it already was (the same value instance), this map.
+     */
+    public PersistentHashMap<K, V> plus (K key, V value) {
+        if (key == null) return die("plus: null key");
+        final boolean[] added = new boolean[1];
+        final Node start = root == null ? BitmapNode.EMPTY : root;
+        final Node newRoot = start.assoc(0, hash(key), key, value, added);
+        if (newRoot == root) return this;
+        return new PersistentHashMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    public PersistentHashMap<K, V> plusAll (Map<? extends K, ? extends V> map) {
+        PersistentHashMap<K, V> result = this;
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) result = result.plus(entry.getKey(), entry.getValue());
+        return result;
+    }
+
+    /**
+     * @param key the key
+     * @return a map without the key. If the key was not there, this map.
+     */
+    public PersistentHashMap<K, V> minus (Object key) {
+        if (key == null || root == null) return this;
+        final Node newRoot = root.without(0, hash(key), key);
+        if (newRoot == root) return this;
+        return newRoot == null ? PersistentHashMap.<K, V>empty() : new PersistentHashMap<K, V>(newRoot, size - 1);
+    }
+
+    /**
+     * @param other another map
+     * @return true if both maps are the same trie, which means they are equal without comparing any entries
+     */
+    public boolean sharesRootWith (PersistentHashMap<?, ?> other) { return other != null && other.root == root; }
+
+    /**
+     * @return true if every value is of a known immutable type, so the hashes can be cached. Checked once.
+     */
+    boolean hasImmutableValues () {
+        int i = immutable;
+        if (i == 0) {
+            i = 1;
+            for (V value : values()) {
+                if (value != null && !IMMUTABLE_VALUE_CLASSES.contains(value.getClass()) && !(value instanceof Enum)
+                        && !(value instanceof PersistentHashMap && ((PersistentHashMap<?, ?>) value).hasImmutableValues())) {
+                    i = 2;
+                    break;
+                }
+            }
+            immutable = i;
+        }
+        return i == 1;
+    }
+
+    @Override public int hashCode() {
+        if (hashed) return hash;
+        final int h = super.hashCode();
+        if (hasImmutableValues()) {
+            hash = h;
+            hashed = true;
+        }
+        return h;
+    }
+
+    /**
+     * @param other another map
+     * @return true if both maps have cached hashes and they differ, which means the maps are not equal. Hashes are
+     * only cached when they can't go stale.
+     */
+    boolean hashesDiffer (PersistentHashMap<?, ?> other) { return hashed && other.hashed && hash != other.hash; }
+
+    @Override public boolean equals(Object o) {
+        if (o == this) return true;
+        if (o instanceof PersistentHashMap) {
+            final PersistentHashMap<?, ?> other = (PersistentHashMap<?, ?>) o;
+            if (other.size != size) return false;
+            if (other.root == root) return true;
+            if (hashesDiffer(other)) return false;
+        }
+        return super.equals(o);
+    }
+
+    /**
+     * @return MapUtil.deepHash of this map, computed once if the values are immutable
+     */
+    int deepHash () {
+        if (deepHashed) return deepHash;
+        final int h = MapUtil.computeDeepHash(this);
+        if (hasImmutableValues()) {
+            deepHash = h;
+            deepHashed = true;
+        }
+        return h;
+    }
+
+    @Override public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override public int size() { return size; }
+            @Override public Iterator<Map.Entry<K, V>> iterator() { return new EntryIterator<>(root); }
+            @Override public boolean contains(Object o) {
+                if (!(o instanceof Map.Entry)) return false;
+                final Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                if (e.getKey() == null || root == null) return false;
+                final Object found = root.find(0, hash(e.getKey()), e.getKey());
+                return found != NOT_FOUND && (found == null ? e.getValue() == null : found.equals(e.getValue()));
+            }
+        };
+    }
+
+    private static abstract class Node {
+        abstract Object find (int shift, int hash, Object key);
+        abstract Node assoc (int shift, int hash, Object key, Object value, boolean[] added);
+        abstract Node without (int shift, int hash, Object key);
+        // key/value pairs, or (null, child node) pairs
+        abstract Object[] array ();
+    }
+
+    private static Object[] copyAndSet (Object[] array, int i, Object a) {
+        final Object[] copy = array.clone();
+        copy[i] = a;
+        return copy;
+    }
+
+    private static Object[] copyAndSet (Object[] array, int i, Object a, int j, Object b) {
+        final Object[] copy = array.clone();
+        copy[i] = a;
+        copy[j] = b;
+        return copy;
+    }
+
+    private static Object[] removePair (Object[] array, int pair) {
+        final Object[] copy = new Object[array.length - 2];
+        System.arraycopy(array, 0, copy, 0, 2 * pair);
+        System.arraycopy(array, 2 * (pair + 1), copy, 2 * pair, copy.length - 2 * pair);
+        return copy;
+    }
+
+    private static class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] array;
+
+        BitmapNode (int bitmap, Object[] array) { this.bitmap = bitmap; this.array = array; }
+
+        @Override Object[] array () { return array; }
+
+        private static int bit (int hash, int shift) { return 1 << ((hash >>> shift) & 31); }
+
+        private int index (int bit) { return Integer.bitCount(bitmap & (bit - 1)); }
+
+        @Override Object find (int shift, int hash, Object key) {
+            final int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) return NOT_FOUND;
+            final int idx = index(bit);
+            final Object k = array[2 * idx];
+            final Object v = array[2 * idx + 1];
+            if (k == null) return ((Node) v).find(shift + 5, hash, key);
+            return key.equals(k) ? v : NOT_FOUND;
+        }
+
+        @Override Node assoc (int shift, int hash, Object key, Object value, boolean[] added) {
+            final int bit = bit(hash, shift);
+            final int idx = index(bit);
+            if ((bitmap & bit) != 0) {
+                final Object k = array[2 * idx];
+                final Object v = array[2 * idx + 1];
+                if (k == null) {
+                    final Node child = ((Node) v).assoc(shift + 5, hash, key, value, added);
+                    return child == v ? this : new BitmapNode(bitmap, copyAndSet(array, 2 * idx + 1, child));
+                }
+                if (key.equals(k)) {
+                    return v == value ? this : new BitmapNode(bitmap, copyAndSet(array, 2 * idx + 1, value));
+                }
+                added[0] = true;
+                return new BitmapNode(bitmap, copyAndSet(array, 2 * idx, null, 2 * idx + 1,
+                        createNode(shift + 5, k, v, hash, key, value)));
+            }
+            added[0] = true;
+            final Object[] grown = new Object[array.length + 2];
+            System.arraycopy(array, 0, grown, 0, 2 * idx);
+            grown[2 * idx] = key;
+            grown[2 * idx + 1] = value;
+            System.arraycopy(array, 2 * idx, grown, 2 * (idx + 1), array.length - 2 * idx);
+            return new BitmapNode(bitmap | bit, grown);
+        }
+
+        @Override Node without (int shift, int hash, Object key) {
+            final int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) return this;
+            final int idx = index(bit);
+            final Object k = array[2 * idx];
+            final Object v = array[2 * idx + 1];
+            if (k == null) {
+                final Node child = ((Node) v).without(shift + 5, hash, key);
+                if (child == v) return this;
+                if (child != null) return new BitmapNode(bitmap, copyAndSet(array, 2 * idx + 1, child));
+            } else if (!key.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit) return null;
+            return new BitmapNode(bitmap ^ bit, removePair(array, idx));
+        }
+
+        private static Node createNode (int shift, Object k1, Object v1, int h2, Object k2, Object v2) {
+            final int h1 = hash(k1);
+            if (h1 == h2) return new CollisionNode(h1, new Object[] {k1, v1, k2, v2});
+            final boolean[] added = new boolean[1];
+            return EMPTY.assoc(shift, h1, k1, v1, added).assoc(shift, h2, k2, v2, added);
+        }
+    }
+
+    private static class CollisionNode extends Node {
+
+        final int hash;
+        final Object[] array;
+
+        CollisionNode (int hash, Object[] array) { this.hash = hash; this.array = array; }
+
+        @Override Object[] array () { return array; }
+
+        private int indexOf (Object key) {
+            for (int i=0; i<array.length; i+=2) if (key.equals(array[i])) return i;
+            return -1;
+        }
+
+        @Override Object find (int shift, int hash, Object key) {
+            if (hash != this.hash) return NOT_FOUND;
+            final int i = indexOf(key);
+            return i == -1 ? NOT_FOUND : array[i + 1];
+        }
+
+        @Override Node assoc (int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash == this.hash) {
+                final int i = indexOf(key);
+                if (i != -1) return array[i + 1] == value ? this : new CollisionNode(hash, copyAndSet(array, i + 1, value));
+                added[0] = true;
+                final Object[] grown = Arrays.copyOf(array, array.length + 2);
+                grown[array.length] = key;
+                grown[array.length + 1] = value;
+                return new CollisionNode(hash, grown);
+            }
+            // a different hash: push this node down a level, under a bitmap node
+            return new BitmapNode(1 << ((this.hash >>> shift) & 31), new Object[] {null, this}).assoc(shift, hash, key, value, added);
+        }
+
+        @Override Node without (int shift, int hash, Object key) {
+            if (hash != this.hash) return this;
+            final int i = indexOf(key);
+            if (i == -1) return this;
+            if (array.length == 2) return null;
+            return new CollisionNode(hash, removePair(array, i / 2));
+        }
+    }
+
+    private static class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+
+        private final Deque<Object[]> arrays = new ArrayDeque<>();
+        private final Deque<Integer> positions = new ArrayDeque<>();
+        private Map.Entry<K, V> next;
+
+        EntryIterator (Node root) {
+            if (root != null) push(root);
+            advance();
+        }
+
+        private void push (Node node) {
+            arrays.push(node.array());
+            positions.push(0);
+        }
+
+        private void advance () {
+            next = null;
+            while (!arrays.isEmpty()) {
+                final Object[] array = arrays.peek();
+                final int pos = positions.pop();
+                if (pos >= array.length) {
+                    arrays.pop();
+                    continue;
+                }
+                positions.push(pos + 2);
+                final Object k = array[pos];
+                if (k == null) {
+                    push((Node) array[pos + 1]);
+                } else {
+                    next = new AbstractMap.SimpleImmutableEntry<>((K) k, (V) array[pos + 1]);
+                    return;
+                }
+            }
+        }
+
+        @Override public boolean hasNext() { return next != null; }
+
+        @Override public Map.Entry<K, V> next() {
+            if (next == null) throw new NoSuchElementException();
+            final Map.Entry<K, V> e = next;
+            advance();
+            return e;
+        }
+
+        @Override public void remove() { throw new UnsupportedOperationException("remove: PersistentHashMap is immutable"); }
+    }
+
+}
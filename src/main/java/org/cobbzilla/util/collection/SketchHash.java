@@ -0,0 +1,60 @@
+package org.cobbzilla.util.collection;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.cobbzilla.util.string.Base64;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+
+/**
+ * Hashing and serialization shared by BloomFilter, CountingBloomFilter and HyperLogLog.
+ * All three hash with murmur3, so sketches built on different nodes agree and can be merged.
+ */
+class SketchHash {
+
+    private static final HashFunction MURMUR3 = Hashing.murmur3_128();
+
+    static HashCode hash (String s) { return MURMUR3.hashString(s, UTF8cs); }
+    static HashCode hash (byte[] bytes) { return MURMUR3.hashBytes(bytes); }
+    static HashCode hash (long value) { return MURMUR3.hashLong(value); }
+
+    // the upper 64 bits of the 128-bit hash, for double hashing (h1 + i*h2)
+    static long upper (HashCode hash) {
+        final byte[] b = hash.asBytes();
+        long h = 0;
+        for (int i=15; i>=8; i--) h = (h << 8) | (b[i] & 0xff);
+        return h;
+    }
+
+    static String encode (long[] words) {
+        final ByteBuffer buffer = ByteBuffer.allocate(words.length * 8);
+        buffer.asLongBuffer().put(words);
+        return Base64.encodeBytes(buffer.array());
+    }
+
+    static String encode (byte[] bytes) { return Base64.encodeBytes(bytes); }
+
+    static long[] decodeLongs (String data) {
+        final byte[] bytes = decodeBytes(data);
+        if (bytes.length % 8 != 0) return die("decodeLongs: length is not a multiple of 8: "+bytes.length);
+        final LongBuffer longs = ByteBuffer.wrap(bytes).asLongBuffer();
+        final long[] words = new long[longs.remaining()];
+        longs.get(words);
+        return words;
+    }
+
+    static byte[] decodeBytes (String data) {
+        try {
+            // raw sketch bytes can happen to start with the gzip magic number: never gunzip them
+            return Base64.decode(data, Base64.DONT_GUNZIP);
+        } catch (Exception e) {
+            return die("decodeBytes: invalid base64: "+e, e);
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+package org.cobbzilla.util.collection;
+
+import lombok.Getter;
+import lombok.experimental.Accessors;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * Counts events per key over a sliding time window, in constant memory per key.
+ *
+ * The window is divided into a ring of buckets, and each key keeps one int count per bucket rather than one entry
+ * per event. Counts are accurate to within one bucket's width: an event is forgotten between window - window/buckets
+ * and window millis after it happened. Keys whose counts have all expired are swept out, and the number of keys is
+ * bounded by maxKeys (see KeyedLimiterBase).
+ *
+ * @param <K> key class
+ */
+@Accessors(chain=true)
+public class SlidingWindowCounter<K> extends KeyedLimiterBase<K, SlidingWindowCounter.Window> {
+
+    public static final int DEFAULT_BUCKETS = 10;
+
+    @Getter private final long window;
+    @Getter private final int buckets;
+    private final long bucketWidth;
+
+    public SlidingWindowCounter () { this(TimeUnit.MINUTES.toMillis(1)); }
+
+    public SlidingWindowCounter (long window) { this(window, DEFAULT_BUCKETS); }
+
+    /**
+     * @param window the window, in millis
+     * @param buckets how many buckets to divide it into. More buckets are more accurate but use more memory.
+     */
+    public SlidingWindowCounter (long window, int buckets) {
+        if (buckets <= 0) die("SlidingWindowCounter: buckets must be positive");
+        if (window < buckets) die("SlidingWindowCounter: window ("+window+") must be at least one milli per bucket");
+        this.window = window;
+        this.buckets = buckets;
+        this.bucketWidth = window / buckets;
+    }
+
+    protected static class Window extends KeyedLimiterBase.KeyState {
+        final int[] counts;
+        long head; // the absolute bucket number of the most recent bucket
+        Window (int buckets, long head) { this.counts = new int[buckets]; this.head = head; }
+    }
+
+    @Override protected Window newState(long now) { return new Window(buckets, now / bucketWidth); }
+
+    @Override protected boolean isIdle(Window state, long now) {
+        advance(state, now / bucketWidth);
+        return sum(state) == 0;
+    }
+
+    @Override protected long getSweepInterval() { return window; }
+
+    // zero out the buckets that have slid out of the window since the last update
+    private void advance (Window w, long bucket) {
+        final long elapsed = bucket - w.head;
+        if (elapsed <= 0) return;
+        if (elapsed >= buckets) {
+            for (int i=0; i<buckets; i++) w.counts[i] = 0;
+        } else {
+            for (long b = w.head + 1; b <= bucket; b++) w.counts[(int) (b % buckets)] = 0;
+        }
+        w.head = bucket;
+    }
+
+    private int sum (Window w) {
+        int total = 0;
+        for (int c : w.counts) total += c;
+        return total;
+    }
+
+    /**
+     * Record one event for a key
+     * @param key the key
+     * @return the key's count within the window, including this event
+     */
+    public int increment (K key) { return add(key, 1); }
+
+    /**
+     * Record events for a key
+     * @param key the key
+     * @param n how many events
+     * @return the key's count within the window, including these events
+     */
+    public int add (K key, int n) {
+        final long now = now();
+        return add(key, n, now, now);
+    }
+
+    // add n events that happened at time (no later than now) to the bucket they belong in
+    private int add (K key, int n, long time, long now) {
+        final long head = now / bucketWidth;
+        final long bucket = Math.min(time / bucketWidth, head);
+        if (bucket <= head - buckets) return count(key); // already slid out of the window
+        while (true) {
+            final Window w = state(key, now);
+            synchronized (w) {
+                if (w.removed) continue;
+                advance(w, head);
+                final int i = (int) (bucket % buckets);
+                w.counts[i] = (int) Math.min((long) w.counts[i] + n, Integer.MAX_VALUE);
+                return sum(w);
+            }
+        }
+    }
+
+    /**
+     * @param key the key
+     * @return the key's count within the window
+     */
+    public int count (K key) {
+        final Window w = peek(key);
+        if (w == null) return 0;
+        synchronized (w) {
+            advance(w, now() / bucketWidth);
+            return sum(w);
+        }
+    }
+
+    /**
+     * @param key the key
+     * @return the key's nonzero counts within the window, by the start time of their bucket, oldest first
+     */
+    public SortedMap<Long, Integer> getCounts (K key) {
+        final SortedMap<Long, Integer> counts = new TreeMap<>();
+        final Window w = peek(key);
+        if (w == null) return counts;
+        synchronized (w) {
+            advance(w, now() / bucketWidth);
+            for (int i=0; i<buckets; i++) {
+                final long bucket = w.head - i;
+                final int count = w.counts[(int) (bucket % buckets)];
+                if (count > 0) counts.put(bucket * bucketWidth, count);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Record an event, unless the key has already reached the limit
+     * @param key the key
+     * @param limit the most events allowed within the window
+     * @return true if the event was allowed (and counted)
+     */
+    public boolean tryIncrement (K key, int limit) {
+        final long now = now();
+        final long bucket = now / bucketWidth;
+        while (true) {
+            final Window w = state(key, now);
+            synchronized (w) {
+                if (w.removed) continue;
+                advance(w, bucket);
+                if (sum(w) >= limit) return false;
+                w.counts[(int) (bucket % buckets)]++;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param window the new window, in millis
+     * @return a new counter with that window, holding the events this counter holds that fall within it. It has
+     * the same number of buckets, clock and maxKeys. Events are placed to within one bucket's width.
+     */
+    public SlidingWindowCounter<K> resize (long window) {
+        final SlidingWindowCounter<K> resized = new SlidingWindowCounter<>(window, buckets);
+        resized.setClock(getClock()).setMaxKeys(getMaxKeys());
+        final long now = now();
+        for (Map.Entry<K, Window> entry : states().entrySet()) {
+            final Window w = entry.getValue();
+            synchronized (w) {
+                if (w.removed) continue;
+                advance(w, now / bucketWidth);
+                for (int i=0; i<buckets; i++) {
+                    final long bucket = w.head - i;
+                    final int count = w.counts[(int) (bucket % buckets)];
+                    if (count > 0) resized.add(entry.getKey(), count, bucket * bucketWidth, now);
+                }
+            }
+        }
+        return resized;
+    }
+
+}
@@ -0,0 +1,104 @@
+package org.cobbzilla.util.collection;
+
+import lombok.Getter;
+import lombok.experimental.Accessors;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * A token-bucket rate limiter, per key. Each key's bucket holds up to capacity tokens and refills at
+ * refillPerSecond; each request takes tokens, and is refused if there are not enough. This allows bursts of up to
+ * capacity requests while holding the long-run rate to refillPerSecond.
+ *
+ * A key whose bucket has refilled completely is swept out, since a new bucket would be the same. The number of keys
+ * is bounded by maxKeys (see KeyedLimiterBase).
+ *
+ * @param <K> key class
+ */
+@Accessors(chain=true)
+public class TokenBucketLimiter<K> extends KeyedLimiterBase<K, TokenBucketLimiter.Bucket> {
+
+    @Getter private final double capacity;
+    @Getter private final double refillPerSecond;
+    private final double refillPerMilli;
+
+    /**
+     * @param capacity the most tokens a bucket holds, which is the largest burst allowed
+     * @param refillPerSecond tokens added per second
+     */
+    public TokenBucketLimiter (double capacity, double refillPerSecond) {
+        if (capacity <= 0) die("TokenBucketLimiter: capacity must be positive");
+        if (refillPerSecond <= 0) die("TokenBucketLimiter: refillPerSecond must be positive");
+        this.capacity = capacity;
+        this.refillPerSecond = refillPerSecond;
+        this.refillPerMilli = refillPerSecond / 1000.0;
+    }
+
+    protected static class Bucket extends KeyedLimiterBase.KeyState {
+        double tokens;
+        long lastRefill;
+        Bucket (double tokens, long lastRefill) { this.tokens = tokens; this.lastRefill = lastRefill; }
+    }
+
+    @Override protected Bucket newState(long now) { return new Bucket(capacity, now); }
+
+    @Override protected boolean isIdle(Bucket state, long now) {
+        return state.tokens + (now - state.lastRefill) * refillPerMilli >= capacity;
+    }
+
+    // sweep about as often as an empty bucket takes to refill
+    @Override protected long getSweepInterval() { return Math.max((long) (capacity / refillPerMilli), 1000); }
+
+    private void refill (Bucket b, long now) {
+        if (now > b.lastRefill) {
+            b.tokens = Math.min(capacity, b.tokens + (now - b.lastRefill) * refillPerMilli);
+            b.lastRefill = now;
+        }
+    }
+
+    public boolean tryAcquire (K key) { return tryAcquire(key, 1); }
+
+    /**
+     * Take tokens from a key's bucket, if it has enough
+     * @param key the key
+     * @param permits how many tokens to take
+     * @return true if the tokens were taken, false if the request should be refused
+     */
+    public boolean tryAcquire (K key, double permits) {
+        final long now = now();
+        while (true) {
+            final Bucket b = state(key, now);
+            synchronized (b) {
+                if (b.removed) continue;
+                refill(b, now);
+                if (b.tokens < permits) return false;
+                b.tokens -= permits;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param key the key
+     * @return how many tokens the key's bucket holds now
+     */
+    public double getTokens (K key) {
+        final Bucket b = peek(key);
+        if (b == null) return capacity;
+        synchronized (b) {
+            refill(b, now());
+            return b.tokens;
+        }
+    }
+
+    /**
+     * @param key the key
+     * @param permits how many tokens are wanted
+     * @return how many millis until the key's bucket will hold that many tokens, zero if it already does
+     */
+    public long getWaitTime (K key, double permits) {
+        final double missing = permits - getTokens(key);
+        return missing <= 0 ? 0 : (long) Math.ceil(missing / refillPerMilli);
+    }
+
+}
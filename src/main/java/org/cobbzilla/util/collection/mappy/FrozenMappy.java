@@ -0,0 +1,207 @@
+package org.cobbzilla.util.collection.mappy;
+
+import org.cobbzilla.util.string.StringUtil;
+
+import java.util.*;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.notSupported;
+
+/**
+ * An immutable snapshot of a Mappy, created with Mappy.freeze(). Meant for Mappy instances that are built once and
+ * then read heavily, possibly by many threads.
+ *
+ * Keys sit in an open-addressing table, and all values sit in one contiguous array, grouped by key: the values for
+ * the key with ordinal i run from offsets[i] to offsets[i+1]. There are no per-entry or per-collection objects, so a
+ * snapshot is smaller than the Mappy it came from and iterates faster. totalSize() and flatten() are O(1).
+ *
+ * Lookups never allocate. getAll and flatten return read-only views over the shared array. All mutators throw
+ * UnsupportedOperationException.
+ *
+ * @param <K> key class
+ * @param <V> value class
+ */
+public class FrozenMappy<K, V> implements Map<K, V> {
+
+    private final Object[] keys;     // key for each ordinal, in the order they were frozen
+    private final int[] offsets;     // values for ordinal i are values[offsets[i]] .. values[offsets[i+1]-1]
+    private final Object[] values;
+    private final Object[] table;    // open-addressing table of keys; null is an empty slot
+    private final int[] ordinals;    // ordinal of the key in each table slot
+    private final int mask;
+
+    private final List<V> flattened;
+
+    FrozenMappy (Collection<? extends Map.Entry<K, ? extends Collection<V>>> entries) {
+        final int n = entries.size();
+        keys = new Object[n];
+        offsets = new int[n+1];
+        final List<Object> vals = new ArrayList<>();
+        int k = 0;
+        for (Map.Entry<K, ? extends Collection<V>> entry : entries) {
+            keys[k] = entry.getKey();
+            offsets[k] = vals.size();
+            vals.addAll(entry.getValue());
+            k++;
+        }
+        offsets[n] = vals.size();
+        values = vals.toArray();
+
+        int capacity = 2;
+        while (capacity < n * 2) capacity <<= 1;
+        table = new Object[capacity];
+        ordinals = new int[capacity];
+        mask = capacity - 1;
+        for (int i=0; i<n; i++) {
+            int slot = hash(keys[i]) & mask;
+            while (table[slot] != null) slot = (slot + 1) & mask;
+            table[slot] = keys[i];
+            ordinals[slot] = i;
+        }
+        flattened = new ValueList(0, values.length);
+    }
+
+    private static int hash (Object key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private int ordinal (Object key) {
+        if (key == null) return -1;
+        int slot = hash(key) & mask;
+        Object found;
+        while ((found = table[slot]) != null) {
+            if (found == key || found.equals(key)) return ordinals[slot];
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of keys
+     */
+    @Override public int size() { return keys.length; }
+
+    /**
+     * @return the total number of values (may be higher than # of keys)
+     */
+    public int totalSize () { return values.length; }
+
+    /**
+     * @return true if this snapshot contains no values. It may contain keys that have no values.
+     */
+    @Override public boolean isEmpty() { return values.length == 0; }
+
+    @Override public boolean containsKey(Object key) { return ordinal(key) != -1; }
+
+    @Override public boolean containsValue(Object value) {
+        for (Object v : values) if (v == null ? value == null : v.equals(value)) return true;
+        return false;
+    }
+
+    /**
+     * @param key the key to find
+     * @return the first value for the key, or null if there are none
+     */
+    @Override public V get(Object key) {
+        final int i = ordinal(key);
+        return i == -1 || offsets[i] == offsets[i+1] ? null : (V) values[offsets[i]];
+    }
+
+    /**
+     * Get the values for a key. This method never returns null.
+     * @param key the key to find
+     * @return a read-only view of the values for the key, which may be empty
+     */
+    public List<V> getAll (K key) {
+        final int i = ordinal(key);
+        return i == -1 ? Collections.<V>emptyList() : new ValueList(offsets[i], offsets[i+1]);
+    }
+
+    /**
+     * @return a read-only view of all values, grouped by key
+     */
+    public List<V> flatten() { return flattened; }
+
+    @Override public Collection<V> values() { return flattened; }
+
+    @Override public Set<K> keySet() {
+        return new AbstractSet<K>() {
+            @Override public int size() { return keys.length; }
+            @Override public boolean contains(Object o) { return containsKey(o); }
+            @Override public Iterator<K> iterator() { return (Iterator<K>) Collections.unmodifiableList(Arrays.asList(keys)).iterator(); }
+        };
+    }
+
+    @Override public Set<Entry<K, V>> entrySet() {
+        final Set<Entry<K, V>> entries = new LinkedHashSet<>(values.length);
+        for (int i=0; i<keys.length; i++) {
+            for (int j=offsets[i]; j<offsets[i+1]; j++) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>((K) keys[i], (V) values[j]));
+            }
+        }
+        return Collections.unmodifiableSet(entries);
+    }
+
+    /**
+     * @return each key with a read-only view of its values, in the order they were frozen
+     */
+    public Map<K, List<V>> asMap () {
+        final Map<K, List<V>> map = new LinkedHashMap<>(keys.length);
+        for (int i=0; i<keys.length; i++) map.put((K) keys[i], new ValueList(offsets[i], offsets[i+1]));
+        return Collections.unmodifiableMap(map);
+    }
+
+    @Override public V put(K key, V value) { return notSupported("put: FrozenMappy is immutable"); }
+    @Override public V remove(Object key) { return notSupported("remove: FrozenMappy is immutable"); }
+    @Override public void putAll(Map<? extends K, ? extends V> m) { notSupported("putAll: FrozenMappy is immutable"); }
+    @Override public void clear() { notSupported("clear: FrozenMappy is immutable"); }
+
+    @Override public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final FrozenMappy other = (FrozenMappy) o;
+        if (totalSize() != other.totalSize() || size() != other.size()) return false;
+        for (int i=0; i<keys.length; i++) {
+            final int j = other.ordinal(keys[i]);
+            if (j == -1) return false;
+            final List thisValues = new ValueList(offsets[i], offsets[i+1]);
+            final List otherValues = other.new ValueList(other.offsets[j], other.offsets[j+1]);
+            if (thisValues.size() != otherValues.size()) return false;
+            for (Object value : thisValues) if (!otherValues.contains(value)) return false;
+        }
+        return true;
+    }
+
+    @Override public int hashCode() {
+        // order-independent, like equals: keys and each key's values may have been frozen in any order, so both
+        // are combined by summing
+        int result = totalSize();
+        for (int i=0; i<keys.length; i++) {
+            int valuesHash = 0;
+            for (int j=offsets[i]; j<offsets[i+1]; j++) valuesHash += values[j] == null ? 0 : values[j].hashCode();
+            result += 31 * (keys[i].hashCode() + 13) + valuesHash;
+        }
+        return result;
+    }
+
+    @Override public String toString() {
+        final StringBuilder b = new StringBuilder();
+        for (int i=0; i<keys.length; i++) {
+            if (b.length() > 0) b.append(" | ");
+            b.append(keys[i]).append("->(").append(StringUtil.toString(new ValueList(offsets[i], offsets[i+1]), ", ")).append(")");
+        }
+        return "{"+b.toString()+"}";
+    }
+
+    private class ValueList extends AbstractList<V> implements RandomAccess {
+        private final int from;
+        private final int to;
+        ValueList (int from, int to) { this.from = from; this.to = to; }
+        @Override public V get(int index) {
+            if (index < 0 || index >= to - from) throw new IndexOutOfBoundsException("index="+index+", size="+(to - from));
+            return (V) values[from + index];
+        }
+        @Override public int size() { return to - from; }
+    }
+
+}
@@ -0,0 +1,358 @@
+package org.cobbzilla.util.collection.mappy;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * A multimap of primitive int keys to primitive int values: the unboxed counterpart of MappyList&lt;Integer, Integer&gt;,
+ * for large ID graphs where a boxed key, a boxed value and a list per key cost several times the data itself.
+ *
+ * Keys live in an open-addressing table. Each key's values are kept, in insertion order and including duplicates
+ * (as with MappyList), in a compact growable int[]. Once loading is done, freeze() packs everything into a
+ * compressed sparse row (CSR) layout: sorted keys, one offsets array and a single values array.
+ *
+ * Unlike Mappy, this class is not thread-safe. Load it from one thread, then freeze it to share it.
+ */
+public class IntMappy {
+
+    public static final int DEFAULT_CAPACITY = 16;
+    public static final int INITIAL_VALUES_CAPACITY = 2;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    // approximate sizes on a 64-bit JVM with compressed oops, for estimateFootprint
+    public static final int OBJECT_HEADER = 16;
+    public static final int ARRAY_HEADER = 16;
+    public static final int REFERENCE = 4;
+
+    private static final int[] EMPTY = new int[0];
+
+    private int[] keys;
+    private int[][] values; // a null slot is an empty slot
+    private int[] counts;
+    private int mask;
+    private int resizeAt;
+
+    private int size;
+    private long totalSize;
+
+    public IntMappy () { this(DEFAULT_CAPACITY); }
+
+    public IntMappy (int expectedKeys) { allocate(tableSize(expectedKeys)); }
+
+    private static int tableSize (int expectedKeys) {
+        final long needed = (long) Math.ceil(Math.max(expectedKeys, 1) / LOAD_FACTOR);
+        if (needed > (1 << 30)) return die("tableSize: too many keys: "+expectedKeys);
+        return Integer.highestOneBit((int) Math.max(needed - 1, 1)) << 1;
+    }
+
+    private void allocate (int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity][];
+        counts = new int[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int hash (int key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slot (int key) {
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) return i;
+            i = (i + 1) & mask;
+        }
+        return -(i + 1);
+    }
+
+    /**
+     * @return the number of keys
+     */
+    public int size () { return size; }
+
+    /**
+     * @return the total number of values (may be higher than # of keys)
+     */
+    public long totalSize () { return totalSize; }
+
+    public boolean isEmpty () { return totalSize == 0; }
+
+    public boolean containsKey (int key) { return slot(key) >= 0; }
+
+    public boolean contains (int key, int value) {
+        final int i = slot(key);
+        if (i < 0) return false;
+        final int[] vals = values[i];
+        for (int j=0; j<counts[i]; j++) if (vals[j] == value) return true;
+        return false;
+    }
+
+    /**
+     * @param key the key to find
+     * @return the number of values for the key
+     */
+    public int count (int key) {
+        final int i = slot(key);
+        return i < 0 ? 0 : counts[i];
+    }
+
+    /**
+     * @param key the key to find
+     * @param defaultValue what to return if the key has no values
+     * @return the first value for the key, or defaultValue
+     */
+    public int get (int key, int defaultValue) {
+        final int i = slot(key);
+        return i < 0 || counts[i] == 0 ? defaultValue : values[i][0];
+    }
+
+    /**
+     * Get the values for a key. This method never returns null.
+     * @param key the key to find
+     * @return a copy of the values for the key, which may be empty
+     */
+    public int[] getAll (int key) {
+        final int i = slot(key);
+        return i < 0 ? EMPTY : Arrays.copyOf(values[i], counts[i]);
+    }
+
+    /**
+     * Add a mapping. Duplicate values are kept: use contains first if that matters.
+     * @param key the key to add
+     * @param value the value to add
+     */
+    public void put (int key, int value) {
+        final int i = slotForWrite(key, 1);
+        int[] vals = values[i];
+        if (counts[i] == vals.length) values[i] = vals = Arrays.copyOf(vals, grow(vals.length, 1));
+        vals[counts[i]++] = value;
+        totalSize++;
+    }
+
+    /**
+     * Add a bunch of values for a key
+     * @param key the key to add
+     * @param vals the values to add to the key's values
+     */
+    public void putAll (int key, int[] vals) {
+        if (vals.length == 0) return;
+        final int i = slotForWrite(key, vals.length);
+        if (counts[i] + vals.length > values[i].length) values[i] = Arrays.copyOf(values[i], grow(values[i].length, counts[i] + vals.length - values[i].length));
+        System.arraycopy(vals, 0, values[i], counts[i], vals.length);
+        counts[i] += vals.length;
+        totalSize += vals.length;
+    }
+
+    private static int grow (int length, int needed) {
+        final int grown = length + Math.max(length >> 1, 1);
+        return Math.max(grown, length + needed);
+    }
+
+    private int slotForWrite (int key, int needed) {
+        int i = slot(key);
+        if (i >= 0) return i;
+        if (size >= resizeAt) {
+            rehash(keys.length << 1);
+            i = slot(key);
+        }
+        i = -(i + 1);
+        keys[i] = key;
+        values[i] = new int[Math.max(needed, INITIAL_VALUES_CAPACITY)];
+        counts[i] = 0;
+        size++;
+        return i;
+    }
+
+    private void rehash (int capacity) {
+        if (capacity <= 0) die("rehash: table too large");
+        final int[] oldKeys = keys;
+        final int[][] oldValues = values;
+        final int[] oldCounts = counts;
+        allocate(capacity);
+        for (int i=0; i<oldKeys.length; i++) {
+            if (oldValues[i] == null) continue;
+            int j = hash(oldKeys[i]) & mask;
+            while (values[j] != null) j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+            counts[j] = oldCounts[i];
+        }
+    }
+
+    /**
+     * Remove a key
+     * @param key the key to remove
+     * @return the values that were mapped to the key, which may be empty
+     */
+    public int[] remove (int key) {
+        int i = slot(key);
+        if (i < 0) return EMPTY;
+        final int[] removed = Arrays.copyOf(values[i], counts[i]);
+        totalSize -= counts[i];
+        size--;
+
+        // backward-shift deletion: pull later entries of the probe sequence into the gap, so lookups never stop early
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) break;
+            final int home = hash(keys[j]) & mask;
+            if ((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                counts[i] = counts[j];
+                i = j;
+            }
+        }
+        values[i] = null;
+        counts[i] = 0;
+        return removed;
+    }
+
+    /**
+     * Erase the entire map.
+     */
+    public void clear () {
+        Arrays.fill(values, null);
+        Arrays.fill(counts, 0);
+        size = 0;
+        totalSize = 0;
+    }
+
+    /**
+     * Release the unused tail of each key's values array
+     * @return this
+     */
+    public IntMappy trim () {
+        for (int i=0; i<values.length; i++) {
+            if (values[i] != null && values[i].length > counts[i]) values[i] = Arrays.copyOf(values[i], counts[i]);
+        }
+        return this;
+    }
+
+    /**
+     * @return all keys, in no particular order
+     */
+    public int[] keys () {
+        final int[] result = new int[size];
+        int n = 0;
+        for (int i=0; i<values.length; i++) if (values[i] != null) result[n++] = keys[i];
+        return result;
+    }
+
+    /**
+     * @return all values, grouped by key
+     */
+    public int[] flatten () {
+        if (totalSize > Integer.MAX_VALUE) return die("flatten: too many values: "+totalSize);
+        final int[] result = new int[(int) totalSize];
+        int n = 0;
+        for (int i=0; i<values.length; i++) {
+            if (values[i] == null) continue;
+            System.arraycopy(values[i], 0, result, n, counts[i]);
+            n += counts[i];
+        }
+        return result;
+    }
+
+    /**
+     * @return the approximate number of bytes this map occupies on the heap
+     */
+    public long estimateFootprint () {
+        long bytes = OBJECT_HEADER + 3*REFERENCE + 3*4 + 8
+                + ARRAY_HEADER + 4L * keys.length
+                + ARRAY_HEADER + (long) REFERENCE * values.length
+                + ARRAY_HEADER + 4L * counts.length;
+        for (int[] vals : values) if (vals != null) bytes += ARRAY_HEADER + 4L * vals.length;
+        return bytes;
+    }
+
+    /**
+     * Pack this map into an immutable CSR layout. This map is left unchanged.
+     * @return a Frozen copy of this map
+     */
+    public Frozen freeze () {
+        if (totalSize > Integer.MAX_VALUE) return die("freeze: too many values: "+totalSize);
+        final int[] sortedKeys = keys();
+        Arrays.sort(sortedKeys);
+        final int[] offsets = new int[sortedKeys.length + 1];
+        final int[] packed = new int[(int) totalSize];
+        int n = 0;
+        for (int k=0; k<sortedKeys.length; k++) {
+            final int i = slot(sortedKeys[k]);
+            offsets[k] = n;
+            System.arraycopy(values[i], 0, packed, n, counts[i]);
+            n += counts[i];
+        }
+        offsets[sortedKeys.length] = n;
+        return new Frozen(sortedKeys, offsets, packed);
+    }
+
+    @Override public String toString () { return "IntMappy{keys="+size+", values="+totalSize+"}"; }
+
+    /**
+     * An immutable IntMappy in compressed sparse row form: the values for keys[i] are
+     * values[offsets[i]] through values[offsets[i+1]-1]. Lookups are a binary search over the sorted keys.
+     * Instances are safe to share between threads.
+     *
+     * The arrays are exposed for traversal without copying. Do not modify them.
+     */
+    public static class Frozen {
+
+        @Getter private final int[] keys;
+        @Getter private final int[] offsets;
+        @Getter private final int[] values;
+
+        private Frozen (int[] keys, int[] offsets, int[] values) {
+            this.keys = keys;
+            this.offsets = offsets;
+            this.values = values;
+        }
+
+        public int size () { return keys.length; }
+
+        public long totalSize () { return values.length; }
+
+        public boolean isEmpty () { return values.length == 0; }
+
+        /**
+         * @param key the key to find
+         * @return the index of the key in getKeys(), or a negative number if it is not present
+         */
+        public int indexOf (int key) { return Arrays.binarySearch(keys, key); }
+
+        public boolean containsKey (int key) { return indexOf(key) >= 0; }
+
+        public int count (int key) {
+            final int k = indexOf(key);
+            return k < 0 ? 0 : offsets[k+1] - offsets[k];
+        }
+
+        public int get (int key, int defaultValue) {
+            final int k = indexOf(key);
+            return k < 0 || offsets[k] == offsets[k+1] ? defaultValue : values[offsets[k]];
+        }
+
+        public int[] getAll (int key) {
+            final int k = indexOf(key);
+            return k < 0 ? EMPTY : Arrays.copyOfRange(values, offsets[k], offsets[k+1]);
+        }
+
+        public int[] flatten () { return values.clone(); }
+
+        public long estimateFootprint () {
+            return OBJECT_HEADER + 3*REFERENCE
+                    + ARRAY_HEADER + 4L * keys.length
+                    + ARRAY_HEADER + 4L * offsets.length
+                    + ARRAY_HEADER + 4L * values.length;
+        }
+
+        @Override public String toString () { return "IntMappy.Frozen{keys="+keys.length+", values="+values.length+"}"; }
+    }
+
+}
@@ -15,9 +15,14 @@ import static org.cobbzilla.util.reflect.ReflectionUtil.getTypeParam;
  *
  * It can be viewed either as a mapping of K->V or as K->C->V
  *
- * Mappy objects are meant to be short-lived. While methods are generally thread-safe, the getter will create a new empty
- * collection every time a key is not found. So it makes a horrible cache. Mappy instances are best suited to be value
- * objects of limited scope.
+ * Mapping methods are thread-safe: collections are created atomically, and writers lock only the collection for their
+ * key, so writers to different keys never contend. Methods that read across keys (values, entrySet, flatten, freeze,
+ * containsValue, equals, hashCode, toString) lock each key's collection in turn while they read it, so each sees
+ * every collection in a consistent state, though not all of them at the same instant.
+ * Lookups (get, containsKey, getIfPresent) never create collections; only getAll adds an empty collection for a
+ * missing key, so that the caller can add to it. Iterating a collection returned by getAll or getIfPresent, or via
+ * allValues or allEntrySets, while other threads write to it requires synchronizing on that collection, unless the
+ * collection type is itself concurrent (as with MappyConcurrentSortedSet).
  *
  * @param <K> key class
  * @param <V> value class
@@ -65,7 +70,10 @@ public abstract class Mappy<K, V, C extends Collection<V>> implements Map<K, V>
     /**
      * @return true if this Mappy contains no values. It may contain keys whose collections have no values.
      */
-    @Override public boolean isEmpty() { return flatten().isEmpty(); }
+    @Override public boolean isEmpty() {
+        for (C collection : allValues()) if (!collection.isEmpty()) return false;
+        return true;
+    }
 
     @Override public boolean containsKey(Object key) { return map.containsKey(key); }
 
@@ -75,8 +83,10 @@ public abstract class Mappy<K, V, C extends Collection<V>> implements Map<K, V>
      */
     @Override public boolean containsValue(Object value) {
         for (C collection : allValues()) {
-            //noinspection SuspiciousMethodCalls
-            if (collection.contains(value)) return true;
+            synchronized (collection) {
+                //noinspection SuspiciousMethodCalls
+                if (collection.contains(value)) return true;
+            }
         }
         return false;
     }
@@ -86,45 +96,54 @@ public abstract class Mappy<K, V, C extends Collection<V>> implements Map<K, V>
      * @return the first value in the collection for they key, or null if the collection is empty
      */
     @Override public V get(Object key) {
-        final C collection = getAll((K) key);
-        return collection.isEmpty() ? null : firstInCollection(collection);
+        final C collection = map.get(key);
+        if (collection == null) return null;
+        synchronized (collection) {
+            return collection.isEmpty() ? null : firstInCollection(collection);
+        }
     }
 
     protected V firstInCollection(C collection) { return collection.iterator().next(); }
 
     /**
      * Get the collection of values for a key. This method never returns null.
+     * If the key is not present, a new empty collection is atomically added for it, so that callers may add to it.
+     * Use getIfPresent to look up a key without adding it.
      * @param key the key to find
      * @return the collection of values for the key, which may be empty
      */
     public C getAll (K key) {
-        C collection = map.get(key);
-        if (collection == null) {
-            collection = newCollection();
-            map.put(key, collection);
-        }
-        return collection;
+        final C collection = map.get(key);
+        if (collection != null) return collection;
+        final C created = newCollection();
+        final C existing = map.putIfAbsent(key, created);
+        return existing != null ? existing : created;
     }
 
     /**
-     * Add a mapping.
+     * Get the collection of values for a key, without creating one if the key is not present.
+     * @param key the key to find
+     * @return the collection of values for the key, or null if there is no mapping for the key
+     */
+    public C getIfPresent (Object key) { return map.get(key); }
+
+    /**
+     * Add a mapping. Writers lock only the collection for their key, so writers to different keys never contend.
      * @param key the key to add
      * @param value the value to add
      * @return the value passed in, if the map already contained the item. null otherwise.
      */
     @Override public V put(K key, V value) {
-        V rval = null;
-        synchronized (map) {
-            C group = map.get(key);
-            if (group == null) {
-                group = newCollection();
-                map.put(key, group);
-            } else {
-                rval = group.contains(value) ? value : null;
+        while (true) {
+            final C group = getAll(key);
+            synchronized (group) {
+                // if the key was removed after we fetched its collection, try again with a fresh one
+                if (map.get(key) != group) continue;
+                final V rval = group.contains(value) ? value : null;
+                group.add(value);
+                return rval;
             }
-            group.add(value);
         }
-        return rval;
     }
 
     /**
@@ -133,9 +152,12 @@ public abstract class Mappy<K, V, C extends Collection<V>> implements Map<K, V>
      * @return The first value in the collection that was referenced by the key
      */
     @Override public V remove(Object key) {
-        final C group = map.remove(key);
-        if (group == null || group.isEmpty()) return null; // empty case should never happen, but just in case
-        return group.iterator().next();
+        final C group = map.get(key);
+        if (group == null) return null;
+        synchronized (group) {
+            if (!map.remove(key, group)) return null;
+            return group.isEmpty() ? null : group.iterator().next();
+        }
     }
 
     /**
@@ -154,11 +176,13 @@ public abstract class Mappy<K, V, C extends Collection<V>> implements Map<K, V>
      * @param values the values to add to the key's collection
      */
     public void putAll(K key, Collection<V> values) {
-        synchronized (map) {
-            C collection = getAll(key);
-            if (collection == null) collection = newCollection();
-            collection.addAll(values);
-            map.put(key, collection);
+        while (true) {
+            final C group = getAll(key);
+            synchronized (group) {
+                if (map.get(key) != group) continue;
+                group.addAll(values);
+                return;
+            }
         }
     }
 
@@ -169,15 +193,17 @@ public abstract class Mappy<K, V, C extends Collection<V>> implements Map<K, V>
 
     @Override public Set<K> keySet() { return map.keySet(); }
 
-    @Override public Collection<V> values() {
-        final List<V> vals = new ArrayList<>();
-        for (C collection : map.values()) vals.addAll(collection);
-        return vals;
+    // a copy of a key's values, taken under the same lock that writers to the key hold
+    private List<V> copy(C collection) {
+        synchronized (collection) { return new ArrayList<>(collection); }
     }
+
+    @Override public Collection<V> values() { return flatten(); }
+
     @Override public Set<Entry<K, V>> entrySet() {
         final Set<Entry<K, V>> entries = new HashSet<>();
         for (Entry<K, C> entry : map.entrySet()) {
-            for (V item : entry.getValue()) {
+            for (V item : copy(entry.getValue())) {
                 entries.add(new AbstractMap.SimpleEntry<K, V>(entry.getKey(), item));
             }
         }
@@ -189,15 +215,32 @@ public abstract class Mappy<K, V, C extends Collection<V>> implements Map<K, V>
 
     public List<V> flatten() {
         final List<V> values = new ArrayList<>();
-        for (C collection : allValues()) values.addAll(collection);
+        for (C collection : allValues()) {
+            synchronized (collection) { values.addAll(collection); }
+        }
         return values;
     }
 
     public List<V> flatten(Collection<V> values) {
-        for (C collection : allValues()) values.addAll(collection);
+        for (C collection : allValues()) {
+            synchronized (collection) { values.addAll(collection); }
+        }
         return new ArrayList<>(values);
     }
 
+    /**
+     * Take an immutable, compact snapshot of this Mappy, for read-heavy use once it has been built.
+     * This Mappy is left unchanged.
+     * @return a FrozenMappy with the same mappings
+     */
+    public FrozenMappy<K, V> freeze () {
+        final List<Entry<K, List<V>>> entries = new ArrayList<>(map.size());
+        for (Entry<K, C> entry : map.entrySet()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<K, List<V>>(entry.getKey(), copy(entry.getValue())));
+        }
+        return new FrozenMappy<>(entries);
+    }
+
     @Override public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
@@ -206,13 +249,17 @@ public abstract class Mappy<K, V, C extends Collection<V>> implements Map<K, V>
 
         if (totalSize() != other.totalSize()) return false;
 
+        // hold one lock at a time, so two threads comparing a and b in opposite directions can't deadlock
         for (K key : keySet()) {
-            if (!other.containsKey(key)) return false;
-            final Collection otherValues = other.getAll(key);
-            final Collection thisValues = getAll(key);
-            if (otherValues.size() != thisValues.size()) return false;
-            for (Object value : thisValues) {
-                if (!otherValues.contains(value)) return false;
+            final Collection otherValues = other.getIfPresent(key);
+            final C thisGroup = map.get(key);
+            if (otherValues == null || thisGroup == null) return false;
+            final List<V> thisValues = copy(thisGroup);
+            synchronized (otherValues) {
+                if (otherValues.size() != thisValues.size()) return false;
+                for (Object value : thisValues) {
+                    if (!otherValues.contains(value)) return false;
+                }
             }
         }
         return true;
@@ -221,9 +268,9 @@ public abstract class Mappy<K, V, C extends Collection<V>> implements Map<K, V>
     @Override public int hashCode() {
         int result = new Integer(totalSize()).hashCode();
         result = 31 * result + (valueClass != null ? valueClass.hashCode() : 0);
-        for (K key : keySet()) {
-            result = 31 * result + (key.hashCode() + 13);
-            for (V value : getAll(key)) {
+        for (Entry<K, C> entry : allEntrySets()) {
+            result = 31 * result + (entry.getKey().hashCode() + 13);
+            for (V value : copy(entry.getValue())) {
                 result = 31 * result + (value == null ? 0 : value.hashCode());
             }
         }
@@ -232,9 +279,9 @@ public abstract class Mappy<K, V, C extends Collection<V>> implements Map<K, V>
 
     @Override public String toString() {
         final StringBuilder b = new StringBuilder();
-        for (K key : keySet()) {
+        for (Entry<K, C> entry : allEntrySets()) {
             if (b.length() > 0) b.append(" | ");
-            b.append(key).append("->(").append(StringUtil.toString(getAll(key), ", ")).append(")");
+            b.append(entry.getKey()).append("->(").append(StringUtil.toString(copy(entry.getValue()), ", ")).append(")");
         }
         return "{"+b.toString()+"}";
     }
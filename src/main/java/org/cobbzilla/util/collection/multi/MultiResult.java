@@ -1,14 +1,15 @@
 package org.cobbzilla.util.collection.multi;
 
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
+/**
+ * Collects the names of tasks that succeeded and failed. Safe to update from several threads at once, as
+ * MultiResultExecutor does: to iterate over successes or failures while tasks are running, synchronize on them.
+ */
 public class MultiResult {
 
-    public List<String> successes = new ArrayList<>();
-    public Map<String, String> failures = new LinkedHashMap<>();
+    public List<String> successes = Collections.synchronizedList(new ArrayList<String>());
+    public Map<String, String> failures = Collections.synchronizedMap(new LinkedHashMap<String, String>());
 
     public int successCount() { return successes.size(); }
     public int failCount() { return failures.size(); }
@@ -25,6 +26,14 @@ public class MultiResult {
         b.append("\n\n").append(getHeader()).append("\n--------------------\n")
                 .append(successCount()).append("\tsucceeded\n")
                 .append(failCount()).append("\tfailed");
+        synchronized (failures) {
+            appendFailures(b);
+        }
+        b.append("--------------------\n");
+        return b.toString();
+    }
+
+    private void appendFailures(StringBuilder b) {
         if (!failures.isEmpty()) {
             b.append(":\n");
             for (String fail : failures.keySet()) {
@@ -39,8 +48,6 @@ public class MultiResult {
         } else {
             b.append("\n");
         }
-        b.append("--------------------\n");
-        return b.toString();
     }
 
 }
@@ -17,6 +17,9 @@ public interface MultiResultDriver {
     // called if calculation failed
     void failure (String message, Exception e);
 
+    // the message a task that timed out is recorded with, via failure
+    String timeoutMessage (Object task);
+
     // called at the end (should via finally block)
     void after ();
 
@@ -11,6 +11,9 @@ public abstract class MultiResultDriverBase implements MultiResultDriver {
     protected abstract String failureMessage(Object task);
     protected abstract void run(Object task) throws Exception;
 
+    // a timed-out task is recorded like any other failure of that task
+    @Override public String timeoutMessage(Object task) { return failureMessage(task); }
+
     @Override public void before() {}
     @Override public void after() {}
 
@@ -26,7 +29,17 @@ public abstract class MultiResultDriverBase implements MultiResultDriver {
         }
     }
 
-    @Override public void success(String message) { result.success(message); }
-    @Override public void failure(String message, Exception e) { result.fail(message, e.toString() + "\n- stack -\n" + ExceptionUtils.getStackTrace(e) + "\n- end stack -\n"); }
+    // recorded through MultiResultExecutor.record, so results from tasks that have timed out are dropped
+    @Override public void success(final String message) {
+        MultiResultExecutor.record(new Runnable() {
+            @Override public void run() { result.success(message); }
+        });
+    }
+
+    @Override public void failure(final String message, final Exception e) {
+        MultiResultExecutor.record(new Runnable() {
+            @Override public void run() { result.fail(message, e.toString() + "\n- stack -\n" + ExceptionUtils.getStackTrace(e) + "\n- end stack -\n"); }
+        });
+    }
 
 }
@@ -0,0 +1,198 @@
+package org.cobbzilla.util.collection.multi;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.daemon.DaemonThreadFactory;
+import org.cobbzilla.util.time.LatencyHistogram;
+
+import java.util.Collection;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.realNow;
+
+/**
+ * Runs tasks through a MultiResultDriver, honoring the driver's getMaxConcurrent() and getTimeout().
+ *
+ * At most getMaxConcurrent() tasks hold a slot at once (at least one). If getTimeout() is positive, a task still
+ * running that many millis after it was submitted is interrupted, recorded as a failure with a TimeoutException
+ * (unless it had already recorded its result), and its slot is freed. A task that ignores the interrupt keeps its
+ * thread until it finishes, but any result it records after timing out is dropped, so each task is recorded once
+ * and the result does not change after run returns. Drivers record results through record, as
+ * MultiResultDriverBase does. Since tasks run concurrently, the driver's exec, before and after must be safe to call
+ * from several threads.
+ *
+ * Without an ExecutorService, each run uses its own pool of getMaxConcurrent() daemon threads, and shuts it down
+ * when done. With one, tasks run there, still at most getMaxConcurrent() slots at a time: the limit counts slots,
+ * not live threads, so tasks that ignored their timeout can push the number of threads actually running above it.
+ *
+ * Statistics (latency, counts, throughput) cover all runs of this executor.
+ */
+@Slf4j
+public class MultiResultExecutor {
+
+    private static class SharedTimeoutScheduler {
+        static final ScheduledExecutorService instance = initScheduler();
+        private static ScheduledExecutorService initScheduler() {
+            final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, DaemonThreadFactory.instance);
+            scheduler.setRemoveOnCancelPolicy(true);
+            return scheduler;
+        }
+    }
+
+    // the task running on each pool thread, so that results it records after it has timed out can be dropped
+    private static final ThreadLocal<TaskRun> currentRun = new ThreadLocal<>();
+
+    /**
+     * Record a result for the task running on the calling thread, unless that task has already timed out
+     * @param recorder records the result, for example in the driver's MultiResult
+     * @return true if the result was recorded, false if it was dropped
+     */
+    public static boolean record (Runnable recorder) {
+        final TaskRun run = currentRun.get();
+        if (run == null) {
+            recorder.run();
+            return true;
+        }
+        synchronized (run) {
+            if (run.timedOut) return false;
+            recorder.run();
+            run.recorded = true;
+            return true;
+        }
+    }
+
+    @Getter private final MultiResultDriver driver;
+    private final ExecutorService executor;
+
+    @Getter private final LatencyHistogram latency = new LatencyHistogram();
+    @Getter private final AtomicLong started = new AtomicLong();
+    @Getter private final AtomicLong completed = new AtomicLong();
+    @Getter private final AtomicLong timedOut = new AtomicLong();
+    @Getter private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong elapsed = new AtomicLong();
+
+    public MultiResultExecutor (MultiResultDriver driver) { this(driver, null); }
+
+    public MultiResultExecutor (MultiResultDriver driver, ExecutorService executor) {
+        this.driver = driver;
+        this.executor = executor;
+    }
+
+    /**
+     * Run all tasks and wait for them to finish (or time out)
+     * @param tasks the tasks to pass to driver.exec
+     * @return the driver's result
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public MultiResult run (Collection<?> tasks) throws InterruptedException {
+        final int maxConcurrent = Math.max(1, driver.getMaxConcurrent());
+        final long timeout = driver.getTimeout();
+        final ExecutorService pool = executor != null ? executor : DaemonThreadFactory.fixedPool(maxConcurrent);
+        final Semaphore permits = new Semaphore(maxConcurrent);
+        final CountDownLatch done = new CountDownLatch(tasks.size());
+        final long start = realNow();
+        try {
+            for (Object task : tasks) {
+                permits.acquire();
+                final TaskRun run = new TaskRun(task, permits, done);
+                try {
+                    run.future = pool.submit(run);
+                } catch (RejectedExecutionException e) {
+                    rejected.incrementAndGet();
+                    driver.failure(String.valueOf(task), e);
+                    if (run.settled.compareAndSet(false, true)) run.release();
+                    continue;
+                }
+                if (timeout > 0 && !run.settled.get()) {
+                    run.timer = SharedTimeoutScheduler.instance.schedule(new Timeout(run, timeout), timeout, TimeUnit.MILLISECONDS);
+                    if (run.settled.get()) run.timer.cancel(false); // finished while we were scheduling
+                }
+            }
+            done.await();
+            return driver.getResult();
+
+        } finally {
+            elapsed.addAndGet(realNow() - start);
+            if (pool != executor) pool.shutdownNow();
+        }
+    }
+
+    private class TaskRun implements Runnable {
+        final Object task;
+        final Semaphore permits;
+        final CountDownLatch done;
+        final AtomicBoolean settled = new AtomicBoolean(false);
+        volatile Future<?> future;
+        volatile ScheduledFuture<?> timer;
+        boolean timedOut = false; // guarded by this
+        boolean recorded = false; // guarded by this
+
+        TaskRun (Object task, Semaphore permits, CountDownLatch done) {
+            this.task = task;
+            this.permits = permits;
+            this.done = done;
+        }
+
+        @Override public void run() {
+            final long taskStart = realNow();
+            started.incrementAndGet();
+            currentRun.set(this);
+            try {
+                driver.exec(task);
+            } finally {
+                currentRun.remove();
+                latency.record(realNow() - taskStart);
+                completed.incrementAndGet();
+                if (settled.compareAndSet(false, true)) release();
+            }
+        }
+
+        // called once, by whichever comes first of the task finishing or timing out: frees its slot
+        void release () {
+            final ScheduledFuture<?> t = timer;
+            if (t != null) t.cancel(false);
+            permits.release();
+            done.countDown();
+        }
+    }
+
+    private class Timeout implements Runnable {
+        private final TaskRun run;
+        private final long timeout;
+        Timeout (TaskRun run, long timeout) { this.run = run; this.timeout = timeout; }
+
+        @Override public void run() {
+            if (!run.settled.compareAndSet(false, true)) return; // finished in time
+            final boolean recorded;
+            synchronized (run) {
+                run.timedOut = true; // from now on, drop whatever the task records
+                recorded = run.recorded;
+            }
+            run.future.cancel(true);
+            timedOut.incrementAndGet();
+            log.warn("run: task timed out after "+timeout+"ms: "+run.task);
+            // record the failure before releasing, so it is in the result when run returns
+            if (!recorded) driver.failure(driver.timeoutMessage(run.task), new TimeoutException("timed out after "+timeout+"ms"));
+            run.release();
+        }
+    }
+
+    /**
+     * @return tasks completed per second, over the time spent in run
+     */
+    public double getThroughput () {
+        final long millis = elapsed.get();
+        return millis == 0 ? 0 : completed.get() * 1000.0 / millis;
+    }
+
+    public String getStats () {
+        return "started="+started.get()+", completed="+completed.get()+", timedOut="+timedOut.get()
+                +", rejected="+rejected.get()+", throughput="+String.format("%.1f", getThroughput())+"/s"
+                +", latency(ms): mean="+String.format("%.1f", latency.getMean())
+                +" p50="+latency.percentile(50)+" p95="+latency.percentile(95)+" p99="+latency.percentile(99)
+                +" max="+latency.getMax();
+    }
+
+}
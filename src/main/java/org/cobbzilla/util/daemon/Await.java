@@ -1,23 +1,161 @@
 package org.cobbzilla.util.daemon;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import lombok.extern.slf4j.Slf4j;
 import org.cobbzilla.util.time.ClockProvider;
 
 import java.util.*;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.now;
-import static org.cobbzilla.util.system.Sleep.sleep;
 
+/**
+ * Waits on collections of futures, consuming each result as soon as its future completes.
+ *
+ * A ListenableFuture notifies the waiting thread directly. All other Futures are checked by a single shared
+ * "watcher" thread, which polls each one's isDone every millisecond and hands it to the waiting thread when done,
+ * so waiting on any number of plain futures costs one thread in all. A call's futures stop being watched when it
+ * returns. Timeouts are measured with ZillaRuntime.now, so they honor the system time offset, and a timeout too
+ * large to add to the current time means no timeout. The retrySleep and getSleep parameters are ignored, and
+ * remain only so existing callers still compile.
+ */
 @Slf4j
 public class Await {
 
-    public static final long DEFAULT_AWAIT_GET_SLEEP = 10;
-    public static final long DEFAULT_AWAIT_RETRY_SLEEP = 100;
+    /** @deprecated no longer used */
+    @Deprecated public static final long DEFAULT_AWAIT_GET_SLEEP = 10;
+    /** @deprecated no longer used */
+    @Deprecated public static final long DEFAULT_AWAIT_RETRY_SLEEP = 100;
+
+    /**
+     * Polls the plain futures of every Completions in progress, on one daemon thread.
+     */
+    private static class Watcher implements Runnable {
+
+        private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+        static final Watcher instance = new Watcher();
+
+        private final ConcurrentLinkedQueue<Watch<?>> added = new ConcurrentLinkedQueue<>();
+        private final List<Watch<?>> watching = new ArrayList<>(); // only touched by the watcher thread
+        private final Thread thread;
+
+        private Watcher () {
+            thread = DaemonThreadFactory.instance.newThread(this);
+            thread.setName("Await-watcher");
+            thread.start();
+        }
+
+        void watch (Watch<?> watch) {
+            added.add(watch);
+            LockSupport.unpark(thread);
+        }
+
+        @Override public void run() {
+            while (true) {
+                for (Watch<?> w = added.poll(); w != null; w = added.poll()) watching.add(w);
+                if (watching.isEmpty()) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                final long now = now();
+                for (int i=watching.size()-1; i>=0; i--) {
+                    boolean finished;
+                    try {
+                        finished = watching.get(i).check(now);
+                    } catch (Exception e) {
+                        log.warn("watcher: error checking future, no longer watching it: "+e);
+                        finished = true;
+                    }
+                    if (finished) {
+                        // order doesn't matter: swap in the last one rather than shift the rest down
+                        final Watch<?> last = watching.remove(watching.size()-1);
+                        if (i < watching.size()) watching.set(i, last);
+                    }
+                }
+                LockSupport.parkNanos(this, INTERVAL_NANOS);
+            }
+        }
+    }
+
+    private static class Watch<E> {
+        private final Future<E> future;
+        private final Completions<E> completions;
+
+        Watch (Future<E> future, Completions<E> completions) {
+            this.future = future;
+            this.completions = completions;
+        }
+
+        // @return true when there is nothing more to watch for
+        boolean check (long now) {
+            if (completions.closed || now >= completions.deadline) return true;
+            if (!future.isDone()) return false;
+            completions.done.add(future);
+            return true;
+        }
+    }
+
+    /**
+     * Queues futures in the order they complete. Futures already done are queued immediately.
+     * Call close when done, so the watcher stops watching the rest.
+     */
+    private static class Completions<E> {
+
+        private final LinkedBlockingQueue<Future<E>> done = new LinkedBlockingQueue<>();
+        private final long deadline;
+        private volatile boolean closed = false;
+
+        Completions (Collection<? extends Future<E>> futures, long timeout) {
+            final long start = now();
+            this.deadline = timeout > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + timeout;
+            for (Future<E> future : futures) watch(future);
+        }
+
+        private void watch (final Future<E> future) {
+            if (future.isDone()) {
+                done.add(future);
+
+            } else if (future instanceof ListenableFuture) {
+                ((ListenableFuture) future).addListener(new Runnable() {
+                    @Override public void run() { done.add(future); }
+                }, MoreExecutors.directExecutor());
+
+            } else {
+                Watcher.instance.watch(new Watch<>(future, this));
+            }
+        }
+
+        void close () { closed = true; }
+
+        /**
+         * @return the next future to complete
+         * @throws TimeoutException if none completes before the deadline
+         */
+        Future<E> next () throws TimeoutException {
+            final Future<E> future;
+            try {
+                future = done.poll(deadline - now(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return die("await: interrupted: " + e);
+            }
+            if (future == null) throw new TimeoutException("await: timed out");
+            return future;
+        }
+    }
+
+    private static <E> E result (Future<E> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            return die("await: interrupted: " + e);
+        } catch (ExecutionException e) {
+            return die("await: execution error: " + e);
+        }
+    }
 
     public static <E> E awaitFirst(Collection<Future<E>> futures, long timeout) throws TimeoutException {
         return awaitFirst(futures, timeout, DEFAULT_AWAIT_RETRY_SLEEP);
@@ -26,29 +164,28 @@ public class Await {
         return awaitFirst(futures, timeout, retrySleep, DEFAULT_AWAIT_GET_SLEEP);
     }
 
+    /**
+     * @param futures the futures to wait on. Futures that complete with null are removed from it.
+     * @param timeout how long to wait, in millis
+     * @param retrySleep ignored
+     * @param getSleep ignored
+     * @return the first non-null result, or null if every future completed with null
+     * @throws TimeoutException if no future completed with a non-null result within the timeout
+     */
     public static <E> E awaitFirst(Collection<Future<E>> futures, long timeout, long retrySleep, long getSleep) throws TimeoutException {
-        long start = now();
-        while (!futures.isEmpty() && now() - start < timeout) {
-            for (Iterator<Future<E>> iter = futures.iterator(); iter.hasNext(); ) {
-                Future<E> future = iter.next();
-                try {
-                    final E value = future.get(getSleep, TimeUnit.MILLISECONDS);
-                    if (value != null) return value;
-                    iter.remove();
-                    if (futures.isEmpty()) break;
-
-                } catch (InterruptedException e) {
-                    die("await: interrupted: " + e);
-                } catch (ExecutionException e) {
-                    die("await: execution error: " + e);
-                } catch (TimeoutException e) {
-                    // noop
-                }
-                sleep(retrySleep);
+        if (futures.isEmpty()) return null;
+        final Completions<E> completions = new Completions<>(futures, timeout);
+        try {
+            while (!futures.isEmpty()) {
+                final Future<E> future = completions.next();
+                final E value = result(future);
+                if (value != null) return value;
+                futures.remove(future);
             }
+            return null; // all futures had a null result
+        } finally {
+            completions.close();
         }
-        if (now() - start > timeout) throw new TimeoutException("await: timed out");
-        return null; // all futures had a null result
     }
 
     public static List awaitAndCollect(Collection<Future<List>> futures, int maxResults, long timeout) throws TimeoutException {
@@ -68,29 +205,7 @@ public class Await {
     }
 
     public static List awaitAndCollect(Collection<Future<List>> futures, int maxResults, long timeout, long retrySleep, long getSleep, List results) throws TimeoutException {
-        long start = now();
-        int size = futures.size();
-        while (!futures.isEmpty() && now() - start < timeout) {
-            for (Iterator<Future<List>> iter = futures.iterator(); iter.hasNext(); ) {
-                Future future = iter.next();
-                try {
-                    results.addAll((List) future.get(getSleep, TimeUnit.MILLISECONDS));
-                    iter.remove();
-                    if (--size <= 0 || results.size() >= maxResults) return results;
-                    break;
-
-                } catch (InterruptedException e) {
-                    die("await: interrupted: " + e);
-                } catch (ExecutionException e) {
-                    die("await: execution error: " + e);
-                } catch (TimeoutException e) {
-                    // noop
-                }
-                sleep(retrySleep);
-            }
-        }
-        if (now() - start > timeout) throw new TimeoutException("await: timed out");
-        return results;
+        return (List) collect(futures, maxResults, timeout, results);
     }
 
     public static Set awaitAndCollectSet(Collection<Future<List>> futures, int maxResults, long timeout) throws TimeoutException {
@@ -110,61 +225,83 @@ public class Await {
     }
 
     public static Set awaitAndCollectSet(Collection<Future<List>> futures, int maxResults, long timeout, long retrySleep, long getSleep, Set results) throws TimeoutException {
-        long start = now();
-        int size = futures.size();
-        while (!futures.isEmpty() && now() - start < timeout) {
-            for (Iterator<Future<List>> iter = futures.iterator(); iter.hasNext(); ) {
-                Future future = iter.next();
-                try {
-                    results.addAll((Collection) future.get(getSleep, TimeUnit.MILLISECONDS));
-                    iter.remove();
-                    if (--size <= 0 || results.size() >= maxResults) return results;
-                    break;
-
-                } catch (InterruptedException e) {
-                    die("await: interrupted: " + e);
-                } catch (ExecutionException e) {
-                    die("await: execution error: " + e);
-                } catch (TimeoutException e) {
-                    // noop
-                }
-                sleep(retrySleep);
+        return (Set) collect(futures, maxResults, timeout, results);
+    }
+
+    // adds each future's results as it completes, removing it from futures, until all are done or we have maxResults
+    private static Collection collect(Collection<Future<List>> futures, int maxResults, long timeout, Collection results) throws TimeoutException {
+        if (futures.isEmpty()) return results;
+        final Completions<List> completions = new Completions<>(futures, timeout);
+        try {
+            while (!futures.isEmpty()) {
+                final Future<List> future = completions.next();
+                results.addAll(result(future));
+                futures.remove(future);
+                if (results.size() >= maxResults) break;
             }
+            return results;
+        } finally {
+            completions.close();
         }
-        if (now() - start > timeout) throw new TimeoutException("await: timed out");
-        return results;
     }
 
     public static <T> AwaitResult<T> awaitAll(Collection<Future<?>> futures, long timeout) {
         return awaitAll(futures, timeout, ClockProvider.SYSTEM);
     }
 
+    /**
+     * Waits for every future, or until the timeout. Since all must finish, this simply blocks on each in turn:
+     * the call returns as soon as the last one completes.
+     * @param futures the futures to wait on
+     * @param timeout how long to wait, in millis
+     * @param clock the clock used to measure the timeout
+     * @return the successes, failures, and futures that were still running at the timeout
+     */
     public static <T> AwaitResult<T> awaitAll(Collection<Future<?>> futures, long timeout, ClockProvider clock) {
-        long start = clock.now();
+        final long start = clock.now();
         final AwaitResult<T> result = new AwaitResult<>();
         final Collection<Future<?>> awaiting = new ArrayList<>(futures);
 
-        while (clock.now() - start < timeout) {
-            for (Iterator iter = awaiting.iterator(); iter.hasNext(); ) {
-                final Future f = (Future) iter.next();
+        for (Iterator<Future<?>> iter = awaiting.iterator(); iter.hasNext(); ) {
+            final Future f = iter.next();
+            final long remaining = timeout - (clock.now() - start);
+            if (remaining <= 0) break;
+            try {
+                f.get(remaining, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                die("awaitAll: interrupted: " + e);
+            } catch (Exception ignored) {
+                // recorded below: a TimeoutException means we are past the deadline
+            }
+            if (!f.isDone()) break;
+            iter.remove();
+            collect(f, result);
+        }
+
+        // anything that finished while we were blocked on an earlier future still counts
+        if (timeout > 0) {
+            for (Iterator<Future<?>> iter = awaiting.iterator(); iter.hasNext(); ) {
+                final Future f = iter.next();
                 if (f.isDone()) {
                     iter.remove();
-                    try {
-                        final T r = (T) f.get();
-                        if (r != null) log.info("awaitAll: "+ r);
-                        result.success(f, r);
-
-                    } catch (Exception e) {
-                        log.warn("awaitAll: "+e, e);
-                        result.fail(f, e);
-                    }
+                    collect(f, result);
                 }
             }
-            if (awaiting.isEmpty()) break;
-            sleep(200);
         }
 
         result.timeout(awaiting);
         return result;
     }
+
+    private static <T> void collect(Future f, AwaitResult<T> result) {
+        try {
+            final T r = (T) f.get();
+            if (r != null) log.info("awaitAll: "+ r);
+            result.success(f, r);
+
+        } catch (Exception e) {
+            log.warn("awaitAll: "+e, e);
+            result.fail(f, e);
+        }
+    }
 }
@@ -0,0 +1,17 @@
+package org.cobbzilla.util.daemon;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+/**
+ * How a SimpleDaemon runs process():
+ * thread: on its own thread, sleeping getSleepTime() between calls (the default).
+ * fixed_delay: on a shared executor, getSleepTime() after the previous call finished.
+ * fixed_rate: on a shared executor, every getSleepTime() since the daemon started, regardless of how long calls take.
+ */
+public enum DaemonScheduleMode {
+
+    thread, fixed_delay, fixed_rate;
+
+    @JsonCreator public static DaemonScheduleMode fromString (String val) { return valueOf(val.toLowerCase()); }
+
+}
@@ -1,19 +1,83 @@
 package org.cobbzilla.util.daemon;
 
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 
+/**
+ * Creates daemon threads.
+ *
+ * On a JDK with virtual threads (21+), you can opt in to having this factory (and so fixedPool, cachedPool,
+ * ZillaRuntime.background/daemon and SimpleDaemon) create virtual threads instead, either by setting the system
+ * property zilla.virtualThreads=true or by calling setUseVirtualThreads(true). Virtual threads are always daemon
+ * threads. On older JDKs the setting is ignored (with a warning) and platform threads are created as before.
+ */
+@Slf4j
 public class DaemonThreadFactory implements ThreadFactory {
 
+    public static final String VIRTUAL_THREADS_PROPERTY = "zilla.virtualThreads";
+
     public static final DaemonThreadFactory instance = new DaemonThreadFactory();
 
+    private static volatile boolean useVirtualThreads = Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY);
+
+    public static boolean useVirtualThreads () { return useVirtualThreads && virtualThreadsSupported(); }
+
+    public static void setUseVirtualThreads (boolean use) {
+        if (use && !virtualThreadsSupported()) {
+            log.warn("setUseVirtualThreads: virtual threads are not supported by this JVM ("+System.getProperty("java.version")+"), using platform threads");
+        }
+        useVirtualThreads = use;
+    }
+
+    public static boolean virtualThreadsSupported () { return VirtualThreads.factory != null; }
+
+    // looked up reflectively, since we compile against Java 7
+    private static class VirtualThreads {
+        static final ThreadFactory factory = initFactory();
+        private static ThreadFactory initFactory() {
+            try {
+                final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                final Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+                return (ThreadFactory) factory.invoke(builder);
+            } catch (Exception e) {
+                if (Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY)) {
+                    log.warn("virtual threads are not supported by this JVM, using platform threads: "+e);
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @param r what the thread will run
+     * @return a new (unstarted) virtual thread if useVirtualThreads() is true, otherwise a new daemon thread
+     */
     @Override public Thread newThread(Runnable r) {
+        if (useVirtualThreads()) return VirtualThreads.factory.newThread(r);
         final Thread t = new Thread(r);
         t.setDaemon(true);
         return t;
     }
 
+    /**
+     * @param r what the thread will run
+     * @return a new (unstarted) non-daemon thread, or a virtual thread if useVirtualThreads() is true
+     */
+    public static Thread newBackgroundThread (Runnable r) {
+        return useVirtualThreads() ? VirtualThreads.factory.newThread(r) : new Thread(r);
+    }
+
     public static ExecutorService fixedPool (int count) { return Executors.newFixedThreadPool(count, instance); }
 
+    /**
+     * With virtual threads, this is a thread per task; otherwise a pool of daemon threads that grows as needed
+     * and reuses idle ones.
+     * @return an unbounded executor
+     */
+    public static ExecutorService cachedPool () { return Executors.newCachedThreadPool(instance); }
+
 }
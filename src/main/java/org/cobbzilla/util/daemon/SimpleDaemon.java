@@ -2,18 +2,48 @@ package org.cobbzilla.util.daemon;
 
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.time.LatencyHistogram;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
 import static org.cobbzilla.util.daemon.ZillaRuntime.now;
-import static org.cobbzilla.util.daemon.ZillaRuntime.readStdin;
+import static org.cobbzilla.util.daemon.ZillaRuntime.realNow;
 import static org.cobbzilla.util.system.Sleep.sleep;
 
+/**
+ * Calls process() repeatedly until stopped, with onStart/init before the first call and onStop after the last.
+ *
+ * By default each daemon has its own thread, which sleeps getSleepTime() between calls. Daemons that override
+ * getScheduleMode() to return fixed_delay or fixed_rate instead share a scheduler and a pool of worker threads,
+ * so idle daemons cost no threads at all. In those modes:
+ * <ul>
+ * <li>getJitter() adds a random delay (up to that many millis) to each run, to spread out daemons with the same period</li>
+ * <li>process() never runs concurrently with itself. With fixed_rate, a run that is due while the previous one is
+ * still going is skipped if isSkipIfRunning() (the default), otherwise it runs as soon as the previous one finishes.</li>
+ * </ul>
+ * In every mode, process() run times are recorded in getProcessTimes().
+ */
 @Slf4j
 public abstract class SimpleDaemon implements Runnable {
 
     public static final DateTimeFormatter DFORMAT = DateTimeFormat.forPattern("yyyy-MMM-dd HH:mm:ss");
 
+    private static class SharedScheduler {
+        static final ScheduledExecutorService instance = initScheduler();
+        private static ScheduledExecutorService initScheduler() {
+            final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, DaemonThreadFactory.instance);
+            scheduler.setRemoveOnCancelPolicy(true);
+            return scheduler;
+        }
+    }
+
+    private static class SharedWorkers {
+        static final ExecutorService instance = DaemonThreadFactory.cachedPool();
+    }
+
     public SimpleDaemon () { this.name = getClass().getSimpleName(); }
 
     public SimpleDaemon (String name) { this.name = name; }
@@ -21,26 +51,56 @@ public abstract class SimpleDaemon implements Runnable {
     @Getter private String name;
     @Getter private long lastProcessTime = 0;
 
+    @Getter private final LatencyHistogram processTimes = new LatencyHistogram();
+    @Getter private final AtomicLong skippedRuns = new AtomicLong();
+
     private volatile Thread mainThread = null;
     private final Object lock = new Object();
     private volatile boolean isDone = false;
 
+    // scheduled modes only; guarded by lock
+    private boolean scheduled = false;
+    private boolean initialized = false;
+    private boolean pendingRun = false;
+    private Thread runThread = null;
+    private ScheduledFuture<?> nextRun = null;
+    private long nextRunAt;
+
     /** Called right after daemon has started */
     public void onStart () {}
 
     /** Called right before daemon is about to exit */
     public void onStop () {}
 
+    /** @return how process() is run. Read once, when the daemon starts. */
+    protected DaemonScheduleMode getScheduleMode () { return DaemonScheduleMode.thread; }
+
+    /** @return the maximum random delay, in millis, added to each scheduled run */
+    protected long getJitter () { return 0; }
+
+    /** @return with fixed_rate, true to skip a run that is due while process() is still running */
+    protected boolean isSkipIfRunning () { return true; }
+
+    /** @return the executor that times scheduled runs. It should only start tasks, never run process() itself. */
+    protected ScheduledExecutorService getScheduler () { return SharedScheduler.instance; }
+
+    /** @return the executor that scheduled runs of process() run on */
+    protected ExecutorService getExecutor () { return SharedWorkers.instance; }
+
     public void start() {
         log.info(name+": Starting daemon");
+        final DaemonScheduleMode mode = getScheduleMode();
         synchronized (lock) {
-            if (mainThread != null) {
+            if (mainThread != null || scheduled) {
                 log.warn(name+": daemon is already running, not starting it again");
                 return;
             }
-            mainThread = new Thread(this);
+            if (mode != DaemonScheduleMode.thread) {
+                startScheduled(mode);
+                return;
+            }
+            mainThread = DaemonThreadFactory.instance.newThread(this);
         }
-        mainThread.setDaemon(true);
         mainThread.start();
     }
 
@@ -53,6 +113,25 @@ public abstract class SimpleDaemon implements Runnable {
     }
 
     public void stop() {
+        boolean finishNow = false;
+        synchronized (lock) {
+            if (scheduled) {
+                if (isDone) return;
+                isDone = true;
+                if (nextRun != null) nextRun.cancel(false);
+                if (runThread == null) {
+                    finishNow = true;
+                } else {
+                    runThread.interrupt(); // the run calls finishScheduled when it ends
+                    return;
+                }
+            }
+        }
+        if (finishNow) {
+            finishScheduled();
+            return;
+        }
+
         if (alreadyStopped()) return;
         isDone = true;
         mainThread.interrupt();
@@ -60,6 +139,12 @@ public abstract class SimpleDaemon implements Runnable {
     }
 
     public void interrupt() {
+        synchronized (lock) {
+            if (scheduled) {
+                if (runThread != null) runThread.interrupt();
+                return;
+            }
+        }
         if (alreadyStopped()) return;
         mainThread.interrupt();
     }
@@ -68,6 +153,9 @@ public abstract class SimpleDaemon implements Runnable {
      * @deprecated USE WITH CAUTION -- calls Thread.stop() !!
      */
     private void kill() {
+        synchronized (lock) {
+            if (scheduled) return; // a shared worker thread cannot be killed; stop() has interrupted it
+        }
         if (alreadyStopped()) return;
         isDone = true;
         mainThread.stop();
@@ -106,8 +194,7 @@ public abstract class SimpleDaemon implements Runnable {
 
             while (!isDone) {
                 log.debug(name + ": Daemon thread invoking process");
-                process();
-                lastProcessTime = now();
+                timedProcess();
                 if (isDone) return;
                 if (!wait(getSleepTime(), "run[post-processing]")) return;
             }
@@ -116,23 +203,168 @@ public abstract class SimpleDaemon implements Runnable {
 
         } finally {
             cleanup();
+            stopped();
+        }
+    }
+
+    private void timedProcess () {
+        final long start = realNow();
+        try {
+            process();
+        } finally {
+            processTimes.record(realNow() - start);
+        }
+        lastProcessTime = now();
+    }
+
+    private void stopped () {
+        try {
+            onStop();
+        } catch (Exception e) {
+            log.error(name + ": Error in onStop, exiting and ignoring error: " + e, e);
+        }
+    }
+
+    // called with lock held
+    private void startScheduled (final DaemonScheduleMode mode) {
+        scheduled = true;
+        initialized = false;
+        getExecutor().execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    onStart();
+                } catch (Exception e) {
+                    log.error(name + ": Error in onStart, exiting: " + e, e);
+                    finishScheduled();
+                    return;
+                }
+                synchronized (lock) {
+                    final long delay = getStartupDelay();
+                    if (delay > 0) log.debug(name + ": Delaying daemon startup for " + delay + "ms...");
+                    nextRunAt = realNow() + delay;
+                    schedule(mode == DaemonScheduleMode.fixed_rate ? new RateTick() : handoff(new RunTask(mode)), delay);
+                }
+            }
+        });
+    }
+
+    // called with lock held
+    private void schedule (Runnable task, long delay) {
+        if (isDone) return;
+        final long jitter = getJitter();
+        if (jitter > 0) delay += ThreadLocalRandom.current().nextLong(jitter + 1);
+        nextRun = getScheduler().schedule(task, Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    // scheduled tasks only start runs on the executor, so a slow process() can't hold up other daemons
+    private Runnable handoff (final Runnable task) {
+        return new Runnable() { @Override public void run() { submit(task); } };
+    }
+
+    // fixed_rate: runs on the scheduler, schedules the next tick relative to when this one was due, and hands
+    // the run to the executor
+    private class RateTick implements Runnable {
+        @Override public void run() {
+            synchronized (lock) {
+                final long period = Math.max(1, getSleepTime());
+                final long now = realNow();
+                nextRunAt += period;
+                while (nextRunAt <= now) nextRunAt += period; // fell behind: don't try to catch up
+                schedule(this, nextRunAt - now);
+            }
+            submit(new RunTask(DaemonScheduleMode.fixed_rate));
+        }
+    }
+
+    private void submit (Runnable task) {
+        try {
+            getExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            log.error(name + ": executor rejected run, exiting: " + e);
+            synchronized (lock) { isDone = true; if (nextRun != null) nextRun.cancel(false); }
+            finishScheduled();
+        }
+    }
+
+    private class RunTask implements Runnable {
+        private final DaemonScheduleMode mode;
+        RunTask (DaemonScheduleMode mode) { this.mode = mode; }
+
+        @Override public void run() {
+            final boolean doInit;
+            synchronized (lock) {
+                if (isDone) return;
+                if (runThread != null) {
+                    if (isSkipIfRunning()) {
+                        skippedRuns.incrementAndGet();
+                        log.debug(name + ": process still running, skipping this run");
+                    } else {
+                        pendingRun = true;
+                    }
+                    return;
+                }
+                runThread = Thread.currentThread();
+                doInit = !initialized;
+                initialized = true;
+            }
+            boolean ok = false;
             try {
-                onStop();
+                if (doInit) {
+                    log.debug(name + ": Daemon invoking init");
+                    init();
+                }
+                log.debug(name + ": Daemon invoking process");
+                timedProcess();
+                ok = true;
+
             } catch (Exception e) {
-                log.error(name + ": Error in onStop, exiting and ignoring error: " + e, e);
+                if (!isDone) log.error(name + ": Error in daemon, exiting: " + e, e);
+
+            } finally {
+                final boolean finished;
+                boolean again = false;
+                synchronized (lock) {
+                    runThread = null;
+                    if (!ok) isDone = true;
+                    finished = isDone;
+                    if (finished) {
+                        if (nextRun != null) nextRun.cancel(false);
+                    } else if (pendingRun) {
+                        pendingRun = false;
+                        again = true;
+                    } else if (mode == DaemonScheduleMode.fixed_delay) {
+                        schedule(handoff(this), getSleepTime());
+                    }
+                }
+                Thread.interrupted(); // don't leave an interrupt from stop() on a shared thread
+                if (finished) {
+                    finishScheduled();
+                } else if (again) {
+                    submit(this);
+                }
             }
         }
     }
 
+    private void finishScheduled () {
+        synchronized (lock) {
+            if (!scheduled) return;
+            scheduled = false;
+            nextRun = null;
+            isDone = true;
+        }
+        stopped();
+    }
+
     protected boolean wait(long delay, String reason) {
         try {
             sleep(delay, reason);
             return true;
         } catch (RuntimeException e) {
             if (isDone) {
-                log.info("sleep("+readStdin()+") interrupted but daemon is done");
+                log.info("sleep("+reason+") interrupted but daemon is done");
             } else {
-                log.error("sleep("+readStdin()+") interrupted, exiting: "+e);
+                log.error("sleep("+reason+") interrupted, exiting: "+e);
             }
             return false;
         }
@@ -147,6 +379,9 @@ public abstract class SimpleDaemon implements Runnable {
     public boolean getIsDone() { return isDone; }
 
     public boolean getIsAlive() {
+        synchronized (lock) {
+            if (scheduled) return true;
+        }
         try {
             return mainThread != null && mainThread.isAlive();
         } catch (NullPointerException npe) {
@@ -162,6 +397,9 @@ public abstract class SimpleDaemon implements Runnable {
     public String getStatus() {
         return "isDone=" + getIsDone()
                 + "\nlastProcessTime=" + DFORMAT.print(lastProcessTime)
-                + "\nsleepTime=" + getSleepTime()+"ms";
+                + "\nsleepTime=" + getSleepTime()+"ms"
+                + "\nscheduleMode=" + getScheduleMode()
+                + "\nprocessTimes=" + processTimes
+                + (skippedRuns.get() > 0 ? "\nskippedRuns=" + skippedRuns.get() : "");
     }
 }
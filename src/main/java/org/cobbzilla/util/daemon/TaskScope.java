@@ -0,0 +1,155 @@
+package org.cobbzilla.util.daemon;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+
+/**
+ * Runs a group of tasks, each on its own thread, that must not outlive the code that started them:
+ *
+ * <pre>
+ * try (TaskScope&lt;Page&gt; scope = new TaskScope&lt;&gt;()) {
+ *     for (String url : urls) scope.fork(fetch(url));
+ *     final AwaitResult&lt;Page&gt; pages = scope.join(timeout);
+ *     ...
+ * } // any task still running is cancelled here, and its thread joined
+ * </pre>
+ *
+ * Threads come from DaemonThreadFactory, so they are virtual threads when DaemonThreadFactory.useVirtualThreads()
+ * is true, which makes a thread per blocking task cheap. Otherwise they are daemon platform threads.
+ *
+ * Closing the scope interrupts every unfinished task, then waits up to closeTimeout millis for all their threads
+ * to exit. A task that ignores interrupts for longer than that is logged and left running.
+ *
+ * With failFast, the first task to fail cancels all the others. The futures returned by fork are
+ * ListenableFutures, so Await can wait on them without extra threads.
+ *
+ * @param <T> the result type of the tasks
+ */
+@Slf4j
+public class TaskScope<T> implements AutoCloseable {
+
+    public static final long DEFAULT_CLOSE_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    @Getter private final boolean failFast;
+    @Getter @Setter private long closeTimeout = DEFAULT_CLOSE_TIMEOUT;
+    private final List<ListenableFutureTask<T>> tasks = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    public TaskScope () { this(false); }
+
+    public TaskScope (boolean failFast) { this.failFast = failFast; }
+
+    /**
+     * Start a task on a new thread
+     * @param task the task
+     * @return its future
+     */
+    public ListenableFuture<T> fork (Callable<T> task) {
+        final ListenableFutureTask<T> future = ListenableFutureTask.create(task);
+        final Thread thread = DaemonThreadFactory.instance.newThread(future);
+        synchronized (tasks) {
+            if (closed) return die("fork: scope is closed");
+            tasks.add(future);
+            threads.add(thread);
+        }
+        if (failFast) {
+            future.addListener(new Runnable() {
+                @Override public void run() { if (failed(future)) cancelAll(); }
+            }, MoreExecutors.directExecutor());
+        }
+        thread.start();
+        return future;
+    }
+
+    private static boolean failed (Future<?> future) {
+        if (future.isCancelled()) return false;
+        try {
+            future.get();
+            return false;
+        } catch (InterruptedException e) {
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        }
+    }
+
+    /**
+     * @return the futures of all forked tasks, in the order they were forked
+     */
+    public List<Future<?>> getFutures () {
+        synchronized (tasks) { return new ArrayList<Future<?>>(tasks); }
+    }
+
+    /**
+     * Wait for all forked tasks to finish
+     * @param timeout how long to wait, in millis
+     * @return the results. Tasks still running at the timeout are listed as timeouts, and keep running until
+     * the scope is closed.
+     */
+    public AwaitResult<T> join (long timeout) { return Await.awaitAll(getFutures(), timeout); }
+
+    /**
+     * Wait for the first task to complete with a non-null result
+     * @param timeout how long to wait, in millis
+     * @return that result, or null if every task completed with null
+     * @throws TimeoutException if no task produced a result within the timeout
+     */
+    public T joinFirst (long timeout) throws TimeoutException {
+        final Collection<Future<T>> futures;
+        synchronized (tasks) { futures = new ArrayList<Future<T>>(tasks); }
+        return Await.awaitFirst(futures, timeout);
+    }
+
+    /**
+     * Interrupt and cancel every task that has not finished
+     */
+    public void cancelAll () {
+        for (Future<?> f : getFutures()) f.cancel(true);
+    }
+
+    /**
+     * Cancels any unfinished tasks, and waits up to closeTimeout millis for their threads to exit.
+     * No more tasks can be forked.
+     */
+    @Override public void close () {
+        final List<Thread> toJoin;
+        synchronized (tasks) {
+            closed = true;
+            toJoin = new ArrayList<>(threads);
+        }
+        cancelAll();
+
+        final long start = now();
+        final long deadline = closeTimeout > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + closeTimeout;
+        for (Thread thread : toJoin) {
+            if (thread == Thread.currentThread()) continue; // closed from within one of our own tasks
+            final long remaining = deadline - now();
+            try {
+                if (remaining > 0) thread.join(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("close: interrupted while waiting for tasks to exit");
+                return;
+            }
+            if (thread.isAlive()) log.warn("close: task thread " + thread.getName() + " still running after " + closeTimeout + "ms");
+        }
+    }
+
+}
@@ -38,15 +38,23 @@ public class ZillaRuntime {
         }
     }
 
+    /**
+     * @param r what to run
+     * @return a started thread running r. If DaemonThreadFactory.useVirtualThreads() is true this is a virtual
+     * thread, which (unlike a platform thread) will not keep the JVM running.
+     */
     public static Thread background (Runnable r) {
-        final Thread t = new Thread(r);
+        final Thread t = DaemonThreadFactory.newBackgroundThread(r);
         t.start();
         return t;
     }
 
+    /**
+     * @param r what to run
+     * @return a started daemon thread running r, virtual if DaemonThreadFactory.useVirtualThreads() is true
+     */
     public static Thread daemon (Runnable r) {
-        final Thread t = new Thread(r);
-        t.setDaemon(true);
+        final Thread t = DaemonThreadFactory.instance.newThread(r);
         t.start();
         return t;
     }
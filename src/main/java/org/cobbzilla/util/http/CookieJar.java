@@ -7,6 +7,7 @@ import org.apache.http.cookie.Cookie;
 import org.cobbzilla.util.collection.CaseInsensitiveStringKeyMap;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 @NoArgsConstructor
 public class CookieJar extends CaseInsensitiveStringKeyMap<HttpCookieBean> implements CookieStore {
@@ -15,6 +16,22 @@ public class CookieJar extends CaseInsensitiveStringKeyMap<HttpCookieBean> imple
 
     public CookieJar(HttpCookieBean cookie) { add(cookie); }
 
+    // serialized Cookie header, cached along with the version of the jar it was built from. every change to the
+    // jar bumps the version, so a value built from cookies that have since changed is never served.
+    // changing a cookie's value in place (rather than via add/put) will not be noticed: call add again instead.
+    private transient volatile long version;
+    private transient volatile RequestValue requestValue;
+
+    private static final AtomicLongFieldUpdater<CookieJar> VERSION = AtomicLongFieldUpdater.newUpdater(CookieJar.class, "version");
+
+    private static class RequestValue {
+        final long version;
+        final String value;
+        RequestValue (long version, String value) { this.version = version; this.value = value; }
+    }
+
+    private void changed () { VERSION.incrementAndGet(this); }
+
     public void add (HttpCookieBean cookie) {
         if (cookie.expired()) {
             remove(cookie.getName());
@@ -25,12 +42,51 @@ public class CookieJar extends CaseInsensitiveStringKeyMap<HttpCookieBean> imple
 
     @JsonIgnore
     public String getRequestValue() {
+        final long v = version;
+        final RequestValue cached = requestValue;
+        if (cached != null && cached.version == v) return cached.value;
+
         final StringBuilder sb = new StringBuilder();
-        for (String name : keySet()) {
+        for (HttpCookieBean cookie : values()) {
             if (sb.length() > 0) sb.append("; ");
-            sb.append(name).append("=").append(get(name).getValue());
+            sb.append(cookie.getName()).append("=").append(cookie.getValue());
         }
-        return sb.toString();
+        final String value = sb.toString();
+        // if the jar changed while we were building, this value may already be out of date: don't cache it
+        if (version == v) requestValue = new RequestValue(v, value);
+        return value;
+    }
+
+    @Override public HttpCookieBean put(String key, HttpCookieBean value) {
+        try { return super.put(key, value); } finally { changed(); }
+    }
+
+    @Override public HttpCookieBean putIfAbsent(String key, HttpCookieBean value) {
+        try { return super.putIfAbsent(key, value); } finally { changed(); }
+    }
+
+    @Override public void putAll(Map<? extends String, ? extends HttpCookieBean> m) {
+        for (Map.Entry<? extends String, ? extends HttpCookieBean> entry : m.entrySet()) put(entry.getKey(), entry.getValue());
+    }
+
+    @Override public HttpCookieBean remove(Object key) {
+        try { return super.remove(key); } finally { changed(); }
+    }
+
+    @Override public boolean remove(Object key, Object value) {
+        try { return super.remove(key, value); } finally { changed(); }
+    }
+
+    @Override public HttpCookieBean replace(String key, HttpCookieBean value) {
+        try { return super.replace(key, value); } finally { changed(); }
+    }
+
+    @Override public boolean replace(String key, HttpCookieBean oldValue, HttpCookieBean newValue) {
+        try { return super.replace(key, oldValue, newValue); } finally { changed(); }
+    }
+
+    @Override public void clear() {
+        try { super.clear(); } finally { changed(); }
     }
 
     public List<HttpCookieBean> getCookiesList () { return new ArrayList<>(values()); }
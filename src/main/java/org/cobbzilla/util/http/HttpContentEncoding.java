@@ -0,0 +1,131 @@
+package org.cobbzilla.util.http;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.entity.DeflateInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.daemon.ZillaRuntime.notSupported;
+
+/**
+ * Content-Encodings we know how to decode. gzip and deflate are always available, brotli and zstd are only
+ * available if their decoder libraries (org.brotli:dec and com.github.luben:zstd-jni) are on the classpath.
+ */
+public enum HttpContentEncoding {
+
+    gzip (null),
+    deflate (null),
+    br ("org.brotli.dec.BrotliInputStream"),
+    zstd ("com.github.luben.zstd.ZstdInputStream");
+
+    private final Constructor<? extends InputStream> decoder;
+
+    HttpContentEncoding(String decoderClass) { this.decoder = initDecoder(decoderClass); }
+
+    private static Constructor<? extends InputStream> initDecoder(String decoderClass) {
+        if (decoderClass == null) return null;
+        try {
+            return Class.forName(decoderClass).asSubclass(InputStream.class).getConstructor(InputStream.class);
+        } catch (Throwable ignored) {
+            return null;
+        }
+    }
+
+    public static final String ACCEPT_ENCODING = initAcceptEncoding();
+    private static String initAcceptEncoding() {
+        final StringBuilder b = new StringBuilder();
+        for (HttpContentEncoding e : values()) {
+            if (!e.isAvailable()) continue;
+            if (b.length() > 0) b.append(", ");
+            b.append(e.name());
+        }
+        return b.toString();
+    }
+
+    @JsonCreator public static HttpContentEncoding create(String value) { return valueOf(value.trim().toLowerCase()); }
+
+    public static HttpContentEncoding fromString(String value) {
+        if (empty(value)) return null;
+        switch (value.trim().toLowerCase()) {
+            case "gzip": case "x-gzip": return gzip;
+            case "deflate":             return deflate;
+            case "br":                  return br;
+            case "zstd":                return zstd;
+            default:                    return null;
+        }
+    }
+
+    public boolean isAvailable() { return this == gzip || this == deflate || decoder != null; }
+
+    public boolean canEncode() { return this == gzip || this == deflate; }
+
+    public InputStream decode(InputStream in) throws IOException {
+        switch (this) {
+            case gzip:    return new GZIPInputStream(in);
+            case deflate: return new DeflateInputStream(in);
+            default:
+                if (decoder == null) return die("decode: "+name()+" decoder not found on classpath");
+                try {
+                    return decoder.newInstance(in);
+                } catch (Exception e) {
+                    return die("decode: error creating "+name()+" decoder: "+e, e);
+                }
+        }
+    }
+
+    public OutputStream encode(OutputStream out) throws IOException {
+        switch (this) {
+            case gzip:    return new GZIPOutputStream(out);
+            case deflate: return new DeflaterOutputStream(out);
+            default:      return notSupported("encode: "+name()+" encoding not supported");
+        }
+    }
+
+    public byte[] encode(byte[] data) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(32, data.length / 4));
+        try (OutputStream out = encode(buffer)) {
+            out.write(data);
+        }
+        return buffer.toByteArray();
+    }
+
+    public byte[] decode(byte[] data) throws IOException {
+        try (InputStream in = decode(new ByteArrayInputStream(data))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    /**
+     * Decode a stream according to a Content-Encoding header value. Multiple encodings are undone in reverse order.
+     * @param contentEncoding the Content-Encoding header value, for example "gzip" or "deflate, br"
+     * @param in the raw stream
+     * @return a decoding stream, or null if any of the encodings is unrecognized or unavailable
+     */
+    public static InputStream decode(String contentEncoding, InputStream in) throws IOException {
+        if (empty(contentEncoding)) return in;
+        final String[] parts = contentEncoding.split(",");
+        final HttpContentEncoding[] encodings = new HttpContentEncoding[parts.length];
+        for (int i=0; i<parts.length; i++) {
+            if (parts[i].trim().equalsIgnoreCase("identity")) continue;
+            encodings[i] = fromString(parts[i]);
+            if (encodings[i] == null || !encodings[i].isAvailable()) return null;
+        }
+        InputStream decoded = in;
+        for (int i=encodings.length-1; i>=0; i--) {
+            if (encodings[i] != null) decoded = encodings[i].decode(decoded);
+        }
+        return decoded;
+    }
+
+}
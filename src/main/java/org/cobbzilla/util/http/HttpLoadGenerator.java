@@ -0,0 +1,122 @@
+package org.cobbzilla.util.http;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.cobbzilla.util.daemon.DaemonThreadFactory;
+import org.cobbzilla.util.time.LatencyHistogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.realNow;
+
+/**
+ * Drives HttpUtil.getResponse with a fixed number of concurrent workers and reports throughput and latency percentiles.
+ * Pair it with HttpStubServer to benchmark without network access.
+ */
+@NoArgsConstructor @Accessors(chain=true) @Slf4j
+public class HttpLoadGenerator {
+
+    @Getter @Setter private HttpRequestBean request;
+    @Getter @Setter private int concurrency = 10;
+    @Getter @Setter private long requests = 1000;   // total requests to send (ignored if duration > 0)
+    @Getter @Setter private long duration = 0;      // millis to run for; zero means run until 'requests' have been sent
+    @Getter @Setter private long warmupRequests = 0; // sent before measuring starts
+
+    public HttpLoadGenerator (HttpRequestBean request) { this.request = request; }
+
+    @Accessors(chain=true)
+    public static class Result {
+        @Getter private final LatencyHistogram latency = new LatencyHistogram();
+        @Getter private final Map<Integer, AtomicLong> statusCounts = new TreeMap<>();
+        @Getter private final AtomicLong errors = new AtomicLong();
+        @Getter private final AtomicLong bytes = new AtomicLong();
+        @Getter @Setter private long elapsed;
+        @Getter @Setter private int concurrency;
+
+        public long getCount() { return latency.getCount() + errors.get(); }
+
+        public double getThroughput() { return elapsed == 0 ? 0 : getCount() * 1000.0 / elapsed; }
+
+        void status(int status) {
+            synchronized (statusCounts) {
+                AtomicLong count = statusCounts.get(status);
+                if (count == null) statusCounts.put(status, count = new AtomicLong());
+                count.incrementAndGet();
+            }
+        }
+
+        @Override public String toString() {
+            return "requests="+getCount()+" concurrency="+concurrency+" elapsed="+elapsed+"ms"
+                    +" throughput="+String.format("%.1f", getThroughput())+"/s"
+                    +" errors="+errors.get()+" statuses="+statusCounts
+                    +" bytes="+bytes.get()
+                    +"\nlatency(ms): "+latency;
+        }
+    }
+
+    public Result run () {
+        if (request == null) return die("run: no request set");
+        final PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+        cm.setMaxTotal(concurrency);
+        cm.setDefaultMaxPerRoute(concurrency);
+        try (CloseableHttpClient client = HttpClients.custom().setConnectionManager(cm).build()) {
+            if (warmupRequests > 0) run(client, warmupRequests, 0);
+            return run(client, requests, duration);
+        } catch (Exception e) {
+            return die("run: "+e, e);
+        }
+    }
+
+    protected Result run (final CloseableHttpClient client, long total, long duration) throws InterruptedException {
+        final Result result = new Result().setConcurrency(concurrency);
+        final AtomicLong remaining = new AtomicLong(duration > 0 ? Long.MAX_VALUE : total);
+        final long start = realNow();
+        final long deadline = duration > 0 ? start + duration : Long.MAX_VALUE;
+        final CountDownLatch done = new CountDownLatch(concurrency);
+        final ExecutorService pool = DaemonThreadFactory.fixedPool(concurrency);
+        try {
+            for (int i=0; i<concurrency; i++) {
+                pool.submit(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            while (remaining.getAndDecrement() > 0 && realNow() < deadline) {
+                                final long t = realNow();
+                                try {
+                                    final HttpResponseBean response = HttpUtil.getResponse(request, client);
+                                    result.getLatency().record(realNow() - t);
+                                    result.status(response.getStatus());
+                                    if (response.hasEntity()) result.getBytes().addAndGet(response.getEntity().length);
+                                } catch (Exception e) {
+                                    log.debug("run: "+e);
+                                    result.getErrors().incrementAndGet();
+                                }
+                            }
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+            result.setElapsed(realNow() - start);
+            return result;
+
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.SECONDS);
+        }
+    }
+
+}
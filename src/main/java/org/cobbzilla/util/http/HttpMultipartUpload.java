@@ -0,0 +1,167 @@
+package org.cobbzilla.util.http;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.entity.mime.content.InputStreamBody;
+import org.apache.http.entity.mime.content.StringBody;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.cobbzilla.util.io.StreamUtil;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds and sends a multipart/form-data POST with any number of file, stream and text parts.
+ *
+ * Parts are streamed straight from their sources onto the connection (chunked by default), so nothing
+ * is buffered in memory. Unless a client is supplied, requests go through a shared pooled client.
+ */
+@NoArgsConstructor @Accessors(chain=true)
+public class HttpMultipartUpload {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 50;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+    public static final long DEFAULT_PROGRESS_INTERVAL = 64 * 1024;
+
+    private static class SharedClient {
+        static final CloseableHttpClient instance = initSharedClient();
+        private static CloseableHttpClient initSharedClient() {
+            final PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+            cm.setMaxTotal(DEFAULT_MAX_CONNECTIONS);
+            cm.setDefaultMaxPerRoute(DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+            return HttpClients.custom().setConnectionManager(cm).build();
+        }
+    }
+
+    public static CloseableHttpClient sharedClient () { return SharedClient.instance; }
+
+    @Getter @Setter private String url;
+    @Getter @Setter private HttpClient client;
+    @Getter @Setter private boolean chunked = true;
+    @Getter @Setter private HttpProgressCallback callback;
+    @Getter @Setter private long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+
+    @Getter private final Map<String, String> headers = new LinkedHashMap<>();
+    private final MultipartEntityBuilder builder = MultipartEntityBuilder.create();
+
+    public HttpMultipartUpload (String url) { this.url = url; }
+
+    public HttpMultipartUpload withHeader (String name, String value) { headers.put(name, value); return this; }
+
+    public HttpMultipartUpload withHeaders (Map<String, String> headers) {
+        if (headers != null) this.headers.putAll(headers);
+        return this;
+    }
+
+    public HttpMultipartUpload addFile (String name, File file) { builder.addPart(name, new FileBody(file)); return this; }
+
+    public HttpMultipartUpload addFile (String name, File file, String contentType) {
+        builder.addPart(name, new FileBody(file, ContentType.create(contentType), file.getName()));
+        return this;
+    }
+
+    public HttpMultipartUpload addStream (String name, InputStream in, String filename) {
+        builder.addPart(name, new InputStreamBody(in, filename));
+        return this;
+    }
+
+    public HttpMultipartUpload addStream (String name, InputStream in, String filename, String contentType) {
+        builder.addPart(name, new InputStreamBody(in, ContentType.create(contentType), filename));
+        return this;
+    }
+
+    public HttpMultipartUpload addText (String name, String value) {
+        builder.addPart(name, new StringBody(value, ContentType.TEXT_PLAIN));
+        return this;
+    }
+
+    /**
+     * Send the upload and read the response into an HttpResponseBean
+     * @return the response
+     */
+    public HttpResponseBean upload () throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final HttpResponseBean bean = upload(out);
+        return bean.setEntityBytes(out.toByteArray());
+    }
+
+    /**
+     * Send the upload and stream the response body to an OutputStream, without buffering it
+     * @param responseOut where to write the response body
+     * @return the response status and headers. The entity will be empty.
+     */
+    public HttpResponseBean upload (OutputStream responseOut) throws IOException {
+        final HttpPost method = new HttpPost(url);
+        method.setEntity(new ProgressEntity(builder.build()));
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            method.addHeader(header.getKey(), header.getValue());
+        }
+
+        final HttpResponse response = (client != null ? client : sharedClient()).execute(method);
+        try {
+            final HttpResponseBean bean = new HttpResponseBean().setStatus(response.getStatusLine().getStatusCode());
+            for (Header header : response.getAllHeaders()) bean.addHeader(header.getName(), header.getValue());
+            final HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                try (InputStream in = entity.getContent()) {
+                    StreamUtil.copyLarge(in, responseOut);
+                }
+            }
+            return bean;
+
+        } finally {
+            EntityUtils.consumeQuietly(response.getEntity());
+            if (response instanceof Closeable) ((Closeable) response).close();
+        }
+    }
+
+    private class ProgressEntity extends HttpEntityWrapper {
+
+        public ProgressEntity(HttpEntity entity) { super(entity); }
+
+        @Override public boolean isChunked() { return chunked || super.isChunked(); }
+
+        @Override public long getContentLength() { return chunked ? -1 : super.getContentLength(); }
+
+        @Override public boolean isRepeatable() { return false; }
+
+        @Override public void writeTo(OutputStream out) throws IOException {
+            if (callback == null) {
+                super.writeTo(out);
+                return;
+            }
+            final long total = wrappedEntity.getContentLength();
+            final CountingOutputStream counter = new CountingOutputStream(out) {
+                private long lastReport = 0;
+                @Override protected void afterWrite(int n) throws IOException {
+                    super.afterWrite(n);
+                    final long bytes = getByteCount();
+                    if (bytes - lastReport >= progressInterval) {
+                        lastReport = bytes;
+                        callback.updateProgress(new HttpProgressMarker(bytes, total, false));
+                    }
+                }
+            };
+            super.writeTo(counter);
+            counter.flush();
+            callback.updateProgress(new HttpProgressMarker(counter.getByteCount(), total, true));
+        }
+    }
+
+}
@@ -0,0 +1,11 @@
+package org.cobbzilla.util.http;
+
+public interface HttpProgressCallback {
+
+    /**
+     * Called periodically while a request entity is being sent
+     * @param marker Contains the bytes sent so far, the total (if known) and the percent done
+     */
+    public void updateProgress(HttpProgressMarker marker);
+
+}
@@ -0,0 +1,24 @@
+package org.cobbzilla.util.http;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+@NoArgsConstructor @AllArgsConstructor @Accessors(chain=true) @ToString
+public class HttpProgressMarker {
+
+    @Getter @Setter private long bytes;
+    @Getter @Setter private long totalBytes; // -1 if unknown
+    @Getter @Setter private boolean done;
+
+    public boolean hasTotal () { return totalBytes >= 0; }
+
+    public int getPercent () {
+        if (done) return 100;
+        return hasTotal() && totalBytes > 0 ? (int) Math.min(100, (100 * bytes) / totalBytes) : -1;
+    }
+
+}
@@ -39,6 +39,18 @@ public class HttpRequestBean {
         return this;
     }
     public boolean hasHeaders () { return !empty(headers); }
+    public boolean hasHeader (String name) { return getFirstHeaderValue(name) != null; }
+
+    // request entities at least this many bytes are sent gzip-compressed. null means never compress.
+    @Getter @Setter private Integer compressionThreshold;
+    public boolean shouldCompress (long size) { return compressionThreshold != null && size >= compressionThreshold; }
+
+    // retry/circuit-breaker/hedging behavior. null means a single attempt
+    @JsonIgnore @Getter @Setter private HttpResiliencePolicy resilience;
+    public boolean hasResilience () { return resilience != null; }
+
+    // when true, advertise every Content-Encoding we can decode and transparently decode the response
+    @Getter @Setter private boolean acceptCompressed = true;
 
     public HttpRequestBean (String uri) { this(GET, uri, null); }
 
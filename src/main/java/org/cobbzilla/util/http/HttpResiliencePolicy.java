@@ -0,0 +1,324 @@
+package org.cobbzilla.util.http;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.HttpClient;
+import org.cobbzilla.util.collection.FailedOperationCounter;
+import org.cobbzilla.util.daemon.DaemonThreadFactory;
+import org.cobbzilla.util.time.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+import static org.cobbzilla.util.system.Sleep.sleep;
+
+/**
+ * Retry, circuit-breaker and hedging behavior for HTTP calls. Attach one to an HttpRequestBean via setResilience.
+ *
+ * A policy tracks per-host state (circuit breakers, latencies, the retry budget), so share one instance
+ * across all the requests that should be governed together, rather than creating one per request.
+ * The exception is retryOnly, a policy with no shared state, which can be created per call.
+ */
+@NoArgsConstructor @Accessors(chain=true) @Slf4j
+public class HttpResiliencePolicy {
+
+    public static final int[] DEFAULT_RETRY_STATUSES = {429, 502, 503, 504};
+
+    // retries: attempt up to maxRetries+1 times, sleeping backoffBase * backoffMultiplier^n (capped at backoffMax) between attempts
+    @Getter @Setter private int maxRetries = 3;
+    @Getter @Setter private long backoffBase = 100;
+    @Getter @Setter private double backoffMultiplier = 2.0;
+    @Getter @Setter private long backoffMax = TimeUnit.SECONDS.toMillis(10);
+
+    // each backoff is randomly shortened by up to this fraction, so clients that failed together do not retry together
+    @Getter @Setter private double jitter = 0.5;
+
+    // responses with these statuses are retried (and count as failures for the circuit breaker)
+    @Getter @Setter private int[] retryStatuses = DEFAULT_RETRY_STATUSES;
+
+    // only idempotent operations (GET and HEAD requests) are retried, since retrying anything else may repeat its
+    // side effects. set this to retry non-idempotent operations too.
+    @Getter @Setter private boolean retryNonIdempotent = false;
+
+    // set to false to retry without a retry budget
+    @Getter @Setter private boolean retryBudget = true;
+
+    // retry budget: within each window, retries may not exceed minRetriesPerWindow + retryBudgetRatio * requests
+    @Getter @Setter private double retryBudgetRatio = 0.2;
+    @Getter @Setter private int minRetriesPerWindow = 10;
+    @Getter @Setter private long retryBudgetWindow = TimeUnit.SECONDS.toMillis(10);
+
+    // set to false to never open a circuit
+    @Getter @Setter private boolean circuitBreaker = true;
+
+    // circuit breaker: after circuitMaxFailures within circuitFailureWindow, reject calls to the host for circuitOpenTime
+    @Getter private int circuitMaxFailures = 5;
+    @Getter private long circuitFailureWindow = TimeUnit.SECONDS.toMillis(30);
+    @Getter @Setter private long circuitOpenTime = TimeUnit.SECONDS.toMillis(30);
+
+    private final FailedOperationCounter<String> circuitFailures = new FailedOperationCounter<>(circuitFailureWindow, circuitMaxFailures);
+
+    public HttpResiliencePolicy setCircuitMaxFailures (int maxFailures) {
+        circuitMaxFailures = maxFailures;
+        circuitFailures.setMaxFailures(maxFailures);
+        return this;
+    }
+
+    public HttpResiliencePolicy setCircuitFailureWindow (long window) {
+        circuitFailureWindow = window;
+        circuitFailures.setExpiration(window);
+        return this;
+    }
+
+    // hedging: if an idempotent call has not returned after the host's hedgePercentile latency, fire a second one
+    // and use whichever finishes first. hedgeDelay is used until hedgeMinSamples latencies have been seen.
+    @Getter @Setter private boolean hedge = false;
+    @Getter @Setter private double hedgePercentile = 95;
+    @Getter @Setter private long hedgeDelay = 100;
+    @Getter @Setter private int hedgeMinSamples = 20;
+    @Getter @Setter private int latencySamples = 1000;
+
+    // hedged attempts run here. when all threads are busy, attempts run on the caller's thread without a hedge
+    public static final int MAX_HEDGE_THREADS = 64;
+    private static final ExecutorService hedgeExecutor = new ThreadPoolExecutor(0, MAX_HEDGE_THREADS,
+            60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), DaemonThreadFactory.instance);
+
+    private final ConcurrentHashMap<String, Long> openCircuits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> hedgeDelays = new ConcurrentHashMap<>();
+
+    private final AtomicLong budgetWindowStart = new AtomicLong(now());
+    private final AtomicLong budgetRequests = new AtomicLong();
+    private final AtomicLong budgetRetries = new AtomicLong();
+
+    public static class CircuitOpenException extends IOException {
+        @Getter private final String host;
+        public CircuitOpenException(String host) { super("circuit open for host: "+host); this.host = host; }
+    }
+
+    private static class RetryableResponseException extends IOException {
+        private final HttpResponseBean response;
+        RetryableResponseException(HttpResponseBean response) { super("retryable status: "+response.getStatus()); this.response = response; }
+    }
+
+    /**
+     * A policy that only retries: it has no circuit breaker and no retry budget, so calls under it never affect
+     * one another
+     * @param maxRetries the maximum number of retries
+     * @return a new policy
+     */
+    public static HttpResiliencePolicy retryOnly(int maxRetries) {
+        return new HttpResiliencePolicy().setMaxRetries(maxRetries).setCircuitBreaker(false).setRetryBudget(false);
+    }
+
+    public boolean isRetryable(int status) {
+        for (int s : retryStatuses) if (s == status) return true;
+        return false;
+    }
+
+    public boolean isCircuitOpen(String host) {
+        final Long openUntil = openCircuits.get(host);
+        return openUntil != null && now() < openUntil;
+    }
+
+    /**
+     * @param host the host
+     * @return its latencies. These are only recorded when hedging is enabled, since that is all they are used for
+     */
+    public LatencyHistogram getLatency(String host) {
+        LatencyHistogram histogram = latencies.get(host);
+        if (histogram == null) {
+            final LatencyHistogram h = new LatencyHistogram();
+            histogram = latencies.putIfAbsent(host, h);
+            if (histogram == null) histogram = h;
+        }
+        return histogram;
+    }
+
+    public HttpResponseBean execute(final HttpRequestBean requestBean, final HttpClient client) throws IOException {
+        final String method = requestBean.getMethod();
+        final boolean idempotent = method.equals(HttpMethods.GET) || method.equals(HttpMethods.HEAD);
+        try {
+            return execute(requestBean.getHost(), new Callable<HttpResponseBean>() {
+                @Override public HttpResponseBean call() throws Exception {
+                    final HttpResponseBean response = HttpUtil._getResponse(requestBean, client);
+                    if (isRetryable(response.getStatus())) throw new RetryableResponseException(response);
+                    return response;
+                }
+            }, idempotent);
+        } catch (RetryableResponseException e) {
+            return e.response;
+        }
+    }
+
+    public <T> T execute(String host, Callable<T> operation) throws IOException {
+        return execute(host, operation, false);
+    }
+
+    /**
+     * Run an operation under this policy. IOExceptions are retried, any other exception is rethrown immediately.
+     * @param host the host being called, for per-host circuit breaking and latency tracking
+     * @param operation the operation to run
+     * @param idempotent if true, the operation can safely be run more than once: failed attempts are retried, and
+     *                   (if hedging is enabled) slow attempts may be hedged with a concurrent second attempt. If false,
+     *                   it is only retried if retryNonIdempotent is set, and never hedged.
+     * @return the result of the first successful attempt
+     * @throws IOException the last IOException if all attempts fail, or CircuitOpenException if the host's circuit is open
+     */
+    public <T> T execute(String host, Callable<T> operation, boolean idempotent) throws IOException {
+        if (retryBudget) {
+            rollBudgetWindow();
+            budgetRequests.incrementAndGet();
+        }
+        final int retries = idempotent || retryNonIdempotent ? maxRetries : 0;
+        IOException lastException = null;
+        for (int attempt=0; attempt<=retries; attempt++) {
+            if (attempt > 0) {
+                if (retryBudget && !acquireRetry()) {
+                    log.warn("execute("+host+"): retry budget exhausted, not retrying");
+                    break;
+                }
+                sleep(backoff(attempt), "execute("+host+"): waiting to retry after "+lastException);
+            }
+            if (circuitBreaker && !allowRequest(host)) {
+                if (lastException == null) lastException = new CircuitOpenException(host);
+                break;
+            }
+            final long start = now();
+            try {
+                final T result = hedge && idempotent ? hedged(host, operation) : call(operation);
+                if (hedge) recordLatency(host, now() - start);
+                if (circuitBreaker) recordSuccess(host);
+                return result;
+
+            } catch (IOException e) {
+                if (circuitBreaker) recordFailure(host);
+                lastException = e;
+            }
+        }
+        throw lastException;
+    }
+
+    protected long backoff(int attempt) {
+        final double delay = Math.min(backoffMax, backoffBase * Math.pow(backoffMultiplier, attempt - 1));
+        final double j = Math.min(1.0, Math.max(0.0, jitter));
+        return (long) (delay * (1.0 - j * ThreadLocalRandom.current().nextDouble()));
+    }
+
+    private <T> T call(Callable<T> operation) throws IOException {
+        try {
+            return operation.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private <T> T hedged(String host, final Callable<T> operation) throws IOException {
+        final CompletionService<T> completion = new ExecutorCompletionService<>(hedgeExecutor);
+        final List<Future<T>> futures = new ArrayList<>(2);
+        try {
+            try {
+                futures.add(completion.submit(operation));
+            } catch (RejectedExecutionException e) {
+                log.debug("hedged("+host+"): no hedge threads available, calling without a hedge");
+                return call(operation);
+            }
+            Future<T> done = completion.poll(getHedgeDelay(host), TimeUnit.MILLISECONDS);
+            if (done == null) {
+                try {
+                    futures.add(completion.submit(operation));
+                    log.debug("hedged("+host+"): no response after "+getHedgeDelay(host)+"ms, sent hedge request");
+                } catch (RejectedExecutionException e) {
+                    log.debug("hedged("+host+"): no hedge threads available, not hedging");
+                }
+                done = completion.take();
+            }
+            try {
+                return done.get();
+            } catch (ExecutionException e) {
+                if (futures.size() == 1) throw unwrap(e);
+                // the other attempt may still succeed
+                try {
+                    return completion.take().get();
+                } catch (ExecutionException e2) {
+                    throw unwrap(e2);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("hedged("+host+"): interrupted");
+        } finally {
+            for (Future<T> f : futures) f.cancel(true);
+        }
+    }
+
+    private IOException unwrap(ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) return (IOException) cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        return new IOException(cause);
+    }
+
+    private long getHedgeDelay(String host) {
+        final Long delay = hedgeDelays.get(host);
+        return delay != null ? delay : hedgeDelay;
+    }
+
+    private void recordLatency(String host, long millis) {
+        final LatencyHistogram histogram = getLatency(host);
+        histogram.record(millis);
+        final long count = histogram.getCount();
+        if (count >= hedgeMinSamples && count % hedgeMinSamples == 0) {
+            hedgeDelays.put(host, histogram.percentile(hedgePercentile));
+        }
+        // start over periodically so the hedge delay follows recent behavior
+        if (count >= latencySamples) histogram.reset();
+    }
+
+    private boolean allowRequest(String host) {
+        final Long openUntil = openCircuits.get(host);
+        if (openUntil == null) return true;
+        if (now() < openUntil) return false;
+        // half-open: let exactly one trial request through, everyone else keeps failing fast until it finishes
+        return openCircuits.replace(host, openUntil, now() + circuitOpenTime);
+    }
+
+    private void recordSuccess(String host) {
+        if (openCircuits.remove(host) != null) log.info("recordSuccess: closing circuit for "+host);
+        circuitFailures.remove(host);
+    }
+
+    private void recordFailure(String host) {
+        circuitFailures.fail(host);
+        if (circuitFailures.tooManyFailures(host)) {
+            if (openCircuits.put(host, now() + circuitOpenTime) == null) log.warn("recordFailure: opening circuit for "+host);
+        }
+    }
+
+    private void rollBudgetWindow() {
+        final long start = budgetWindowStart.get();
+        if (now() - start > retryBudgetWindow && budgetWindowStart.compareAndSet(start, now())) {
+            budgetRequests.set(0);
+            budgetRetries.set(0);
+        }
+    }
+
+    private boolean acquireRetry() {
+        final long allowed = minRetriesPerWindow + (long) (budgetRequests.get() * retryBudgetRatio);
+        if (budgetRetries.incrementAndGet() > allowed) {
+            budgetRetries.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+}
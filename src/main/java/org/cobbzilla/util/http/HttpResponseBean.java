@@ -9,6 +9,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpHeaders;
+import org.cobbzilla.util.collection.CaseInsensitiveStringKeyMap;
 import org.cobbzilla.util.collection.NameAndValue;
 import org.cobbzilla.util.json.JsonUtil;
 
@@ -25,11 +26,41 @@ import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 public class HttpResponseBean {
 
     @Getter @Setter private int status;
-    @Getter @Setter private List<NameAndValue> headers;
+    @Getter private List<NameAndValue> headers;
     @JsonIgnore @Getter private byte[] entity;
     @Getter @Setter private long contentLength;
     @Getter @Setter private String contentType;
 
+    // case-insensitive name -> values index over 'headers', built on first lookup and dropped whenever headers change.
+    // the size check catches headers added directly to the list returned by getHeaders
+    @JsonIgnore private transient CaseInsensitiveStringKeyMap<List<String>> headerIndex;
+    @JsonIgnore private transient int headerIndexSize;
+
+    public HttpResponseBean setHeaders (List<NameAndValue> headers) {
+        this.headers = headers;
+        this.headerIndex = null;
+        return this;
+    }
+
+    private CaseInsensitiveStringKeyMap<List<String>> headerIndex () {
+        if (headerIndex == null || headerIndexSize != headers.size()) {
+            final CaseInsensitiveStringKeyMap<List<String>> index = new CaseInsensitiveStringKeyMap<>();
+            for (NameAndValue header : headers) addToIndex(index, header.getName(), header.getValue());
+            headerIndex = index;
+            headerIndexSize = headers.size();
+        }
+        return headerIndex;
+    }
+
+    private static void addToIndex(CaseInsensitiveStringKeyMap<List<String>> index, String name, String value) {
+        List<String> values = index.get(name);
+        if (values == null) {
+            values = new ArrayList<>(1);
+            index.put(name, values);
+        }
+        values.add(value);
+    }
+
     @JsonIgnore public boolean isOk() { return (status / 100) == 2; }
 
     public Map<String, Object> toMap () {
@@ -40,7 +71,7 @@ public class HttpResponseBean {
         return map;
     }
 
-    public boolean hasHeader (String name) { return !empty(getHeaderValues(name)); }
+    public boolean hasHeader (String name) { return !empty(headers) && headerIndex().containsKey(name); }
     public boolean hasContentType () { return contentType != null || hasHeader(HttpHeaders.CONTENT_TYPE); }
     public String contentType () { return contentType != null ? contentType : getFirstHeaderValue(HttpHeaders.CONTENT_TYPE); }
 
@@ -49,6 +80,10 @@ public class HttpResponseBean {
         if (name.equalsIgnoreCase(CONTENT_TYPE)) setContentType(value);
         else if (name.equalsIgnoreCase(CONTENT_LENGTH)) setContentLength(Long.valueOf(value));
         headers.add(new NameAndValue(name, value));
+        if (headerIndex != null && headerIndexSize == headers.size()-1) {
+            addToIndex(headerIndex, name, value);
+            headerIndexSize++;
+        }
     }
 
     public HttpResponseBean setEntityBytes(byte[] bytes) { this.entity = bytes; return this; }
@@ -70,22 +105,25 @@ public class HttpResponseBean {
         return entity == null ? null : JsonUtil.fromJsonOrDie(getEntityString(), clazz);
     }
 
+    /**
+     * @param name the header name, in any case
+     * @return a new, mutable list of the header's values: later changes to the headers do not affect it
+     */
     public Collection<String> getHeaderValues (String name) {
-        final List<String> values = new ArrayList<>();
-        for (NameAndValue header : headers) if (header.getName().equalsIgnoreCase(name)) values.add(header.getValue());
-        return values;
+        if (empty(headers)) return new ArrayList<>();
+        final List<String> values = headerIndex().get(name);
+        return values == null ? new ArrayList<String>() : new ArrayList<>(values);
     }
 
-
     public String getFirstHeaderValue (String name) {
         if (empty(headers)) return null;
-        for (NameAndValue header : headers) if (header.getName().equalsIgnoreCase(name)) return header.getValue();
-        return null;
+        final List<String> values = headerIndex().get(name);
+        return values == null ? null : values.get(0);
     }
 
     public HttpResponseBean setHttpHeaders(Header[] headers) {
         for (Header header : headers) {
-            addHeader(header.getName(), header.getValue());;
+            addHeader(header.getName(), header.getValue());
         }
         return this;
     }
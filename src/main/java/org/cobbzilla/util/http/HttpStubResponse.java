@@ -0,0 +1,53 @@
+package org.cobbzilla.util.http;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.safeBoolean;
+import static org.cobbzilla.util.daemon.ZillaRuntime.safeInt;
+import static org.cobbzilla.util.daemon.ZillaRuntime.safeLong;
+import static org.cobbzilla.util.reflect.ReflectionUtil.copy;
+
+/**
+ * Describes what an HttpStubServer sends back for a path. Any field can be overridden per-request with
+ * a query parameter of the same name, for example: /foo?status=503&amp;latency=250&amp;size=4096&amp;chunked=true
+ */
+@NoArgsConstructor @Accessors(chain=true) @ToString
+public class HttpStubResponse {
+
+    @Getter @Setter private int status = HttpStatusCodes.OK;
+    @Getter @Setter private long latency = 0;       // millis to wait before responding
+    @Getter @Setter private long latencyJitter = 0; // up to this many additional millis, chosen at random
+    @Getter @Setter private int size = 0;           // payload size in bytes
+    @Getter @Setter private boolean chunked = false;
+    @Getter @Setter private boolean compress = false; // gzip the payload if the client accepts it
+    @Getter @Setter private boolean echo = false;     // send the request body back instead of a generated payload
+    @Getter @Setter private String contentType = HttpContentTypes.APPLICATION_OCTET_STREAM;
+    @Getter @Setter private Map<String, String> headers = new LinkedHashMap<>();
+
+    public HttpStubResponse (HttpStubResponse other) { copy(this, other); }
+
+    public HttpStubResponse withHeader (String name, String value) { headers.put(name, value); return this; }
+
+    public HttpStubResponse override (Map<String, String> params) {
+        if (params.isEmpty()) return this;
+        final HttpStubResponse r = new HttpStubResponse(this);
+        r.headers = new LinkedHashMap<>(headers);
+        r.status = safeInt(params.get("status"), status);
+        r.latency = safeLong(params.get("latency"), latency);
+        r.latencyJitter = safeLong(params.get("latencyJitter"), latencyJitter);
+        r.size = safeInt(params.get("size"), size);
+        r.chunked = safeBoolean(params.get("chunked"), chunked);
+        r.compress = safeBoolean(params.get("compress"), compress);
+        r.echo = safeBoolean(params.get("echo"), echo);
+        if (params.containsKey("contentType")) r.contentType = params.get("contentType");
+        return r;
+    }
+
+}
@@ -0,0 +1,190 @@
+package org.cobbzilla.util.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.cobbzilla.util.collection.CaseInsensitiveStringKeyMap;
+import org.cobbzilla.util.daemon.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.string.StringUtil.UTF8;
+import static org.cobbzilla.util.system.Sleep.nap;
+
+/**
+ * An embedded HTTP server for benchmarks and tests. It only listens on the loopback interface, so it
+ * never needs (or exposes anything to) the network.
+ *
+ * Responses are described by HttpStubResponse objects registered per path prefix (longest prefix wins),
+ * falling back to the default response. Usage:
+ *
+ *   final HttpStubServer server = new HttpStubServer().start();
+ *   server.addResponse("/slow", new HttpStubResponse().setLatency(250).setSize(8192));
+ *   HttpUtil.getResponse(server.url("/slow"));
+ *   server.stop();
+ */
+@NoArgsConstructor @Accessors(chain=true) @Slf4j
+public class HttpStubServer {
+
+    public static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    /**
+     * Without TCP_NODELAY, the JDK server's separate header/body writes interact with delayed ACKs and add ~40ms
+     * to every response, which would swamp whatever we are trying to measure. This sets the JVM-wide property
+     * that enables it (unless it is already set), so it affects every JDK HttpServer in the process: only call it
+     * from benchmarks and tests, before the first server is created.
+     */
+    public static void enableNoDelay () {
+        if (System.getProperty(NODELAY_PROPERTY) == null) System.setProperty(NODELAY_PROPERTY, "true");
+    }
+
+    @Getter @Setter private int port = 0; // zero means pick a free port
+    @Getter @Setter private int backlog = 1024;
+    @Getter @Setter private HttpStubResponse defaultResponse = new HttpStubResponse();
+
+    @Getter private final AtomicLong requestCount = new AtomicLong();
+    @Getter private volatile Map<String, String> lastRequestHeaders;
+    @Getter private volatile byte[] lastRequestBody;
+
+    private final Map<String, HttpStubResponse> responses = new ConcurrentHashMap<>();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public HttpStubServer (int port) { this.port = port; }
+
+    public HttpStubServer addResponse (String pathPrefix, HttpStubResponse response) {
+        responses.put(pathPrefix, response);
+        return this;
+    }
+
+    public synchronized HttpStubServer start () {
+        if (server != null) return this;
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), backlog);
+        } catch (IOException e) {
+            return die("start: error binding to loopback port "+port+": "+e, e);
+        }
+        executor = Executors.newCachedThreadPool(DaemonThreadFactory.instance);
+        server.setExecutor(executor);
+        server.createContext("/", new StubHandler());
+        server.start();
+        port = server.getAddress().getPort();
+        log.info("start: listening on "+url(""));
+        return this;
+    }
+
+    public synchronized void stop () {
+        if (server == null) return;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+    }
+
+    public boolean isRunning () { return server != null; }
+
+    public String url (String path) {
+        return "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port + (path.startsWith("/") || path.isEmpty() ? "" : "/") + path;
+    }
+
+    protected HttpStubResponse findResponse (String path) {
+        HttpStubResponse best = null;
+        int bestLength = -1;
+        for (Map.Entry<String, HttpStubResponse> entry : responses.entrySet()) {
+            final String prefix = entry.getKey();
+            if (path.startsWith(prefix) && prefix.length() > bestLength) {
+                best = entry.getValue();
+                bestLength = prefix.length();
+            }
+        }
+        return best != null ? best : defaultResponse;
+    }
+
+    protected static Map<String, String> queryParams (String query) throws IOException {
+        if (empty(query)) return Collections.emptyMap();
+        final Map<String, String> params = new HashMap<>();
+        for (String pair : query.split("&")) {
+            final int eq = pair.indexOf('=');
+            if (eq == -1) {
+                params.put(URLDecoder.decode(pair, UTF8), "true");
+            } else {
+                params.put(URLDecoder.decode(pair.substring(0, eq), UTF8), URLDecoder.decode(pair.substring(eq+1), UTF8));
+            }
+        }
+        return params;
+    }
+
+    private static byte[] payload (int size) {
+        final byte[] data = new byte[size];
+        for (int i=0; i<size; i++) data[i] = (byte) ('a' + (i % 26));
+        return data;
+    }
+
+    private class StubHandler implements HttpHandler {
+        @Override public void handle(HttpExchange exchange) throws IOException {
+            try {
+                requestCount.incrementAndGet();
+                final byte[] requestBody;
+                try (InputStream in = exchange.getRequestBody()) {
+                    requestBody = IOUtils.toByteArray(in);
+                }
+                final Map<String, String> requestHeaders = new CaseInsensitiveStringKeyMap<>();
+                for (Map.Entry<String, List<String>> h : exchange.getRequestHeaders().entrySet()) {
+                    if (!h.getValue().isEmpty()) requestHeaders.put(h.getKey(), h.getValue().get(0));
+                }
+                lastRequestHeaders = requestHeaders;
+                lastRequestBody = requestBody;
+
+                final HttpStubResponse response = findResponse(exchange.getRequestURI().getPath())
+                        .override(queryParams(exchange.getRequestURI().getRawQuery()));
+
+                long delay = response.getLatency();
+                if (response.getLatencyJitter() > 0) delay += ThreadLocalRandom.current().nextLong(response.getLatencyJitter() + 1);
+                if (delay > 0 && !nap(delay, "HttpStubServer: simulating latency")) return;
+
+                byte[] body = response.isEcho() ? requestBody : payload(response.getSize());
+                final String acceptEncoding = requestHeaders.get("Accept-Encoding");
+                if (response.isCompress() && acceptEncoding != null && acceptEncoding.contains(HttpContentEncoding.gzip.name())) {
+                    body = HttpContentEncoding.gzip.encode(body);
+                    exchange.getResponseHeaders().set("Content-Encoding", HttpContentEncoding.gzip.name());
+                }
+                exchange.getResponseHeaders().set("Content-Type", response.getContentType());
+                for (Map.Entry<String, String> h : response.getHeaders().entrySet()) {
+                    exchange.getResponseHeaders().set(h.getKey(), h.getValue());
+                }
+
+                // per HttpExchange: a length of zero means chunked, -1 means no body
+                final boolean hasBody = body.length > 0 && !exchange.getRequestMethod().equals(HttpMethods.HEAD);
+                exchange.sendResponseHeaders(response.getStatus(), !hasBody ? -1 : response.isChunked() ? 0 : body.length);
+                if (hasBody) {
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                }
+            } catch (Exception e) {
+                log.warn("handle: "+e, e);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+}
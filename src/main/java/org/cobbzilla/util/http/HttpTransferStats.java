@@ -0,0 +1,68 @@
+package org.cobbzilla.util.http;
+
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks how many bytes were saved on the wire by compressing request entities and
+ * decoding compressed responses, per host.
+ */
+public class HttpTransferStats {
+
+    private static final ConcurrentHashMap<String, HttpTransferStats> statsByHost = new ConcurrentHashMap<>();
+
+    public static HttpTransferStats forHost(String host) {
+        if (host == null) host = "";
+        HttpTransferStats stats = statsByHost.get(host);
+        if (stats == null) {
+            final HttpTransferStats newStats = new HttpTransferStats(host);
+            stats = statsByHost.putIfAbsent(host, newStats);
+            if (stats == null) stats = newStats;
+        }
+        return stats;
+    }
+
+    public static Map<String, HttpTransferStats> getAllStats() { return Collections.unmodifiableMap(statsByHost); }
+
+    public static void resetAll() { statsByHost.clear(); }
+
+    @Getter private final String host;
+
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong requestWireBytes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final AtomicLong responseWireBytes = new AtomicLong();
+
+    public HttpTransferStats(String host) { this.host = host; }
+
+    public void request(long bytes, long wireBytes) {
+        requestBytes.addAndGet(bytes);
+        requestWireBytes.addAndGet(wireBytes);
+    }
+
+    public void response(long bytes, long wireBytes) {
+        responseBytes.addAndGet(bytes);
+        responseWireBytes.addAndGet(wireBytes);
+    }
+
+    public long getRequestBytes() { return requestBytes.get(); }
+    public long getRequestWireBytes() { return requestWireBytes.get(); }
+    public long getRequestBytesSaved() { return getRequestBytes() - getRequestWireBytes(); }
+
+    public long getResponseBytes() { return responseBytes.get(); }
+    public long getResponseWireBytes() { return responseWireBytes.get(); }
+    public long getResponseBytesSaved() { return getResponseBytes() - getResponseWireBytes(); }
+
+    public long getBytesSaved() { return getRequestBytesSaved() + getResponseBytesSaved(); }
+
+    @Override public String toString() {
+        return host+": request="+getRequestWireBytes()+"/"+getRequestBytes()
+                +" response="+getResponseWireBytes()+"/"+getResponseBytes()
+                +" saved="+getBytesSaved();
+    }
+
+}
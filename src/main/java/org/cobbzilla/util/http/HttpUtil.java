@@ -4,15 +4,19 @@ import lombok.Cleanup;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.DecompressingEntity;
 import org.apache.http.client.methods.*;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
@@ -28,13 +32,17 @@ import java.io.*;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.daemon.ZillaRuntime.notSupported;
 import static org.cobbzilla.util.http.URIUtil.getFileExt;
 import static org.cobbzilla.util.io.FileUtil.getDefaultTempDir;
-import static org.cobbzilla.util.system.Sleep.sleep;
 
 @Slf4j
 public class HttpUtil {
@@ -66,25 +74,18 @@ public class HttpUtil {
     public static HttpResponseBean upload (String url,
                                            File file,
                                            Map<String, String> headers) throws IOException {
-        @Cleanup final CloseableHttpClient client = HttpClients.createDefault();
-        final HttpPost method = new HttpPost(url);
-        final FileBody fileBody = new FileBody(file);
-        MultipartEntityBuilder builder = MultipartEntityBuilder.create().addPart("file", fileBody);
-        method.setEntity(builder.build());
-
-        if (headers != null) {
-            for (Map.Entry<String, String> header : headers.entrySet()) {
-                method.addHeader(new BasicHeader(header.getKey(), header.getValue()));
-            }
-        }
-
-        @Cleanup final CloseableHttpResponse response = client.execute(method);
+        return upload(url, file, headers, null);
+    }
 
-        final HttpResponseBean responseBean = new HttpResponseBean()
-                .setEntityBytes(EntityUtils.toByteArray(response.getEntity()))
-                .setHttpHeaders(response.getAllHeaders())
-                .setStatus(response.getStatusLine().getStatusCode());
-        return responseBean;
+    public static HttpResponseBean upload (String url,
+                                           File file,
+                                           Map<String, String> headers,
+                                           HttpProgressCallback callback) throws IOException {
+        return new HttpMultipartUpload(url)
+                .addFile("file", file)
+                .withHeaders(headers)
+                .setCallback(callback)
+                .upload();
     }
 
     public static final int DEFAULT_RETRIES = 3;
@@ -98,25 +99,40 @@ public class HttpUtil {
     public static File url2file (String url, File file) throws IOException {
         return url2file(url, file, DEFAULT_RETRIES);
     }
+    /**
+     * Download a URL to a file, trying up to retries times, with no circuit breaker or retry budget
+     * shared with other calls. To use those, call url2file with a shared HttpResiliencePolicy.
+     */
     public static File url2file (String url, File file, int retries) throws IOException {
-        if (file == null) file = File.createTempFile("url2file-", getFileExt((url)), getDefaultTempDir());
-        IOException lastException = null;
-        long sleep = 100;
-        for (int i=0; i<retries; i++) {
-            try {
-                @Cleanup final InputStream in = get(url);
-                @Cleanup final OutputStream out = new FileOutputStream(file);
-                IOUtils.copy(in, out);
-                lastException = null;
-                break;
-            } catch (IOException e) {
-                lastException = e;
-                sleep(sleep, "waiting to possibly retry after IOException: "+lastException);
-                sleep *= 5;
+        return url2file(url, file, HttpResiliencePolicy.retryOnly(Math.max(0, retries - 1)).setBackoffMultiplier(5));
+    }
+
+    /**
+     * Download a URL to a file under a resilience policy. Each attempt downloads to its own temp file, which is
+     * renamed onto the file when complete, so concurrent hedged attempts never write to the same file, and the
+     * file never holds a partial download.
+     * @param url the URL
+     * @param file the file to write, or null to create a temp file
+     * @param policy the policy to run under
+     * @return the file
+     */
+    public static File url2file (final String url, File file, HttpResiliencePolicy policy) throws IOException {
+        final File outfile = file != null ? file : File.createTempFile("url2file-", getFileExt((url)), getDefaultTempDir());
+        final File dir = outfile.getAbsoluteFile().getParentFile();
+        return policy.execute(URIUtil.getHost(url), new Callable<File>() {
+            @Override public File call() throws Exception {
+                final File temp = File.createTempFile(outfile.getName(), ".tmp", dir);
+                try {
+                    try (InputStream in = get(url); OutputStream out = new FileOutputStream(temp)) {
+                        IOUtils.copy(in, out);
+                    }
+                    Files.move(temp.toPath(), outfile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    return outfile;
+                } finally {
+                    if (temp.exists() && !temp.delete()) log.warn("url2file: error deleting "+temp);
+                }
             }
-        }
-        if (lastException != null) throw lastException;
-        return file;
+        }, true);
     }
 
     public static String url2string (String url) throws IOException {
@@ -128,11 +144,18 @@ public class HttpUtil {
 
     public static HttpResponseBean getResponse(HttpRequestBean requestBean) throws IOException {
         final HttpClientBuilder clientBuilder = requestBean.initClientBuilder(HttpClients.custom());
+        if (requestBean.isAcceptCompressed()) clientBuilder.disableContentCompression(); // we decode it ourselves
         @Cleanup final CloseableHttpClient client = clientBuilder.build();
         return getResponse(requestBean, client);
     }
 
     public static HttpResponseBean getResponse(HttpRequestBean requestBean, HttpClient client) throws IOException {
+        return requestBean.hasResilience()
+                ? requestBean.getResilience().execute(requestBean, client)
+                : _getResponse(requestBean, client);
+    }
+
+    static HttpResponseBean _getResponse(HttpRequestBean requestBean, HttpClient client) throws IOException {
 
         final HttpResponseBean bean = new HttpResponseBean();
 
@@ -141,25 +164,67 @@ public class HttpUtil {
         for (NameAndValue header : requestBean.getHeaders()) {
             request.setHeader(header.getName(), header.getValue());
         }
+        if (requestBean.isAcceptCompressed() && !requestBean.hasHeader(HttpHeaders.ACCEPT_ENCODING)) {
+            request.setHeader(HttpHeaders.ACCEPT_ENCODING, HttpContentEncoding.ACCEPT_ENCODING);
+        }
 
         final HttpResponse response = client.execute(request);
 
-        for (Header header : response.getAllHeaders()) {
-            bean.addHeader(header.getName(), header.getValue());
+        bean.setStatus(response.getStatusLine().getStatusCode());
+        final HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            addHeaders(bean, response, false);
+            return bean;
         }
 
-        bean.setStatus(response.getStatusLine().getStatusCode());
-        bean.setContentLength(response.getEntity().getContentLength());
-        final Header contentType = response.getEntity().getContentType();
+        @Cleanup final CountingInputStream content = new CountingInputStream(entity.getContent());
+        final InputStream decoded = decoder(response, entity, content);
+        addHeaders(bean, response, decoded != null);
+
+        bean.setContentLength(entity.getContentLength());
+        final Header contentType = entity.getContentType();
         if (contentType != null) {
             bean.setContentType(contentType.getValue());
         }
-        @Cleanup final InputStream content = response.getEntity().getContent();
-        bean.setEntity(content);
+        if (decoded == null) {
+            bean.setEntity(content);
+        } else {
+            bean.setEntity(decoded);
+            bean.addHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(bean.hasEntity() ? bean.getEntity().length : 0));
+            HttpTransferStats.forHost(requestBean.getHost()).response(bean.getContentLength(), content.getByteCount());
+        }
 
         return bean;
     }
 
+    // a decoding stream for the response body, or null if it is not encoded, is in an encoding we cannot decode,
+    // or was already decoded by the client (HttpClient's default ResponseContentEncoding does this, and removes
+    // the Content-Encoding header when it does)
+    private static InputStream decoder(HttpResponse response, HttpEntity entity, InputStream content) throws IOException {
+        if (entity instanceof DecompressingEntity) return null;
+        final Header contentEncoding = response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+        if (contentEncoding == null || empty(contentEncoding.getValue())) return null;
+        final InputStream decoded = HttpContentEncoding.decode(contentEncoding.getValue(), content);
+        return decoded == content ? null : decoded;
+    }
+
+    // once we decode the body, the headers describing the encoded body no longer apply to it
+    private static final String[] ENCODED_BODY_HEADERS = {
+            HttpHeaders.CONTENT_ENCODING, HttpHeaders.CONTENT_LENGTH, HttpHeaders.CONTENT_MD5
+    };
+
+    private static void addHeaders(HttpResponseBean bean, HttpResponse response, boolean decoded) {
+        for (Header header : response.getAllHeaders()) {
+            if (decoded && isEncodedBodyHeader(header.getName())) continue;
+            bean.addHeader(header.getName(), header.getValue());
+        }
+    }
+
+    private static boolean isEncodedBodyHeader(String name) {
+        for (String h : ENCODED_BODY_HEADERS) if (h.equalsIgnoreCase(name)) return true;
+        return false;
+    }
+
     public static HttpResponseBean getResponse(String urlString) throws IOException {
 
         final HttpResponseBean bean = new HttpResponseBean();
@@ -207,27 +272,61 @@ public class HttpUtil {
             }
 
             if (requestBean.hasData() && request instanceof HttpEntityEnclosingRequestBase) {
-                setData(requestBean.getEntity(), (HttpEntityEnclosingRequestBase) request);
+                setData(requestBean.getEntity(), (HttpEntityEnclosingRequestBase) request, requestBean);
             }
 
             return request;
 
-        } catch (UnsupportedEncodingException e) {
+        } catch (IOException e) {
             return die("initHttpRequest: " + e, e);
         }
     }
 
-    private static void setData(Object data, HttpEntityEnclosingRequestBase request) throws UnsupportedEncodingException {
+    private static void setData(Object data, HttpEntityEnclosingRequestBase request, HttpRequestBean requestBean) throws IOException {
         if (data == null) return;
         if (data instanceof String) {
-            request.setEntity(new StringEntity((String) data));
+            final StringEntity entity = new StringEntity((String) data);
+            request.setEntity(requestBean.shouldCompress(entity.getContentLength()) ? compress(entity, requestBean) : entity);
         } else if (data instanceof InputStream) {
-            request.setEntity(new InputStreamEntity((InputStream) data));
+            // we can't know a stream's size up front, so any compression threshold means compress it
+            final InputStreamEntity entity = new InputStreamEntity((InputStream) data);
+            request.setEntity(requestBean.getCompressionThreshold() != null ? new GzipStreamEntity(entity, requestBean.getHost()) : entity);
         } else {
             throw new IllegalArgumentException("Unsupported request entity type: "+data.getClass().getName());
         }
     }
 
+    private static HttpEntity compress(HttpEntity entity, HttpRequestBean requestBean) throws IOException {
+        final byte[] data = EntityUtils.toByteArray(entity);
+        final ByteArrayEntity compressed = new ByteArrayEntity(HttpContentEncoding.gzip.encode(data));
+        compressed.setContentType(entity.getContentType());
+        compressed.setContentEncoding(HttpContentEncoding.gzip.name());
+        HttpTransferStats.forHost(requestBean.getHost()).request(data.length, compressed.getContentLength());
+        return compressed;
+    }
+
+    // gzips a streaming entity as it is written, with chunked transfer since the compressed size is not known
+    private static class GzipStreamEntity extends HttpEntityWrapper {
+        private final String host;
+        GzipStreamEntity(HttpEntity entity, String host) { super(entity); this.host = host; }
+
+        @Override public Header getContentEncoding() { return new BasicHeader(HttpHeaders.CONTENT_ENCODING, HttpContentEncoding.gzip.name()); }
+        @Override public long getContentLength() { return -1; }
+        @Override public boolean isChunked() { return true; }
+        @Override public InputStream getContent() { return notSupported("getContent: use writeTo"); }
+
+        @Override public void writeTo(OutputStream out) throws IOException {
+            final CountingOutputStream wire = new CountingOutputStream(out);
+            final CountingOutputStream raw;
+            try (OutputStream gzip = HttpContentEncoding.gzip.encode(wire)) {
+                raw = new CountingOutputStream(gzip);
+                wrappedEntity.writeTo(raw);
+                raw.flush();
+            }
+            HttpTransferStats.forHost(host).request(raw.getByteCount(), wire.getByteCount());
+        }
+    }
+
     public static String getContentType(HttpResponse response) {
         final Header contentTypeHeader = response.getFirstHeader(HttpHeaders.CONTENT_TYPE);
         return (contentTypeHeader == null) ? null : contentTypeHeader.getValue();
@@ -0,0 +1,46 @@
+package org.cobbzilla.util.http.main;
+
+import org.cobbzilla.util.http.HttpLoadGenerator;
+import org.cobbzilla.util.http.HttpRequestBean;
+import org.cobbzilla.util.http.HttpStubResponse;
+import org.cobbzilla.util.http.HttpStubServer;
+import org.cobbzilla.util.main.BaseMain;
+
+public class HttpLoadTestMain extends BaseMain<HttpLoadTestOptions> {
+
+    public static void main (String[] args) {
+        HttpStubServer.enableNoDelay();
+        main(HttpLoadTestMain.class, args);
+    }
+
+    @Override protected void run() throws Exception {
+        final HttpLoadTestOptions options = getOptions();
+
+        HttpStubServer server = null;
+        final String url;
+        if (options.hasUrl()) {
+            url = options.getUrl();
+        } else {
+            server = new HttpStubServer().setDefaultResponse(new HttpStubResponse()
+                    .setLatency(options.getLatency())
+                    .setSize(options.getSize())
+                    .setStatus(options.getStatus())
+                    .setChunked(options.isChunked())
+                    .setCompress(options.isCompress())).start();
+            url = server.url("/");
+        }
+
+        try {
+            final HttpLoadGenerator.Result result = new HttpLoadGenerator(new HttpRequestBean(url))
+                    .setConcurrency(options.getConcurrency())
+                    .setRequests(options.getRequests())
+                    .setDuration(options.getDurationMillis())
+                    .setWarmupRequests(options.getWarmup())
+                    .run();
+            out(result.toString());
+        } finally {
+            if (server != null) server.stop();
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package org.cobbzilla.util.http.main;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.cobbzilla.util.main.BaseMainOptions;
+import org.kohsuke.args4j.Option;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+
+public class HttpLoadTestOptions extends BaseMainOptions {
+
+    public static final String USAGE_URL = "URL to request. Default is to start a loopback stub server and request it";
+    public static final String OPT_URL = "-u";
+    public static final String LONGOPT_URL = "--url";
+    @Option(name=OPT_URL, aliases=LONGOPT_URL, usage=USAGE_URL, required=false)
+    @Getter @Setter private String url = null;
+    public boolean hasUrl () { return !empty(url); }
+
+    public static final int DEFAULT_CONCURRENCY = 10;
+    public static final String USAGE_CONCURRENCY = "Number of concurrent workers. Default is "+DEFAULT_CONCURRENCY;
+    public static final String OPT_CONCURRENCY = "-c";
+    public static final String LONGOPT_CONCURRENCY = "--concurrency";
+    @Option(name=OPT_CONCURRENCY, aliases=LONGOPT_CONCURRENCY, usage=USAGE_CONCURRENCY, required=false)
+    @Getter @Setter private int concurrency = DEFAULT_CONCURRENCY;
+
+    public static final long DEFAULT_REQUESTS = 10000;
+    public static final String USAGE_REQUESTS = "Total number of requests to send. Default is "+DEFAULT_REQUESTS;
+    public static final String OPT_REQUESTS = "-n";
+    public static final String LONGOPT_REQUESTS = "--requests";
+    @Option(name=OPT_REQUESTS, aliases=LONGOPT_REQUESTS, usage=USAGE_REQUESTS, required=false)
+    @Getter @Setter private long requests = DEFAULT_REQUESTS;
+
+    public static final String USAGE_DURATION = "Run for this many seconds instead of a fixed number of requests";
+    public static final String OPT_DURATION = "-d";
+    public static final String LONGOPT_DURATION = "--duration";
+    @Option(name=OPT_DURATION, aliases=LONGOPT_DURATION, usage=USAGE_DURATION, required=false)
+    @Getter @Setter private int duration = 0;
+    public long getDurationMillis () { return duration * 1000L; }
+
+    public static final String USAGE_WARMUP = "Number of warmup requests to send before measuring. Default is 0";
+    public static final String OPT_WARMUP = "-w";
+    public static final String LONGOPT_WARMUP = "--warmup";
+    @Option(name=OPT_WARMUP, aliases=LONGOPT_WARMUP, usage=USAGE_WARMUP, required=false)
+    @Getter @Setter private long warmup = 0;
+
+    public static final String USAGE_LATENCY = "Stub server only: simulated latency in millis. Default is 0";
+    public static final String OPT_LATENCY = "-l";
+    public static final String LONGOPT_LATENCY = "--latency";
+    @Option(name=OPT_LATENCY, aliases=LONGOPT_LATENCY, usage=USAGE_LATENCY, required=false)
+    @Getter @Setter private long latency = 0;
+
+    public static final String USAGE_SIZE = "Stub server only: response payload size in bytes. Default is 1024";
+    public static final String OPT_SIZE = "-s";
+    public static final String LONGOPT_SIZE = "--size";
+    @Option(name=OPT_SIZE, aliases=LONGOPT_SIZE, usage=USAGE_SIZE, required=false)
+    @Getter @Setter private int size = 1024;
+
+    public static final String USAGE_STATUS = "Stub server only: response status code. Default is 200";
+    public static final String OPT_STATUS = "-S";
+    public static final String LONGOPT_STATUS = "--status";
+    @Option(name=OPT_STATUS, aliases=LONGOPT_STATUS, usage=USAGE_STATUS, required=false)
+    @Getter @Setter private int status = 200;
+
+    public static final String USAGE_CHUNKED = "Stub server only: send responses with chunked transfer encoding";
+    public static final String OPT_CHUNKED = "-C";
+    public static final String LONGOPT_CHUNKED = "--chunked";
+    @Option(name=OPT_CHUNKED, aliases=LONGOPT_CHUNKED, usage=USAGE_CHUNKED, required=false)
+    @Getter @Setter private boolean chunked = false;
+
+    public static final String USAGE_COMPRESS = "Stub server only: gzip responses";
+    public static final String OPT_COMPRESS = "-z";
+    public static final String LONGOPT_COMPRESS = "--compress";
+    @Option(name=OPT_COMPRESS, aliases=LONGOPT_COMPRESS, usage=USAGE_COMPRESS, required=false)
+    @Getter @Setter private boolean compress = false;
+
+}
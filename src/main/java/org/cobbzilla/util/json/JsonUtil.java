@@ -5,6 +5,7 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.databind.node.*;
+import org.cobbzilla.util.cache.BoundedCache;
 import org.cobbzilla.util.io.FileSuffixFilter;
 import org.cobbzilla.util.io.FileUtil;
 import org.cobbzilla.util.io.FilenameSuffixFilter;
@@ -14,7 +15,6 @@ import java.io.*;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
@@ -92,16 +92,15 @@ public class JsonUtil {
     }
 
 
-    private static Map<String, ObjectWriter> viewWriters = new ConcurrentHashMap<>();
+    public static final int MAX_VIEW_WRITERS = 500;
 
-    protected static ObjectWriter viewWriter(Class jsonView) {
-        ObjectWriter w = viewWriters.get(jsonView.getName());
-        if (w == null) {
-            w = JsonUtil.NOTNULL_MAPPER.disable(MapperFeature.DEFAULT_VIEW_INCLUSION).writerWithView(jsonView);
-            viewWriters.put(jsonView.getName(), w);
+    private static final BoundedCache<Class, ObjectWriter> viewWriters = new BoundedCache<>(MAX_VIEW_WRITERS, new BoundedCache.Loader<Class, ObjectWriter>() {
+        @Override public ObjectWriter load(Class jsonView) {
+            return JsonUtil.NOTNULL_MAPPER.disable(MapperFeature.DEFAULT_VIEW_INCLUSION).writerWithView(jsonView);
         }
-        return w;
-    }
+    });
+
+    protected static ObjectWriter viewWriter(Class jsonView) { return viewWriters.get(jsonView); }
 
     public static String toJson (Object o, Class jsonView) throws Exception {
         return viewWriter(jsonView).writeValueAsString(o);
@@ -2,6 +2,7 @@ package org.cobbzilla.util.main;
 
 import com.google.common.collect.ImmutableMap;
 import org.cobbzilla.util.collection.ArrayUtil;
+import org.cobbzilla.util.http.main.HttpLoadTestMain;
 import org.cobbzilla.util.io.main.FilesystemWatcherMain;
 import org.cobbzilla.util.json.main.JsonEditor;
 import org.cobbzilla.util.string.StringUtil;
@@ -19,6 +20,7 @@ public class IndexMain {
             = ImmutableMap.<String, Class<?>>builder()
             .put("json", JsonEditor.class)
             .put("fswatch", FilesystemWatcherMain.class)
+            .put("http-load", HttpLoadTestMain.class)
             .build();
     public Map<String, Class<?>> getHandlers() { return handlers; }
 
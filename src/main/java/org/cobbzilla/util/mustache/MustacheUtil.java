@@ -3,11 +3,11 @@ package org.cobbzilla.util.mustache;
 import com.github.mustachejava.DefaultMustacheFactory;
 import com.github.mustachejava.Mustache;
 import com.github.mustachejava.MustacheFactory;
+import org.cobbzilla.util.cache.BoundedCache;
 
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 
@@ -15,13 +15,27 @@ public class MustacheUtil {
 
     public static final MustacheFactory mustacheFactory = new DefaultMustacheFactory();
 
-    public static Map<String, Mustache> mustacheCache = new ConcurrentHashMap<>();
+    public static final int MAX_CACHED_TEMPLATES = 2000;
+
+    public static final BoundedCache<String, Mustache> templateCache = new BoundedCache<>(MAX_CACHED_TEMPLATES, new BoundedCache.Loader<String, Mustache>() {
+        @Override public Mustache load(String value) { return compile(value); }
+    });
+
+    /**
+     * @deprecated use templateCache. This is a Map view of it, kept so existing code still compiles and links.
+     * If it is replaced with another Map, getMustache caches templates there instead, as it used to.
+     */
+    @Deprecated public static Map<String, Mustache> mustacheCache = templateCache.asMap();
+
+    private static Mustache compile(String value) { return mustacheFactory.compile(new StringReader(value), value); }
 
     public static Mustache getMustache(String value) {
-        Mustache m = mustacheCache.get(value);
+        final Map<String, Mustache> cache = mustacheCache;
+        if (cache == templateCache.asMap()) return templateCache.get(value);
+        Mustache m = cache.get(value);
         if (m == null) {
-            m = mustacheFactory.compile(new StringReader(value), value);
-            mustacheCache.put(value, m);
+            m = compile(value);
+            cache.put(value, m);
         }
         return m;
     }
@@ -0,0 +1,85 @@
+package org.cobbzilla.util.time;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free histogram of non-negative durations (usually milliseconds).
+ * Values below 32 are counted exactly; larger values go into log-linear buckets (32 per power of two),
+ * so percentiles are accurate to within ~3%. Recording never allocates.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(0);
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        final int exp = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        final int exp = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        if (exp >= 62) return Long.MAX_VALUE;
+        final long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exp - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value < (m = min.get()) && !min.compareAndSet(m, value)) {}
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {}
+    }
+
+    public void recordSince(long start) { record(System.currentTimeMillis() - start); }
+
+    public long getCount() { return count.get(); }
+    public long getSum() { return sum.get(); }
+    public long getMax() { return max.get(); }
+    public long getMin() { return getCount() == 0 ? 0 : min.get(); }
+    public double getMean() { final long n = getCount(); return n == 0 ? 0 : ((double) getSum()) / n; }
+
+    /**
+     * @param percentile a value between 0 and 100
+     * @return an upper bound for the value at the given percentile, or 0 if nothing has been recorded
+     */
+    public long percentile(double percentile) {
+        final long n = getCount();
+        if (n == 0) return 0;
+        final long target = Math.max(1, (long) Math.ceil(n * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+        long seen = 0;
+        for (int i=0; i<NUM_BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) return Math.min(bucketUpperBound(i), getMax());
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i=0; i<NUM_BUCKETS; i++) counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+
+    @Override public String toString() {
+        return "count="+getCount()+" min="+getMin()+" mean="+String.format("%.1f", getMean())
+                +" p50="+percentile(50)+" p95="+percentile(95)+" p99="+percentile(99)+" max="+getMax();
+    }
+
+}
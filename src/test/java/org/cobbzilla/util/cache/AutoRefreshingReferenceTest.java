@@ -0,0 +1,150 @@
+package org.cobbzilla.util.cache;
+
+import org.apache.commons.io.FileUtils;
+import org.cobbzilla.util.json.JsonUtil;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.realNow;
+import static org.cobbzilla.util.io.FileUtil.getDefaultTempDir;
+import static org.cobbzilla.util.system.Sleep.sleep;
+import static org.junit.Assert.*;
+
+public class AutoRefreshingReferenceTest {
+
+    private static class SlowReference extends AutoRefreshingReference<Integer> {
+        final AtomicInteger refreshCount = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean block = false;
+        @Override public Integer refresh() {
+            if (block) try { release.await(5, TimeUnit.SECONDS); } catch (InterruptedException ignored) {}
+            return refreshCount.incrementAndGet();
+        }
+        @Override public long getTimeout() { return 50; }
+    }
+
+    @Test public void testReadersDoNotWaitForRefresh () throws Exception {
+        final SlowReference ref = new SlowReference();
+        assertEquals(Integer.valueOf(1), ref.get());
+        sleep(100);
+
+        // the stale read returns at once and starts the refresh, which gets stuck
+        ref.block = true;
+        final long start = realNow();
+        assertEquals(Integer.valueOf(1), ref.get());
+        for (int i=0; i<100; i++) assertEquals(Integer.valueOf(1), ref.get());
+        assertTrue(realNow() - start < 1000);
+
+        ref.release.countDown();
+        for (int i=0; i<100 && ref.refreshCount.get() < 2; i++) sleep(10);
+        assertEquals(2, ref.refreshCount.get());
+        assertEquals(Integer.valueOf(2), ref.getObject().get());
+    }
+
+    @Test public void testStaleValueIsBounded () throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        final AutoRefreshingReference<Integer> ref = new AutoRefreshingReference<Integer>() {
+            @Override public Integer refresh() {
+                if (count.incrementAndGet() > 1) throw new IllegalStateException("upstream down");
+                return count.get();
+            }
+            @Override public long getTimeout() { return 50; }
+            @Override public long getMaxStaleness() { return 200; }
+        };
+        assertEquals(Integer.valueOf(1), ref.get());
+        sleep(100);
+        assertEquals(Integer.valueOf(1), ref.get()); // stale: served while the refresh fails in the background
+        for (int i=0; i<100 && count.get() < 2; i++) sleep(10);
+        assertEquals(Integer.valueOf(1), ref.get());
+        sleep(200);
+        try {
+            ref.get();
+            fail("expected the refresh failure once the value was too stale");
+        } catch (IllegalStateException expected) {}
+    }
+
+    @Test public void testBackgroundProactiveRefresh () throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        final BackgroundRefreshingReference<Integer> ref = new BackgroundRefreshingReference<Integer>() {
+            @Override public Integer refresh() {
+                if (count.incrementAndGet() == 2) throw new IllegalStateException("fail once");
+                return count.get();
+            }
+            @Override public long getTimeout() { return 100; }
+            @Override public long getRefreshAhead() { return 50; }
+        };
+        // the first refresh succeeds, the second fails and is retried after a 2s backoff, then refreshes resume
+        for (int i=0; i<300 && ref.getRefreshCount().get() < 3; i++) sleep(20);
+        ref.cancel();
+        assertTrue(ref.getRefreshCount().get() >= 3);
+        assertEquals(1, ref.getRefreshErrors().get());
+        assertEquals(0, ref.getConsecutiveErrors());
+        assertTrue(ref.getLastError() instanceof IllegalStateException);
+        assertEquals(ref.getRefreshCount().get(), ref.getRefreshLatency().getCount());
+        assertTrue(ref.get() >= 3);
+    }
+
+    private static class SnapshotReference extends AutoRefreshingReference<Map<String, Integer>> {
+        final File file;
+        final AtomicInteger versions;
+        final AtomicInteger refreshCount = new AtomicInteger();
+        SnapshotReference (File file, AtomicInteger versions) { this.file = file; this.versions = versions; }
+        @Override public Map<String, Integer> refresh() {
+            refreshCount.incrementAndGet();
+            return Collections.singletonMap("version", versions.incrementAndGet());
+        }
+        @Override public long getTimeout() { return TimeUnit.HOURS.toMillis(1); }
+        @Override public File getSnapshotFile() { return file; }
+    }
+
+    // snapshots are written in the background
+    private void awaitSnapshot (File file, int version) throws Exception {
+        for (int i=0; i<100 && snapshotVersion(file) != version; i++) sleep(10);
+        assertEquals(version, snapshotVersion(file));
+    }
+
+    private int snapshotVersion (File file) throws Exception {
+        return file.exists() ? JsonUtil.FULL_MAPPER.readTree(file).get("version").asInt() : 0;
+    }
+
+    @Test public void testWarmStartFromSnapshot () throws Exception {
+        final File file = new File(getDefaultTempDir(), "ref-snapshot-"+realNow()+".json");
+        final AtomicInteger versions = new AtomicInteger();
+        try {
+            final SnapshotReference first = new SnapshotReference(file, versions);
+            assertEquals(Integer.valueOf(1), first.get().get("version"));
+            awaitSnapshot(file, 1);
+
+            // a new instance starts from the snapshot without refreshing, then refreshes in the background
+            final SnapshotReference second = new SnapshotReference(file, versions);
+            assertEquals(Integer.valueOf(1), second.get().get("version"));
+            assertEquals(0, second.refreshCount.get());
+            assertEquals(Integer.valueOf(1), second.get().get("version"));
+            for (int i=0; i<100 && second.refreshCount.get() < 1; i++) sleep(10);
+            assertEquals(1, second.refreshCount.get());
+            awaitSnapshot(file, 2);
+
+            // snapshots that are too old are ignored
+            assertTrue(file.setLastModified(realNow() - AutoRefreshingReference.DEFAULT_SNAPSHOT_MAX_AGE - 60000));
+            final SnapshotReference third = new SnapshotReference(file, versions);
+            assertEquals(Integer.valueOf(3), third.get().get("version"));
+            assertEquals(1, third.refreshCount.get());
+            awaitSnapshot(file, 3);
+
+            // and so are snapshots older than the reference will serve a stale value for
+            assertTrue(file.setLastModified(realNow() - TimeUnit.HOURS.toMillis(1) - AutoRefreshingReference.DEFAULT_MAX_STALENESS - 60000));
+            final SnapshotReference fourth = new SnapshotReference(file, versions);
+            assertEquals(Integer.valueOf(4), fourth.get().get("version"));
+            assertEquals(1, fourth.refreshCount.get());
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+package org.cobbzilla.util.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.cobbzilla.util.system.Sleep.sleep;
+import static org.junit.Assert.*;
+
+public class BoundedCacheTest {
+
+    @Test public void testEvictionIsScanResistant () throws Exception {
+        final BoundedCache<Integer, String> cache = new BoundedCache<>(100);
+        for (int i=0; i<50; i++) cache.put(i, "hot"+i);
+        for (int i=0; i<50; i++) assertEquals("hot"+i, cache.getIfPresent(i)); // promote to the protected segment
+
+        for (int i=1000; i<2000; i++) cache.put(i, "cold"+i);
+        assertEquals(100, cache.size());
+        assertEquals(100, cache.getWeight());
+        assertEquals(950, cache.getEvictions().get());
+        for (int i=0; i<50; i++) assertEquals("hot"+i, cache.getIfPresent(i));
+        assertNull(cache.getIfPresent(1000));
+    }
+
+    @Test public void testWeigher () throws Exception {
+        final BoundedCache<String, String> cache = new BoundedCache<String, String>(100)
+                .setWeigher(new BoundedCache.Weigher<String, String>() {
+                    @Override public long weigh(String key, String value) { return value.length(); }
+                });
+        cache.put("a", "0123456789");
+        for (int i=0; i<20; i++) cache.put("k"+i, "012345678901234567890123456789");
+        assertTrue(cache.getWeight() <= 100);
+        assertEquals(3, cache.size());
+    }
+
+    @Test public void testExpiration () throws Exception {
+        final BoundedCache<String, String> cache = new BoundedCache<String, String>(10).setExpireAfterWrite(50);
+        cache.put("a", "1");
+        cache.put("b", "2", 0);
+        assertEquals("1", cache.getIfPresent("a"));
+        sleep(100);
+        assertNull(cache.getIfPresent("a"));
+        assertEquals("2", cache.getIfPresent("b"));
+        assertEquals(1, cache.getExpirations().get());
+    }
+
+    @Test public void testConcurrentMissesShareOneLoad () throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final BoundedCache<String, String> cache = new BoundedCache<>(10, new BoundedCache.Loader<String, String>() {
+            @Override public String load(String key) {
+                loads.incrementAndGet();
+                sleep(100);
+                return key.toUpperCase();
+            }
+        });
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        final List<String> results = new ArrayList<>();
+        for (int i=0; i<8; i++) {
+            final Thread t = new Thread(new Runnable() {
+                @Override public void run() {
+                    try { start.await(); } catch (InterruptedException e) { return; }
+                    final String value = cache.get("foo");
+                    synchronized (results) { results.add(value); }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) t.join();
+        assertEquals(1, loads.get());
+        assertEquals(8, results.size());
+        for (String r : results) assertEquals("FOO", r);
+    }
+
+    @Test public void testRefreshAhead () throws Exception {
+        final AtomicInteger version = new AtomicInteger();
+        final BoundedCache<String, String> cache = new BoundedCache<String, String>(10, new BoundedCache.Loader<String, String>() {
+            @Override public String load(String key) { return key + version.incrementAndGet(); }
+        }).setRefreshAfterWrite(50);
+
+        assertEquals("v1", cache.get("v"));
+        sleep(100);
+        assertEquals("v1", cache.get("v")); // stale value is served while the refresh runs
+        for (int i=0; i<50 && cache.getRefreshes().get() == 0; i++) sleep(20);
+        assertEquals("v2", cache.get("v"));
+        assertEquals(1, cache.getLoads().get());
+        assertEquals(1, cache.getRefreshes().get());
+    }
+
+    @Test public void testOffHeapTier () throws Exception {
+        final OffHeapCache<String, Map> offHeap = new OffHeapCache<>(1024 * 1024, Map.class);
+        final BoundedCache<String, Map> cache = new BoundedCache<String, Map>(2).setOffHeapTier(offHeap);
+        for (int i=0; i<5; i++) cache.put("k"+i, Collections.singletonMap("value", "v"+i));
+        assertEquals(2, cache.size());
+        assertEquals(3, offHeap.size());
+        assertTrue(offHeap.getBytes() > 0);
+
+        assertTrue(cache.containsKey("k0"));
+        assertEquals("v0", cache.getIfPresent("k0").get("value")); // moved back onto the heap
+        assertEquals(1, cache.getOffHeapHits().get());
+        assertEquals(3, offHeap.size()); // k0 left, and one heap entry was evicted into it
+        assertEquals(5, cache.size() + offHeap.size());
+
+        cache.invalidateAll();
+        assertEquals(0, offHeap.size());
+
+        final OffHeapCache<String, String> strings = new OffHeapCache<>(100, OffHeapCache.STRING_CODEC);
+        strings.put("a", "0123456789012345678901234567890123456789");
+        strings.put("b", "0123456789012345678901234567890123456789");
+        strings.put("c", "0123456789012345678901234567890123456789");
+        assertEquals(2, strings.size());
+        assertEquals("0123456789012345678901234567890123456789", strings.getIfPresent("c"));
+    }
+
+    @Test public void testOffHeapKeepsTtl () throws Exception {
+        final OffHeapCache<String, String> offHeap = new OffHeapCache<>(1024, OffHeapCache.STRING_CODEC);
+        final BoundedCache<String, String> cache = new BoundedCache<String, String>(1).setOffHeapTier(offHeap);
+        cache.put("a", "1", 400);
+        cache.put("b", "2"); // pushes a off-heap
+        assertTrue(offHeap.containsKey("a"));
+        sleep(100);
+        assertEquals("1", cache.getIfPresent("a")); // back on the heap, pushing b off-heap
+        assertTrue(offHeap.containsKey("b"));
+        sleep(400);
+        assertNull("promoted entry got a new lifetime", cache.getIfPresent("a"));
+        assertEquals("2", cache.getIfPresent("b")); // no TTL, never expires
+    }
+
+    @Test public void testMapView () throws Exception {
+        final BoundedCache<String, String> cache = new BoundedCache<>(10);
+        final Map<String, String> map = cache.asMap();
+        map.put("a", "1");
+        cache.put("b", "2");
+        assertEquals("2", map.get("b"));
+        assertTrue(map.containsKey("a"));
+        assertEquals(2, map.size());
+        assertEquals(2, map.entrySet().size());
+
+        assertEquals("1", map.remove("a"));
+        assertNull(cache.getIfPresent("a"));
+        for (Iterator<String> iter = map.keySet().iterator(); iter.hasNext(); ) {
+            iter.next();
+            iter.remove();
+        }
+        assertEquals(0, cache.size());
+        assertTrue(map.isEmpty());
+    }
+
+}
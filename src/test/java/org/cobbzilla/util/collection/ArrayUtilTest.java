@@ -4,7 +4,7 @@ import org.junit.Test;
 
 import java.util.Arrays;
 
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class ArrayUtilTest {
 
@@ -39,4 +39,40 @@ public class ArrayUtilTest {
                 new String[]{"three"}));
 
     }
+
+    @Test public void testRemove () throws Exception {
+        assertTrue(Arrays.deepEquals(ArrayUtil.remove(new String[]{"one", "two", "three"}, 0), new String[]{"two", "three"}));
+        assertTrue(Arrays.deepEquals(ArrayUtil.remove(new String[]{"one", "two", "three"}, 1), new String[]{"one", "three"}));
+        assertTrue(Arrays.deepEquals(ArrayUtil.remove(new String[]{"one", "two", "three"}, 2), new String[]{"one", "two"}));
+    }
+
+    @Test public void testPrimitiveArrays () throws Exception {
+        assertArrayEquals(new int[]{1, 2, 3, 4}, ArrayUtil.append(new int[]{1, 2}, 3, 4));
+        assertArrayEquals(new int[]{3}, ArrayUtil.append((int[]) null, 3));
+        assertArrayEquals(new long[]{1, 2, 3}, ArrayUtil.concat(new long[]{1}, null, new long[]{2, 3}));
+        assertArrayEquals(new byte[]{1, 3}, ArrayUtil.remove(new byte[]{1, 2, 3}, 1));
+        assertArrayEquals(new double[]{2, 3}, ArrayUtil.slice(new double[]{1, 2, 3}, 1, 3), 0);
+        assertArrayEquals(new int[0], ArrayUtil.slice(new int[]{1, 2, 3}, 3, 3));
+    }
+
+    @Test public void testGrowableArray () throws Exception {
+        final GrowableLongArray longs = new GrowableLongArray(1);
+        for (long i=0; i<1000; i++) longs.add(i);
+        assertEquals(1000, longs.size());
+        assertEquals(999, longs.get(999));
+        assertEquals(5, longs.remove(5));
+        assertEquals(6, longs.get(5));
+        assertEquals(999, longs.removeLast());
+        longs.addAll(7, 8);
+        assertEquals(1000, longs.size());
+        assertEquals(8, longs.toArray()[999]);
+        assertEquals(new GrowableLongArray(longs.toArray()), longs.trim());
+        longs.clear();
+        assertTrue(longs.isEmpty());
+        try {
+            longs.get(0);
+            fail("expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException expected) {}
+    }
+
 }
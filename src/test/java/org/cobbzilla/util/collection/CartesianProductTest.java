@@ -0,0 +1,104 @@
+package org.cobbzilla.util.collection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class CartesianProductTest {
+
+    @Test public void testPermutations () throws Exception {
+        final List<List<String>> input = new ArrayList<>();
+        input.add(asList("a", "b", "c"));
+        input.add(asList("1", "2", "3", "4"));
+        final List<List<String>> perms = ListUtil.permutations(input);
+        assertEquals(12, perms.size());
+        assertEquals(asList("a", "1"), perms.get(0));
+        assertEquals(asList("a", "4"), perms.get(3));
+        assertEquals(asList("b", "1"), perms.get(4));
+        assertEquals(asList("c", "4"), perms.get(11));
+
+        final List<List<String>> iterated = new ArrayList<>();
+        for (List<String> p : perms) iterated.add(p);
+        assertEquals(12, iterated.size());
+        for (int i=0; i<12; i++) assertEquals(perms.get(i), iterated.get(i));
+
+        // later changes to the inputs do not affect the product
+        final List<String> letters = new ArrayList<>(asList("x", "y"));
+        final List<List<String>> product = ListUtil.permutations(Collections.<List<String>>singletonList(letters));
+        letters.clear();
+        assertEquals(2, product.size());
+        assertEquals(asList(asList("x"), asList("y")), new ArrayList<>(product));
+
+        assertTrue(ListUtil.permutations(new ArrayList<List<String>>()).isEmpty());
+        input.add(Collections.<String>emptyList());
+        assertTrue(ListUtil.permutations(input).isEmpty());
+    }
+
+    @Test public void testHugeProduct () throws Exception {
+        // 39 lists of 3: far too many tuples to ever materialize
+        final List<List<Integer>> input = new ArrayList<>();
+        long expected = 1;
+        for (int i=0; i<39; i++) {
+            input.add(asList(0, 1, 2));
+            expected *= 3;
+        }
+        final CartesianProduct<Integer> product = new CartesianProduct<>(input);
+        assertEquals(expected, product.getCount());
+        assertEquals(Integer.MAX_VALUE, product.size());
+
+        final List<Integer> last = product.get(product.getCount() - 1);
+        assertEquals(39, last.size());
+        for (Integer i : last) assertEquals(2, i.intValue());
+
+        int n = 0;
+        for (List<Integer> tuple : product) if (++n == 1000) break;
+        assertEquals(1000, n);
+        assertEquals(product.get(Integer.MAX_VALUE - 1), product.listIterator(Integer.MAX_VALUE - 1).next());
+        assertFalse(product.listIterator(Integer.MAX_VALUE).hasNext()); // as a List, it ends at Integer.MAX_VALUE
+
+        input.add(asList(0, 1, 2));
+        try {
+            new CartesianProduct<>(input);
+            fail("expected a product too large to count to be rejected");
+        } catch (IllegalStateException expectedException) {}
+    }
+
+    private static class SumTask extends RecursiveTask<Long> {
+        private final Iterable<List<Integer>> range;
+        SumTask (Iterable<List<Integer>> range) { this.range = range; }
+        @Override protected Long compute() {
+            long sum = 0;
+            for (List<Integer> tuple : range) for (Integer i : tuple) sum += i;
+            return sum;
+        }
+    }
+
+    @Test public void testSplit () throws Exception {
+        final List<List<Integer>> input = new ArrayList<>();
+        for (int i=0; i<6; i++) input.add(asList(1, 2, 3, 4, 5));
+        final CartesianProduct<Integer> product = new CartesianProduct<>(input);
+
+        long expected = 0;
+        for (List<Integer> tuple : product) for (Integer i : tuple) expected += i;
+
+        final List<SumTask> tasks = new ArrayList<>();
+        for (Iterable<List<Integer>> range : product.split(7)) tasks.add(new SumTask(range));
+        assertEquals(7, tasks.size());
+        final ForkJoinPool pool = new ForkJoinPool();
+        long total = 0;
+        for (SumTask task : tasks) pool.execute(task);
+        for (SumTask task : tasks) total += task.join();
+        pool.shutdown();
+        assertEquals(expected, total);
+
+        assertEquals(3, new CartesianProduct<>(asList(asList(1, 2, 3))).split(10).size());
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.cobbzilla.util.collection;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares CaseInsensitiveStringKeyMap with its original implementation (every key spelling stored in a second
+ * ConcurrentHashMap, a lowercased copy of the key on every call, and a copied keySet) on the workloads it sees in
+ * HttpResponseBean header indexes and CookieJars.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.cobbzilla.util.collection.CaseInsensitiveStringKeyMapBenchmark
+ */
+@BenchmarkMode(Mode.Throughput) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=1) @Measurement(iterations=5, time=1) @Fork(1)
+public class CaseInsensitiveStringKeyMapBenchmark {
+
+    public static final String[] HEADERS = {
+            "Date", "Server", "Content-Type", "Content-Length", "Connection", "Cache-Control", "Expires",
+            "Last-Modified", "ETag", "Vary", "Set-Cookie", "X-Frame-Options", "X-Content-Type-Options",
+            "Strict-Transport-Security", "Content-Encoding"
+    };
+    public static final String[] LOOKUPS = { "content-type", "Content-Length", "CONTENT-ENCODING", "location", "etag" };
+
+    public static final String[] COOKIES = {
+            "session", "csrftoken", "_ga", "_gid", "locale", "theme", "consent", "ab_test", "remember_me", "tz"
+    };
+
+    @State(Scope.Thread)
+    public static class Maps {
+        final CaseInsensitiveStringKeyMap<String> headers = new CaseInsensitiveStringKeyMap<>();
+        final LegacyCaseInsensitiveStringKeyMap<String> legacyHeaders = new LegacyCaseInsensitiveStringKeyMap<>();
+        final CaseInsensitiveStringKeyMap<String> cookies = new CaseInsensitiveStringKeyMap<>();
+        final LegacyCaseInsensitiveStringKeyMap<String> legacyCookies = new LegacyCaseInsensitiveStringKeyMap<>();
+        @Setup public void setup () {
+            for (String h : HEADERS) { headers.put(h, "value of "+h); legacyHeaders.put(h, "value of "+h); }
+            for (String c : COOKIES) { cookies.put(c, "value-"+c); legacyCookies.put(c, "value-"+c); }
+        }
+    }
+
+    @Benchmark public int headerLookup (Maps m) {
+        int found = 0;
+        for (String name : LOOKUPS) if (m.headers.get(name) != null) found++;
+        return found;
+    }
+
+    @Benchmark public int headerLookup_legacy (Maps m) {
+        int found = 0;
+        for (String name : LOOKUPS) if (m.legacyHeaders.get(name) != null) found++;
+        return found;
+    }
+
+    @Benchmark public Map<String, String> headerBuild () {
+        final Map<String, String> map = new CaseInsensitiveStringKeyMap<>();
+        for (String h : HEADERS) map.put(h, h);
+        return map;
+    }
+
+    @Benchmark public Map<String, String> headerBuild_legacy () {
+        final Map<String, String> map = new LegacyCaseInsensitiveStringKeyMap<>();
+        for (String h : HEADERS) map.put(h, h);
+        return map;
+    }
+
+    // what CookieJar.getRequestValue used to do: walk the key set, and look up each key
+    @Benchmark public int cookieHeader (Maps m) {
+        final StringBuilder sb = new StringBuilder();
+        for (String name : m.cookies.keySet()) sb.append(name).append('=').append(m.cookies.get(name)).append("; ");
+        return sb.length();
+    }
+
+    @Benchmark public int cookieHeader_legacy (Maps m) {
+        final StringBuilder sb = new StringBuilder();
+        for (String name : m.legacyCookies.keySet()) sb.append(name).append('=').append(m.legacyCookies.get(name)).append("; ");
+        return sb.length();
+    }
+
+    public static void main (String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CaseInsensitiveStringKeyMapBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    /**
+     * CaseInsensitiveStringKeyMap as it originally was, kept here as a baseline.
+     */
+    static class LegacyCaseInsensitiveStringKeyMap<V> extends ConcurrentHashMap<String, V> {
+
+        private ConcurrentHashMap<String, String> origKeys = new ConcurrentHashMap<>();
+
+        public String key(Object key) { return key == null ? null : key.toString().toLowerCase(); }
+
+        @Override public Set<String> keySet() { return new HashSet<>(origKeys.values()); }
+
+        @Override public V get(Object key) { return super.get(key(key)); }
+
+        @Override public boolean containsKey(Object key) { return super.containsKey(key(key)); }
+
+        @Override public V put(String key, V value) {
+            final String ciKey = key(key);
+            origKeys.put(ciKey, key);
+            return super.put(ciKey, value);
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package org.cobbzilla.util.collection;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.cobbzilla.util.http.CookieJar;
+import org.cobbzilla.util.http.HttpCookieBean;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class CaseInsensitiveStringKeyMapTest {
+
+    @Test public void testCaseInsensitiveKeys () throws Exception {
+        final CaseInsensitiveStringKeyMap<String> map = new CaseInsensitiveStringKeyMap<>();
+        map.put("Content-Type", "text/plain");
+        assertEquals("text/plain", map.get("content-type"));
+        assertEquals("text/plain", map.get("CONTENT-TYPE"));
+        assertTrue(map.containsKey("cOnTeNt-TyPe"));
+        assertTrue(map.keySet().contains("content-type"));
+
+        assertEquals("text/plain", map.put("content-type", "text/html"));
+        assertEquals(1, map.size());
+        assertEquals("content-type", map.keySet().iterator().next()); // latest spelling wins
+
+        assertNull(map.putIfAbsent("Accept", "*/*"));
+        assertEquals("*/*", map.putIfAbsent("ACCEPT", "nope"));
+        assertFalse(map.remove("accept", "nope"));
+        assertTrue(map.replace("accept", "*/*", "text/*"));
+        assertEquals("text/*", map.get("Accept"));
+        assertTrue(map.remove("ACCEPT", "text/*"));
+        assertFalse(map.containsKey("accept"));
+
+        // non-ASCII case folding matches String.equalsIgnoreCase
+        map.put("Straße", "street");
+        assertEquals("street", map.get("STRAßE"));
+    }
+
+    @Test public void testLiveViews () throws Exception {
+        final CaseInsensitiveStringKeyMap<String> map = new CaseInsensitiveStringKeyMap<>();
+        map.put("A", "1");
+        map.put("B", "2");
+        map.put("C", "3");
+        map.keySet().remove("a");
+        assertEquals(2, map.size());
+
+        for (Iterator<Map.Entry<String, String>> iter = map.entrySet().iterator(); iter.hasNext(); ) {
+            final Map.Entry<String, String> entry = iter.next();
+            if (entry.getKey().equals("B")) iter.remove(); else entry.setValue("x");
+        }
+        assertEquals(1, map.size());
+        assertEquals("x", map.get("c"));
+        assertTrue(map.values().contains("x"));
+    }
+
+    @Test public void testCookieJarHeaderCache () throws Exception {
+        final CookieJar jar = new CookieJar();
+        jar.add(new HttpCookieBean("session", "abc", null));
+        assertEquals("session=abc", jar.getRequestValue());
+        jar.add(new HttpCookieBean("Session", "def", null));
+        assertEquals("Session=def", jar.getRequestValue());
+        jar.keySet().remove("SESSION");
+        assertEquals("", jar.getRequestValue());
+    }
+
+    @Test public void testStillAConcurrentHashMap () throws Exception {
+        final CaseInsensitiveStringKeyMap<String> map = new CaseInsensitiveStringKeyMap<>();
+        map.put("Content-Type", "text/plain");
+        map.put("accept", "*/*");
+        final ConcurrentHashMap<String, String> chm = map;
+        assertEquals("text/plain", chm.get("CONTENT-TYPE"));
+
+        final CaseInsensitiveStringKeyMap<String> copy = SerializationUtils.clone(map);
+        assertEquals("text/plain", copy.get("content-type"));
+        assertEquals(new HashSet<>(Arrays.asList("Content-Type", "accept")), copy.keySet());
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.cobbzilla.util.collection;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static java.util.Arrays.asList;
+import static org.cobbzilla.util.collection.InspectCollection.*;
+import static org.junit.Assert.*;
+
+public class InspectCollectionTest {
+
+    private static Map<String, List<String>> graph(String... edges) {
+        final Map<String, List<String>> graph = new LinkedHashMap<>();
+        for (String edge : edges) {
+            final String[] parts = edge.split("->");
+            List<String> targets = graph.get(parts[0]);
+            if (targets == null) {
+                targets = new ArrayList<>();
+                graph.put(parts[0], targets);
+            }
+            if (parts.length > 1) targets.add(parts[1]);
+        }
+        return graph;
+    }
+
+    @Test public void testCircularReference () throws Exception {
+        assertTrue(containsCircularReference("a", graph("a->b", "b->c", "c->a")));
+        assertTrue(containsCircularReference("a", graph("a->a")));
+        assertFalse(containsCircularReference("a", graph("a->b", "b->c")));
+        assertFalse(containsCircularReference("x", graph("a->a"))); // start is outside the graph
+
+        // a diamond is not a cycle
+        assertFalse(containsCircularReference("a", graph("a->b", "a->c", "c->b", "b->d", "d")));
+
+        // a cycle elsewhere in the graph is not reachable from a
+        assertFalse(containsCircularReference("a", graph("a->b", "c->d", "d->c")));
+        assertTrue(hasCycle(graph("a->b", "c->d", "d->c")));
+    }
+
+    @Test public void testDeepAndDenseGraphs () throws Exception {
+        // a long chain would overflow the stack with recursion
+        final Map<String, List<String>> chain = new HashMap<>();
+        final int depth = 200000;
+        for (int i=0; i<depth; i++) chain.put("n"+i, asList("n"+(i+1)));
+        assertFalse(containsCircularReference("n0", chain));
+        chain.put("n"+depth, asList("n0"));
+        assertTrue(containsCircularReference("n0", chain));
+        assertEquals(1, findCycles(chain).size());
+        assertEquals(depth + 1, findCycles(chain).get(0).size());
+
+        // layers where every node points to every node of the next layer: many paths, no cycles
+        final Map<String, List<String>> dense = new HashMap<>();
+        final int layers = 30, width = 10;
+        for (int l=0; l<layers; l++) {
+            for (int i=0; i<width; i++) {
+                final List<String> next = new ArrayList<>();
+                if (l < layers - 1) for (int j=0; j<width; j++) next.add((l+1)+"-"+j);
+                dense.put(l+"-"+i, next);
+            }
+        }
+        assertFalse(containsCircularReference("0-0", dense));
+        assertEquals(layers * width, topologicalSort(dense).size());
+    }
+
+    @Test public void testFindCyclesAndTopologicalSort () throws Exception {
+        final Map<String, List<String>> g = graph("a->b", "b->c", "c->b", "c->d", "d->d", "e->a");
+        final Set<Set<String>> cycles = new HashSet<>();
+        for (List<String> cycle : findCycles(g)) cycles.add(new HashSet<>(cycle));
+        assertEquals(new HashSet<>(asList(new HashSet<>(asList("b", "c")), new HashSet<>(asList("d")))), cycles);
+
+        try {
+            topologicalSort(g);
+            fail("expected cycles to be reported");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("cycles"));
+        }
+
+        final List<String> sorted = topologicalSort(graph("a->b", "a->c", "c->b", "b->d", "e"));
+        assertEquals(asList("a", "e", "c", "b", "d"), sorted);
+    }
+
+}
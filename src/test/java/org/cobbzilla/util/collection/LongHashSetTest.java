@@ -0,0 +1,68 @@
+package org.cobbzilla.util.collection;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LongHashSetTest {
+
+    private static final LongHashSet.LongHasher<String> STRING_HASHER = new LongHashSet.LongHasher<String>() {
+        @Override public long hash(String thing) { return LongHashSet.hash64(thing); }
+    };
+
+    // a deliberately terrible hasher: every string of the same length collides
+    private static final LongHashSet.LongHasher<String> LENGTH_HASHER = new LongHashSet.LongHasher<String>() {
+        @Override public long hash(String thing) { return thing.length(); }
+    };
+
+    @Test public void testAddContainsRemove () throws Exception {
+        final LongHashSet<String> set = new LongHashSet<>(String.class, STRING_HASHER);
+        final Set<String> expected = new HashSet<>();
+        for (int i=0; i<10000; i++) {
+            assertTrue(set.add("item-"+i));
+            expected.add("item-"+i);
+        }
+        assertFalse(set.add("item-42"));
+        assertEquals(expected.size(), set.size());
+        assertEquals(expected, new HashSet<>(set));
+        assertTrue(set.containsKey(LongHashSet.hash64("item-42")));
+
+        for (int i=0; i<10000; i+=2) assertTrue(set.remove("item-"+i));
+        assertFalse(set.remove("item-0"));
+        assertFalse(set.contains(42)); // wrong type
+        assertEquals(5000, set.size());
+        for (int i=0; i<10000; i++) assertEquals(i % 2 == 1, set.contains("item-"+i));
+
+        assertTrue(set.retainAll(Arrays.asList("item-1", "item-3", "item-4")));
+        assertEquals(new HashSet<>(Arrays.asList("item-1", "item-3")), new HashSet<>(set));
+        set.trim();
+        assertTrue(set.contains("item-3"));
+        set.clear();
+        assertTrue(set.isEmpty());
+    }
+
+    @Test public void testKeyCollisions () throws Exception {
+        // without verification, the key is the identity
+        final LongHashSet<String> unverified = new LongHashSet<>(String.class, LENGTH_HASHER);
+        assertTrue(unverified.add("abc"));
+        assertFalse(unverified.add("xyz"));
+        assertTrue(unverified.contains("xyz"));
+        assertEquals("abc", unverified.find("xyz"));
+
+        // with verification, colliding elements are told apart with equals
+        final LongHashSet<String> verified = new LongHashSet<>(String.class, LENGTH_HASHER, true);
+        for (String s : new String[] {"abc", "xyz", "a", "b", "abcd", "xy"}) assertTrue(verified.add(s));
+        assertFalse(verified.add("xyz"));
+        assertEquals(6, verified.size());
+        assertFalse(verified.contains("qqq"));
+        assertTrue(verified.remove("abc"));
+        assertTrue(verified.contains("xyz"));
+        assertFalse(verified.contains("abc"));
+        assertEquals(5, verified.size());
+    }
+
+}
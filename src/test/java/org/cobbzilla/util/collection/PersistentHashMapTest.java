@@ -0,0 +1,88 @@
+package org.cobbzilla.util.collection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PersistentHashMapTest {
+
+    // a key with a chosen hashCode, to force collisions
+    private static class Key {
+        final String name;
+        final int hash;
+        Key (String name, int hash) { this.name = name; this.hash = hash; }
+        @Override public int hashCode() { return hash; }
+        @Override public boolean equals(Object o) { return o instanceof Key && ((Key) o).name.equals(name); }
+        @Override public String toString() { return name; }
+    }
+
+    @Test public void testAgainstHashMap () throws Exception {
+        final Random random = new Random(42);
+        final Map<Object, Integer> expected = new HashMap<>();
+        PersistentHashMap<Object, Integer> map = PersistentHashMap.empty();
+        for (int i=0; i<50000; i++) {
+            final int n = random.nextInt(5000);
+            // a third of the keys collide in groups of 10
+            final Object key = n % 3 == 0 ? new Key("k"+n, n / 30) : "k"+n;
+            if (random.nextInt(4) == 0) {
+                expected.remove(key);
+                map = map.minus(key);
+            } else {
+                expected.put(key, i);
+                map = map.plus(key, i);
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertEquals(expected, map);
+        assertEquals(map, expected);
+        assertEquals(expected.hashCode(), map.hashCode());
+        for (Map.Entry<Object, Integer> e : expected.entrySet()) assertEquals(e.getValue(), map.get(e.getKey()));
+        for (Object key : expected.keySet()) map = map.minus(key);
+        assertTrue(map.isEmpty());
+    }
+
+    @Test public void testStructuralSharing () throws Exception {
+        final PersistentHashMap<String, Object> base = MapBuilder.persistent(new Object[][] {
+                {"site", "example.com"}, {"user", "bob"}, {"locale", "en"}
+        });
+        final PersistentHashMap<String, Object> perRequest = base.plus("user", "alice");
+        assertEquals("bob", base.get("user"));
+        assertEquals("alice", perRequest.get("user"));
+        assertEquals(3, perRequest.size());
+
+        assertSame(base, base.plus("site", base.get("site")));
+        assertSame(base, base.minus("nope"));
+        assertFalse(MapUtil.deepEquals(base, perRequest));
+        assertTrue(MapUtil.deepEquals(base, perRequest.plus("user", "bob")));
+        assertEquals(MapUtil.deepHash(base), MapUtil.deepHash(perRequest.plus("user", "bob")));
+        assertEquals(MapUtil.deepHash(base), MapUtil.deepHash(base));
+
+        try {
+            base.put("x", "y");
+            fail("expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException expected) {}
+    }
+
+    @Test public void testMutableValues () throws Exception {
+        final List<String> roles = new ArrayList<>(Arrays.asList("user"));
+        final PersistentHashMap<String, Object> a = PersistentHashMap.<String, Object>empty().plus("roles", roles);
+        final PersistentHashMap<String, Object> b = PersistentHashMap.<String, Object>empty().plus("roles", new ArrayList<>(Arrays.asList("user", "admin")));
+        final int before = a.hashCode();
+        assertFalse(a.equals(b));
+
+        // the value changed after a's hash was computed: a stale hash must not make them unequal
+        roles.add("admin");
+        assertTrue(a.equals(b));
+        assertTrue(MapUtil.deepEquals(a, b));
+        assertNotEquals(before, a.hashCode());
+        assertEquals(b.hashCode(), a.hashCode());
+    }
+
+}
@@ -0,0 +1,71 @@
+package org.cobbzilla.util.collection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SketchTest {
+
+    @Test public void testBloomFilter () throws Exception {
+        final BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i=0; i<10000; i++) filter.put("item-"+i);
+        for (int i=0; i<10000; i++) assertTrue(filter.mightContain("item-"+i));
+
+        int falsePositives = 0;
+        for (int i=0; i<10000; i++) if (filter.mightContain("other-"+i)) falsePositives++;
+        assertTrue("too many false positives: "+falsePositives, falsePositives < 300);
+        assertEquals(10000, filter.getApproximateCount(), 500);
+
+        final BloomFilter copy = BloomFilter.fromJson(filter.toJson());
+        assertEquals(filter.getNumBits(), copy.getNumBits());
+        assertEquals(filter.getBits(), copy.getBits());
+        assertTrue(copy.mightContain("item-42"));
+
+        final BloomFilter other = new BloomFilter(10000, 0.01);
+        other.put("extra");
+        assertFalse(filter.mightContain("extra"));
+        filter.merge(other);
+        assertTrue(filter.mightContain("extra"));
+    }
+
+    @Test public void testCountingBloomFilter () throws Exception {
+        final CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+        for (int i=0; i<1000; i++) filter.add(i);
+        for (int i=0; i<1000; i++) assertTrue(filter.mightContain(i));
+        for (int i=0; i<500; i++) assertTrue(filter.remove(i));
+        for (int i=500; i<1000; i++) assertTrue(filter.mightContain(i));
+        int stillThere = 0;
+        for (int i=0; i<500; i++) if (filter.mightContain(i)) stillThere++;
+        assertTrue("too many removed elements still found: "+stillThere, stillThere < 50);
+
+        final CountingBloomFilter copy = CountingBloomFilter.fromJson(filter.toJson());
+        assertEquals(filter.getCounters(), copy.getCounters());
+        assertTrue(copy.mightContain(999));
+
+        final BloomFilter plain = filter.toBloomFilter();
+        for (int i=500; i<1000; i++) assertTrue(plain.mightContain(i));
+    }
+
+    @Test public void testHyperLogLog () throws Exception {
+        final HyperLogLog a = HyperLogLog.create();
+        final HyperLogLog b = HyperLogLog.create();
+        for (int i=0; i<100000; i++) {
+            a.add("user-"+i);
+            a.add("user-"+i); // duplicates don't count
+            b.add("user-"+(i + 50000));
+        }
+        assertEquals(100000, a.getCardinality(), 100000 * 0.03);
+
+        final HyperLogLog copy = HyperLogLog.fromJson(a.toJson());
+        assertEquals(a.getCardinality(), copy.getCardinality());
+        assertEquals(a.getPrecision(), copy.getPrecision());
+
+        copy.merge(b);
+        assertEquals(150000, copy.getCardinality(), 150000 * 0.03);
+
+        final HyperLogLog small = HyperLogLog.withStandardError(0.05);
+        for (int i=0; i<10; i++) small.add(i);
+        assertEquals(10, small.getCardinality(), 1);
+    }
+
+}
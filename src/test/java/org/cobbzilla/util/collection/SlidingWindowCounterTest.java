@@ -0,0 +1,151 @@
+package org.cobbzilla.util.collection;
+
+import org.cobbzilla.util.time.ClockProvider;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SlidingWindowCounterTest {
+
+    private static class TestClock implements ClockProvider {
+        volatile long time = 1_000_000;
+        @Override public long now() { return time; }
+    }
+
+    @Test public void testSlidingWindow () throws Exception {
+        final TestClock clock = new TestClock();
+        final SlidingWindowCounter<String> counter = new SlidingWindowCounter<>(1000, 10);
+        counter.setClock(clock);
+
+        assertEquals(1, counter.increment("a"));
+        assertEquals(2, counter.increment("a")); // same milli: still counted twice
+        clock.time += 500;
+        assertEquals(3, counter.increment("a"));
+        assertEquals(0, counter.count("b"));
+
+        clock.time += 600; // the first two have slid out
+        assertEquals(1, counter.count("a"));
+        assertTrue(counter.tryIncrement("a", 2));
+        assertFalse(counter.tryIncrement("a", 2));
+
+        clock.time += 5000;
+        assertEquals(0, counter.count("a"));
+        counter.cleanUp();
+        assertTrue(counter.isEmpty());
+    }
+
+    @Test public void testMaxKeys () throws Exception {
+        final TestClock clock = new TestClock();
+        final ExecutorService sweeper = Executors.newSingleThreadExecutor();
+        final AtomicInteger sweeps = new AtomicInteger();
+        final SlidingWindowCounter<Integer> counter = new SlidingWindowCounter<Integer>(60000) {
+            @Override protected Executor getSweepExecutor() {
+                return new Executor() {
+                    @Override public void execute(Runnable r) { sweeps.incrementAndGet(); sweeper.execute(r); }
+                };
+            }
+        };
+        counter.setClock(clock).setMaxKeys(1000);
+        try {
+            for (int i=0; i<10000; i++) {
+                clock.time++;
+                counter.increment(i);
+            }
+            // sweeps run in the background, and catch up
+            for (int i=0; i<500 && counter.size() > 1000; i++) Thread.sleep(10);
+            assertTrue(counter.size() <= 1000);
+            assertTrue(sweeps.get() > 0);
+            assertTrue(counter.getEvictions().get() > 0);
+            assertEquals(1, counter.count(9999)); // the most recent keys are kept
+            assertEquals(0, counter.count(0));
+        } finally {
+            sweeper.shutdownNow();
+        }
+    }
+
+    @Test public void testTokenBucket () throws Exception {
+        final TestClock clock = new TestClock();
+        final TokenBucketLimiter<String> limiter = new TokenBucketLimiter<>(5, 10);
+        limiter.setClock(clock);
+
+        for (int i=0; i<5; i++) assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+        assertEquals(100, limiter.getWaitTime("a", 1));
+
+        clock.time += 100;
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+
+        clock.time += 10000; // both buckets are full again
+        assertEquals(5, limiter.getTokens("a"), 0.0001);
+        limiter.cleanUp();
+        assertTrue(limiter.isEmpty());
+    }
+
+    @Test public void testFailedOperationCounter () throws Exception {
+        final FailedOperationCounter<String> failures = new FailedOperationCounter<String>().setExpiration(60000).setMaxFailures(3);
+        assertFalse(failures.tooManyFailures("host"));
+        for (int i=0; i<3; i++) failures.fail("host"); // all in the same milli
+        assertTrue(failures.tooManyFailures("host"));
+        assertEquals(3, failures.getFailures("host"));
+        assertEquals(3, failures.remove("host").values().iterator().next().longValue());
+        assertFalse(failures.tooManyFailures("host"));
+        assertNull(failures.remove("host"));
+    }
+
+    @Test public void testFailedOperationCounterIsStillAMap () throws Exception {
+        final FailedOperationCounter<String> failures = new FailedOperationCounter<>(60000, 2);
+        final Map<String, Map<Long, Long>> map = failures;
+        failures.fail("a");
+        failures.fail("b");
+        failures.fail("b");
+        assertEquals(2, map.size());
+        assertTrue(map.containsKey("b"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), map.keySet());
+        assertEquals(Long.valueOf(2), map.get("b").values().iterator().next());
+        assertNull(map.get("c"));
+        map.clear();
+        assertTrue(map.isEmpty());
+    }
+
+    @Test public void testChangingExpirationKeepsFailures () throws Exception {
+        final FailedOperationCounter<String> failures = new FailedOperationCounter<>(60000, 3);
+        for (int i=0; i<3; i++) failures.fail("host");
+        failures.setExpiration(TimeUnit.MINUTES.toMillis(10));
+        assertTrue(failures.tooManyFailures("host"));
+        failures.setMaxFailures(4);
+        failures.fail("host");
+        assertEquals(4, failures.getFailures("host"));
+    }
+
+    @Test public void testSweepDoesNotLoseIncrements () throws Exception {
+        final SlidingWindowCounter<Integer> counter = new SlidingWindowCounter<>(TimeUnit.HOURS.toMillis(1));
+        final int keys = 20000;
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final Thread sweeper = new Thread(new Runnable() {
+            @Override public void run() { while (!done.get()) counter.cleanUp(); }
+        });
+        sweeper.start();
+        try {
+            for (int i=0; i<keys; i++) counter.increment(i);
+        } finally {
+            done.set(true);
+            sweeper.join();
+        }
+        int total = 0;
+        for (int i=0; i<keys; i++) total += counter.count(i);
+        assertEquals(keys, total);
+    }
+
+}
@@ -0,0 +1,123 @@
+package org.cobbzilla.util.collection.mappy;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares MappySet with the previous Mappy implementation (a map-wide lock for writers, and a get-then-put
+ * in getAll that added an empty collection on every miss), with several threads writing to and reading from
+ * a shared instance.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.cobbzilla.util.collection.mappy.MappyBenchmark
+ */
+@BenchmarkMode(Mode.Throughput) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=1) @Measurement(iterations=5, time=1) @Fork(1) @Threads(8)
+public class MappyBenchmark {
+
+    public static final int KEYS = 1024;
+    public static final int VALUES = 16;
+
+    @State(Scope.Benchmark)
+    public static class Maps {
+        final MappySet<Integer, Integer> mappy = new MappySet<>();
+        final LegacyMappySet<Integer, Integer> legacy = new LegacyMappySet<>();
+        final MappySet<Integer, Integer> full = new MappySet<>();
+        FrozenMappy<Integer, Integer> frozen;
+        @Setup(Level.Iteration) public void setup () {
+            mappy.clear();
+            legacy.clear();
+            for (int i=0; i<KEYS; i+=2) { mappy.put(i, i); legacy.put(i, i); }
+            full.clear();
+            for (int i=0; i<KEYS * VALUES; i++) full.put(i % KEYS, i);
+            frozen = full.freeze();
+        }
+    }
+
+    private static int randomKey () { return ThreadLocalRandom.current().nextInt(KEYS); }
+    private static int randomValue () { return ThreadLocalRandom.current().nextInt(VALUES); }
+
+    @Benchmark public Integer put_mappy (Maps m)  { return m.mappy.put(randomKey(), randomValue()); }
+    @Benchmark public Integer put_legacy (Maps m) { return m.legacy.put(randomKey(), randomValue()); }
+
+    // half of the keys are missing: the legacy implementation allocates (and keeps) a collection for each of them
+    @Benchmark public Integer get_mappy (Maps m)  { return m.mappy.get(randomKey()); }
+    @Benchmark public Integer get_legacy (Maps m) { return m.legacy.get(randomKey()); }
+
+    @Benchmark @Group("mixed_mappy") @GroupThreads(6) public Integer mixed_mappy_get (Maps m) { return m.mappy.get(randomKey()); }
+    @Benchmark @Group("mixed_mappy") @GroupThreads(2) public Integer mixed_mappy_put (Maps m) { return m.mappy.put(randomKey(), randomValue()); }
+
+    @Benchmark @Group("mixed_legacy") @GroupThreads(6) public Integer mixed_legacy_get (Maps m) { return m.legacy.get(randomKey()); }
+    @Benchmark @Group("mixed_legacy") @GroupThreads(2) public Integer mixed_legacy_put (Maps m) { return m.legacy.put(randomKey(), randomValue()); }
+
+    // reading a snapshot: random lookups, and a full scan
+    @Benchmark public Integer get_frozen (Maps m) { return m.frozen.get(randomKey()); }
+    @Benchmark public long scan_frozen (Maps m) {
+        long sum = 0;
+        for (Integer v : m.frozen.flatten()) sum += v;
+        return sum;
+    }
+    @Benchmark public long scan_mappy (Maps m) {
+        long sum = 0;
+        for (Set<Integer> values : m.full.allValues()) {
+            synchronized (values) { for (Integer v : values) sum += v; }
+        }
+        return sum;
+    }
+
+    public static void main (String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MappyBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    /**
+     * The relevant parts of Mappy/MappySet before the switch to per-key locking, kept here as a baseline.
+     */
+    static class LegacyMappySet<K, V> {
+        private final ConcurrentHashMap<K, Set<V>> map = new ConcurrentHashMap<>();
+
+        public void clear () { map.clear(); }
+
+        public V get (K key) {
+            final Set<V> collection = getAll(key);
+            try {
+                return collection.isEmpty() ? null : collection.iterator().next();
+            } catch (ConcurrentModificationException e) {
+                // reads were not synchronized with writers, so this happens under the mixed benchmark. count it as a miss
+                return null;
+            }
+        }
+
+        public Set<V> getAll (K key) {
+            Set<V> collection = map.get(key);
+            if (collection == null) {
+                collection = new HashSet<>();
+                map.put(key, collection);
+            }
+            return collection;
+        }
+
+        public V put (K key, V value) {
+            V rval = null;
+            synchronized (map) {
+                Set<V> group = map.get(key);
+                if (group == null) {
+                    group = new HashSet<>();
+                    map.put(key, group);
+                } else {
+                    rval = group.contains(value) ? value : null;
+                }
+                group.add(value);
+            }
+            return rval;
+        }
+    }
+
+}
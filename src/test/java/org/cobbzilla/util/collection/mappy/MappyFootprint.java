@@ -0,0 +1,63 @@
+package org.cobbzilla.util.collection.mappy;
+
+import java.util.Random;
+
+import static org.cobbzilla.util.system.Sleep.sleep;
+
+/**
+ * Measures the heap used by an ID graph held in a MappyList&lt;Long, Long&gt;, a FrozenMappy, a LongMappy and a
+ * frozen LongMappy.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.cobbzilla.util.collection.mappy.MappyFootprint -Dexec.args="keys edges"
+ */
+public class MappyFootprint {
+
+    public static void main (String[] args) {
+        final int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final int edges = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+
+        long before = usedHeap();
+        MappyList<Long, Long> boxed = new MappyList<>();
+        populate(keys, edges, boxed, null);
+        final long boxedBytes = usedHeap() - before;
+
+        FrozenMappy<Long, Long> frozenBoxed = boxed.freeze();
+        boxed = null; // let it be collected before measuring the next one
+        final long frozenBoxedBytes = usedHeap() - before;
+        frozenBoxed = null;
+
+        before = usedHeap();
+        LongMappy primitive = new LongMappy(keys);
+        populate(keys, edges, null, primitive);
+        final long primitiveBytes = usedHeap() - before;
+        final long primitiveEstimate = primitive.estimateFootprint();
+
+        LongMappy.Frozen frozen = primitive.freeze();
+        primitive = null;
+        final long frozenBytes = usedHeap() - before;
+
+        System.out.println("keys="+frozen.size()+" edges="+frozen.totalSize());
+        System.out.println("MappyList<Long, Long>: "+mb(boxedBytes)+" ("+(boxedBytes/edges)+" bytes/edge)");
+        System.out.println("FrozenMappy:           "+mb(frozenBoxedBytes)+" ("+(frozenBoxedBytes/edges)+" bytes/edge)");
+        System.out.println("LongMappy:             "+mb(primitiveBytes)+" ("+(primitiveBytes/edges)+" bytes/edge), estimated "+mb(primitiveEstimate));
+        System.out.println("LongMappy.Frozen:      "+mb(frozenBytes)+" ("+(frozenBytes/edges)+" bytes/edge), estimated "+mb(frozen.estimateFootprint()));
+    }
+
+    private static void populate (int keys, int edges, MappyList<Long, Long> boxed, LongMappy primitive) {
+        final Random random = new Random(0);
+        for (int i=0; i<edges; i++) {
+            final long from = random.nextInt(keys);
+            final long to = random.nextInt(Integer.MAX_VALUE);
+            if (boxed != null) boxed.put(from, to); else primitive.put(from, to);
+        }
+    }
+
+    private static long usedHeap () {
+        final Runtime rt = Runtime.getRuntime();
+        for (int i=0; i<3; i++) { System.gc(); sleep(100); }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static String mb (long bytes) { return String.format("%.1f MB", bytes / (1024.0 * 1024.0)); }
+
+}
@@ -0,0 +1,170 @@
+package org.cobbzilla.util.collection.mappy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class MappyTest {
+
+    @Test public void testReadsDoNotCreateKeys () throws Exception {
+        final MappyList<String, Integer> mappy = new MappyList<>();
+        mappy.put("a", 1);
+        assertNull(mappy.get("b"));
+        assertNull(mappy.getIfPresent("b"));
+        assertFalse(mappy.containsKey("b"));
+        assertEquals(1, mappy.size());
+
+        assertTrue(mappy.getAll("c").isEmpty());
+        assertTrue(mappy.containsKey("c"));
+        assertEquals(Integer.valueOf(1), mappy.remove("a"));
+        assertTrue(mappy.isEmpty());
+    }
+
+    @Test public void testConcurrentWriters () throws Exception {
+        final MappyList<Integer, Integer> mappy = new MappyList<>();
+        final int threads = 8;
+        final int perThread = 5000;
+        final int keys = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> workers = new ArrayList<>();
+        for (int t=0; t<threads; t++) {
+            final int offset = t * perThread;
+            final Thread worker = new Thread(new Runnable() {
+                @Override public void run() {
+                    try { start.await(); } catch (InterruptedException e) { return; }
+                    for (int i=0; i<perThread; i++) mappy.put(i % keys, offset + i);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        // reads across keys while the writers are going
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Exception> readError = new AtomicReference<>();
+        final Thread reader = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    while (writing.get()) {
+                        mappy.flatten();
+                        mappy.values();
+                        mappy.entrySet();
+                        mappy.hashCode();
+                    }
+                } catch (Exception e) {
+                    readError.set(e);
+                }
+            }
+        });
+        reader.start();
+        start.countDown();
+        for (Thread worker : workers) worker.join();
+        writing.set(false);
+        reader.join();
+
+        assertNull("reader failed: "+readError.get(), readError.get());
+        assertEquals(keys, mappy.size());
+        assertEquals(threads * perThread, mappy.totalSize());
+    }
+
+    @Test public void testLongMappy () throws Exception {
+        final Random random = new Random(42);
+        final MappyList<Long, Long> expected = new MappyList<>();
+        final LongMappy mappy = new LongMappy();
+        for (int i=0; i<20000; i++) {
+            final long key = random.nextInt(2000) - 1000;
+            if (random.nextInt(10) == 0) {
+                final List<Long> removed = expected.getIfPresent(key);
+                assertArrayEquals(toArray(removed), mappy.remove(key));
+                expected.remove(key);
+            } else {
+                final long value = random.nextLong();
+                expected.put(key, value);
+                mappy.put(key, value);
+            }
+        }
+        mappy.putAll(5000L, new long[] {1, 2, 3});
+        expected.putAll(5000L, Arrays.asList(1L, 2L, 3L));
+
+        assertEquals(expected.size(), mappy.size());
+        assertEquals(expected.totalSize(), mappy.totalSize());
+        final LongMappy.Frozen frozen = mappy.freeze();
+        assertEquals(expected.size(), frozen.size());
+        assertEquals(expected.totalSize(), frozen.totalSize());
+        for (Long key : expected.keySet()) {
+            final long[] values = toArray(expected.getAll(key));
+            assertArrayEquals(values, mappy.getAll(key));
+            assertArrayEquals(values, frozen.getAll(key));
+            assertEquals(values[0], frozen.get(key, -1));
+        }
+        assertFalse(mappy.containsKey(-5000));
+        assertEquals(0, frozen.getAll(-5000).length);
+        assertTrue(frozen.estimateFootprint() < mappy.estimateFootprint());
+    }
+
+    @Test public void testIntMappy () throws Exception {
+        final IntMappy mappy = new IntMappy(4);
+        for (int i=0; i<1000; i++) mappy.put(i % 100, i);
+        assertEquals(100, mappy.size());
+        assertEquals(1000, mappy.totalSize());
+        assertTrue(mappy.contains(7, 907));
+        assertEquals(10, mappy.remove(7).length);
+        assertFalse(mappy.containsKey(7));
+        final IntMappy.Frozen frozen = mappy.trim().freeze();
+        assertEquals(990, frozen.totalSize());
+        assertArrayEquals(new int[] {42, 142, 242, 342, 442, 542, 642, 742, 842, 942}, frozen.getAll(42));
+        assertEquals(-1, frozen.get(7, -1));
+    }
+
+    @Test public void testFrozenValueOrder () throws Exception {
+        final MappyList<String, Integer> a = new MappyList<>();
+        final MappyList<String, Integer> b = new MappyList<>();
+        for (int i=0; i<10; i++) {
+            a.put("k", i);
+            b.put("k", 9 - i);
+        }
+        final FrozenMappy<String, Integer> frozenA = a.freeze();
+        final FrozenMappy<String, Integer> frozenB = b.freeze();
+        assertEquals(frozenA, frozenB);
+        assertEquals(frozenA.hashCode(), frozenB.hashCode());
+    }
+
+    @Test public void testFreeze () throws Exception {
+        final MappySortedSet<String, Integer> mappy = new MappySortedSet<>();
+        for (int i=0; i<1000; i++) mappy.put("key"+(i % 37), i);
+        final FrozenMappy<String, Integer> frozen = mappy.freeze();
+        assertEquals(mappy.size(), frozen.size());
+        assertEquals(mappy.totalSize(), frozen.totalSize());
+        assertEquals(mappy.totalSize(), frozen.flatten().size());
+        for (String key : mappy.keySet()) {
+            assertEquals(new ArrayList<>(mappy.getAll(key)), frozen.getAll(key));
+            assertEquals(mappy.get(key), frozen.get(key));
+        }
+        assertNull(frozen.get("nope"));
+        assertTrue(frozen.getAll("nope").isEmpty());
+        assertEquals(mappy.freeze(), frozen);
+        assertEquals(mappy.freeze().hashCode(), frozen.hashCode());
+
+        mappy.put("key0", -1);
+        assertFalse(frozen.getAll("key0").contains(-1));
+        try {
+            frozen.put("key0", -1);
+            fail("expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException expected) {}
+    }
+
+    private static long[] toArray (List<Long> list) {
+        if (list == null) return new long[0];
+        final long[] array = new long[list.size()];
+        for (int i=0; i<array.length; i++) array[i] = list.get(i);
+        return array;
+    }
+
+}
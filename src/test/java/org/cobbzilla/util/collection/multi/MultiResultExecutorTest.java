@@ -0,0 +1,101 @@
+package org.cobbzilla.util.collection.multi;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.cobbzilla.util.system.Sleep.sleep;
+import static org.junit.Assert.*;
+
+public class MultiResultExecutorTest {
+
+    public static final int STUBBORN = 999;
+
+    private static class SleepDriver extends MultiResultDriverBase {
+        @Getter @Setter private Map<String, Object> context;
+        @Getter private final int maxConcurrent;
+        @Getter private final long timeout;
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        SleepDriver (int maxConcurrent, long timeout) { this.maxConcurrent = maxConcurrent; this.timeout = timeout; }
+
+        @Override protected String successMessage(Object task) { return "ok-"+task; }
+        @Override protected String failureMessage(Object task) { return "fail-"+task; }
+
+        @Override protected void run(Object task) throws Exception {
+            final int now = running.incrementAndGet();
+            int max;
+            while (now > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, now)) {}
+            try {
+                final int millis = (Integer) task;
+                if (millis < 0) throw new IllegalArgumentException("negative sleep");
+                if (millis == STUBBORN) {
+                    // ignores interrupts, and finishes well after timing out
+                    final long end = System.currentTimeMillis() + 500;
+                    while (System.currentTimeMillis() < end) {
+                        try { Thread.sleep(10); } catch (InterruptedException ignored) {}
+                    }
+                    return;
+                }
+                Thread.sleep(millis);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    @Test public void testConcurrencyAndResults () throws Exception {
+        final SleepDriver driver = new SleepDriver(4, 0);
+        final List<Integer> tasks = new ArrayList<>();
+        for (int i=0; i<40; i++) tasks.add(i == 7 ? -1 : 10);
+
+        final MultiResultExecutor executor = new MultiResultExecutor(driver);
+        final MultiResult result = executor.run(tasks);
+        assertEquals(39, result.successCount());
+        assertEquals(1, result.failCount());
+        assertTrue(result.failures.containsKey("fail--1"));
+        assertTrue("ran more than 4 at once: "+driver.maxRunning.get(), driver.maxRunning.get() <= 4);
+        assertEquals(40, executor.getCompleted().get());
+        assertEquals(40, executor.getLatency().getCount());
+        assertTrue(executor.getThroughput() > 0);
+    }
+
+    @Test public void testTimeout () throws Exception {
+        final SleepDriver driver = new SleepDriver(2, 200);
+        final List<Integer> tasks = new ArrayList<>();
+        tasks.add(10);
+        tasks.add(10000);
+        tasks.add(10);
+
+        final MultiResultExecutor executor = new MultiResultExecutor(driver);
+        final long start = System.currentTimeMillis();
+        final MultiResult result = executor.run(tasks);
+        assertTrue("took too long", System.currentTimeMillis() - start < 5000);
+        assertEquals(2, result.successCount());
+        assertTrue(result.hasFailures());
+        assertEquals(1, executor.getTimedOut().get());
+    }
+
+    @Test public void testLateResultIsDropped () throws Exception {
+        final SleepDriver driver = new SleepDriver(2, 100);
+        final List<Integer> tasks = new ArrayList<>();
+        tasks.add(STUBBORN);
+        tasks.add(10);
+
+        final MultiResult result = new MultiResultExecutor(driver).run(tasks);
+        assertEquals(1, result.successCount());
+        assertEquals(1, result.failCount());
+        assertTrue(result.failures.containsKey("fail-"+STUBBORN)); // recorded by the timeout, as any failure would be
+
+        sleep(800); // the stubborn task finishes: its success must not be recorded
+        assertEquals(1, result.successCount());
+        assertFalse(result.successes.contains("ok-"+STUBBORN));
+    }
+
+}
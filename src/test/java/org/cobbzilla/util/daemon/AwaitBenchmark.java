@@ -0,0 +1,97 @@
+package org.cobbzilla.util.daemon;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+import static org.cobbzilla.util.system.Sleep.sleep;
+
+/**
+ * Measures how long Await.awaitFirst takes to return when one of several futures completes after 1ms, compared
+ * with its previous polling implementation. The difference is the latency the waiting itself adds.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.cobbzilla.util.daemon.AwaitBenchmark
+ */
+@BenchmarkMode(Mode.SampleTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=2, time=2) @Measurement(iterations=3, time=2) @Fork(1)
+public class AwaitBenchmark {
+
+    public static final int FUTURES = 8;
+    public static final long TIMEOUT = 10000;
+
+    @State(Scope.Benchmark)
+    public static class Scheduler {
+        ScheduledExecutorService scheduler;
+        @Setup public void setup () { scheduler = Executors.newScheduledThreadPool(2, DaemonThreadFactory.instance); }
+        @TearDown public void tearDown () { scheduler.shutdownNow(); }
+
+        // one future completes after 1ms, the rest after the timeout (and are cancelled when we are done)
+        List<Future<String>> futures () {
+            final List<Future<String>> futures = new ArrayList<>();
+            for (int i=0; i<FUTURES; i++) {
+                final String value = "result-"+i;
+                futures.add(scheduler.schedule(new Callable<String>() {
+                    @Override public String call() { return value; }
+                }, i == FUTURES / 2 ? 1 : TIMEOUT, TimeUnit.MILLISECONDS));
+            }
+            return futures;
+        }
+    }
+
+    private static String cancelAll (List<Future<String>> futures, String result) {
+        for (Future<String> f : futures) f.cancel(false);
+        return result;
+    }
+
+    @Benchmark public String awaitFirst (Scheduler s) throws Exception {
+        final List<Future<String>> futures = s.futures();
+        return cancelAll(futures, Await.awaitFirst(futures, TIMEOUT));
+    }
+
+    @Benchmark public String awaitFirst_legacy (Scheduler s) throws Exception {
+        final List<Future<String>> futures = s.futures();
+        return cancelAll(futures, LegacyAwait.awaitFirst(futures, TIMEOUT, Await.DEFAULT_AWAIT_RETRY_SLEEP, Await.DEFAULT_AWAIT_GET_SLEEP));
+    }
+
+    // the polling implementation Await used to have
+    static class LegacyAwait {
+        public static <E> E awaitFirst(Collection<Future<E>> futures, long timeout, long retrySleep, long getSleep) throws TimeoutException {
+            long start = now();
+            while (!futures.isEmpty() && now() - start < timeout) {
+                for (Iterator<Future<E>> iter = futures.iterator(); iter.hasNext(); ) {
+                    Future<E> future = iter.next();
+                    try {
+                        final E value = future.get(getSleep, TimeUnit.MILLISECONDS);
+                        if (value != null) return value;
+                        iter.remove();
+                        if (futures.isEmpty()) break;
+
+                    } catch (InterruptedException e) {
+                        die("await: interrupted: " + e);
+                    } catch (ExecutionException e) {
+                        die("await: execution error: " + e);
+                    } catch (TimeoutException e) {
+                        // noop
+                    }
+                    sleep(retrySleep);
+                }
+            }
+            if (now() - start > timeout) throw new TimeoutException("await: timed out");
+            return null;
+        }
+    }
+
+    public static void main (String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AwaitBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
@@ -0,0 +1,116 @@
+package org.cobbzilla.util.daemon;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AwaitTest {
+
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4, DaemonThreadFactory.instance);
+
+    @AfterClass public static void shutdown () { scheduler.shutdownNow(); }
+
+    private static <T> Future<T> later (final T value, long millis) {
+        return scheduler.schedule(new Callable<T>() { @Override public T call() { return value; } }, millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Test public void testAwaitFirst () throws Exception {
+        final List<Future<String>> futures = new ArrayList<>();
+        futures.add(later("slow", 10000));
+        futures.add(later((String) null, 5));
+        futures.add(later("fast", 50));
+
+        final long start = System.currentTimeMillis();
+        assertEquals("fast", Await.awaitFirst(futures, 5000));
+        assertTrue("took too long", System.currentTimeMillis() - start < 1000);
+        assertEquals(2, futures.size()); // the null result was removed
+
+        final List<Future<String>> nulls = new ArrayList<>();
+        nulls.add(later((String) null, 5));
+        nulls.add(later((String) null, 10));
+        assertNull(Await.awaitFirst(nulls, 5000));
+        assertTrue(nulls.isEmpty());
+
+        try {
+            Await.awaitFirst(new ArrayList<>(Arrays.asList(later("never", 10000))), 100);
+            fail("expected TimeoutException");
+        } catch (TimeoutException expected) {}
+    }
+
+    @Test public void testNoTimeout () throws Exception {
+        final List<Future<String>> futures = new ArrayList<>();
+        futures.add(later("done", 50));
+        assertEquals("done", Await.awaitFirst(futures, Long.MAX_VALUE));
+    }
+
+    // never runs, counts how often it is checked
+    private static class NeverDone extends FutureTask<String> {
+        final AtomicInteger checks = new AtomicInteger();
+        NeverDone () { super(new Callable<String>() { @Override public String call() { return "never"; } }); }
+        @Override public boolean isDone() { checks.incrementAndGet(); return super.isDone(); }
+    }
+
+    @Test public void testManyPlainFuturesShareOneThread () throws Exception {
+        final int before = Thread.activeCount();
+        final List<Future<String>> futures = new ArrayList<>();
+        for (int i=0; i<2000; i++) futures.add(new NeverDone());
+        futures.add(later("fast", 200));
+        final long start = System.currentTimeMillis();
+        assertEquals("fast", Await.awaitFirst(futures, 60000));
+        assertTrue("took too long", System.currentTimeMillis() - start < 2000);
+        assertTrue("too many threads: "+Thread.activeCount(), Thread.activeCount() - before < 10);
+    }
+
+    @Test public void testWatchStopsOnReturn () throws Exception {
+        final NeverDone never = new NeverDone();
+        final List<Future<String>> futures = new ArrayList<>();
+        futures.add(never);
+        futures.add(later("fast", 10));
+        assertEquals("fast", Await.awaitFirst(futures, 60000));
+        Thread.sleep(50);
+        final int checks = never.checks.get();
+        Thread.sleep(100);
+        assertEquals("still watched after return", checks, never.checks.get());
+    }
+
+    @Test public void testAwaitAndCollect () throws Exception {
+        final SettableFuture<List> listenable = SettableFuture.create();
+        final List<Future<List>> futures = new ArrayList<>();
+        futures.add(later((List) Arrays.asList(1, 2), 20));
+        futures.add(listenable);
+        futures.add(later((List) Arrays.asList(5), 10000));
+        listenable.set(Arrays.asList(3, 4));
+
+        final List results = Await.awaitAndCollect(futures, 4, 5000);
+        assertEquals(4, results.size());
+        assertEquals(1, futures.size());
+
+        futures.add(later((List) Arrays.asList(6), 10));
+        assertEquals(1, Await.awaitAndCollectSet(futures, 1, 5000).size());
+        assertEquals(1, futures.size()); // the slow one is still running
+    }
+
+    @Test public void testAwaitAll () throws Exception {
+        final List<Future<?>> futures = new ArrayList<>();
+        futures.add(later("slow", 10000));
+        futures.add(later("ok", 10));
+        futures.add(scheduler.submit(new Callable<Object>() {
+            @Override public Object call() { throw new IllegalStateException("boom"); }
+        }));
+
+        final AwaitResult<Object> result = Await.awaitAll(futures, 300);
+        assertEquals(1, result.numSuccesses());
+        assertEquals(1, result.numFails());
+        assertEquals(1, result.numTimeouts());
+        assertSame(futures.get(0), result.getTimeouts().get(0));
+    }
+
+}
@@ -0,0 +1,119 @@
+package org.cobbzilla.util.daemon;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SimpleDaemonTest {
+
+    private static class CountingDaemon extends SimpleDaemon {
+        private final DaemonScheduleMode mode;
+        private final long sleepTime;
+        private final long processTime;
+        final AtomicInteger starts = new AtomicInteger();
+        final AtomicInteger inits = new AtomicInteger();
+        final AtomicInteger stops = new AtomicInteger();
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        volatile boolean overlapped = false;
+        ExecutorService executor = null;
+
+        CountingDaemon (DaemonScheduleMode mode, long sleepTime, long processTime) {
+            this.mode = mode;
+            this.sleepTime = sleepTime;
+            this.processTime = processTime;
+        }
+
+        @Override protected DaemonScheduleMode getScheduleMode() { return mode; }
+        @Override protected long getJitter() { return mode == DaemonScheduleMode.thread ? 0 : 5; }
+        @Override protected long getSleepTime() { return sleepTime; }
+        @Override protected ExecutorService getExecutor() { return executor != null ? executor : super.getExecutor(); }
+        @Override public void onStart() { starts.incrementAndGet(); }
+        @Override protected void init() { inits.incrementAndGet(); }
+        @Override public void onStop() { stops.incrementAndGet(); }
+
+        @Override protected void process() {
+            if (running.incrementAndGet() > 1) overlapped = true;
+            try {
+                Thread.sleep(processTime);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("interrupted");
+            } finally {
+                running.decrementAndGet();
+                runs.incrementAndGet();
+            }
+        }
+    }
+
+    private static void runFor (CountingDaemon daemon, long millis) throws Exception {
+        daemon.start();
+        Thread.sleep(millis);
+        daemon.stop();
+        final long start = System.currentTimeMillis();
+        while (daemon.getIsAlive() && System.currentTimeMillis() - start < 5000) Thread.sleep(10);
+        assertFalse(daemon.getIsAlive());
+        assertEquals(1, daemon.starts.get());
+        assertEquals(1, daemon.inits.get());
+        assertEquals(1, daemon.stops.get());
+        assertFalse(daemon.overlapped);
+        assertEquals(daemon.runs.get(), daemon.getProcessTimes().getCount());
+    }
+
+    @Test public void testThreadMode () throws Exception {
+        final CountingDaemon daemon = new CountingDaemon(DaemonScheduleMode.thread, 20, 1);
+        runFor(daemon, 300);
+        assertTrue(daemon.runs.get() > 3);
+    }
+
+    @Test public void testFixedDelay () throws Exception {
+        final CountingDaemon daemon = new CountingDaemon(DaemonScheduleMode.fixed_delay, 20, 1);
+        runFor(daemon, 300);
+        assertTrue(daemon.runs.get() > 3);
+        assertEquals(0, daemon.getSkippedRuns().get());
+    }
+
+    @Test public void testFixedRateSkipsOverlappingRuns () throws Exception {
+        // due every 20ms, but each run takes 100ms
+        final CountingDaemon daemon = new CountingDaemon(DaemonScheduleMode.fixed_rate, 20, 100);
+        runFor(daemon, 500);
+        assertTrue(daemon.runs.get() >= 2);
+        assertTrue(daemon.runs.get() <= 7);
+        assertTrue(daemon.getSkippedRuns().get() > 5);
+    }
+
+    @Test public void testManyIdleDaemonsShareThreads () throws Exception {
+        // a daemon that held a thread while idle would starve the rest of this small pool
+        final int poolSize = 4;
+        final ThreadPoolExecutor workers = (ThreadPoolExecutor) Executors.newFixedThreadPool(poolSize, DaemonThreadFactory.instance);
+        try {
+            final CountingDaemon[] daemons = new CountingDaemon[200];
+            for (int i=0; i<daemons.length; i++) {
+                daemons[i] = new CountingDaemon(DaemonScheduleMode.fixed_delay, 60000, 0);
+                daemons[i].executor = workers;
+                daemons[i].start();
+            }
+            final long start = System.currentTimeMillis();
+            // each daemon runs onStart, then its first run, on the pool
+            while ((workers.getCompletedTaskCount() < 2 * daemons.length || workers.getActiveCount() > 0)
+                    && System.currentTimeMillis() - start < 5000) {
+                Thread.sleep(10);
+            }
+            assertEquals(poolSize, workers.getLargestPoolSize());
+            assertEquals(0, workers.getActiveCount());
+            for (CountingDaemon d : daemons) {
+                assertEquals(1, d.runs.get());
+                d.stop();
+                assertFalse(d.getIsAlive());
+                assertEquals(1, d.stops.get());
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.cobbzilla.util.daemon;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class TaskScopeTest {
+
+    private static Callable<Integer> sleepThenReturn (final long millis, final int value) {
+        return new Callable<Integer>() {
+            @Override public Integer call() throws Exception {
+                Thread.sleep(millis);
+                if (value < 0) throw new IllegalArgumentException("negative");
+                return value;
+            }
+        };
+    }
+
+    @Test public void testJoinAndClose () throws Exception {
+        final Future<Integer> slow;
+        try (TaskScope<Integer> scope = new TaskScope<>()) {
+            for (int i=0; i<100; i++) scope.fork(sleepThenReturn(20, i));
+            slow = scope.fork(sleepThenReturn(60000, 0));
+            final AwaitResult<Integer> result = scope.join(2000);
+            assertEquals(100, result.numSuccesses());
+            assertEquals(1, result.numTimeouts());
+            assertFalse(slow.isDone());
+        }
+        assertTrue(slow.isCancelled());
+    }
+
+    // sleeps for millis, ignoring interrupts
+    private static Callable<Integer> stubborn (final long millis, final CountDownLatch started, final AtomicBoolean finished) {
+        return new Callable<Integer>() {
+            @Override public Integer call() {
+                started.countDown();
+                final long end = System.currentTimeMillis() + millis;
+                long left;
+                while ((left = end - System.currentTimeMillis()) > 0) {
+                    try { Thread.sleep(left); } catch (InterruptedException ignored) {}
+                }
+                finished.set(true);
+                return 0;
+            }
+        };
+    }
+
+    @Test public void testCloseJoinsThreads () throws Exception {
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final CountDownLatch started = new CountDownLatch(1);
+        try (TaskScope<Integer> scope = new TaskScope<>()) {
+            scope.fork(stubborn(300, started, finished));
+            started.await();
+        }
+        assertTrue("task outlived its scope", finished.get());
+
+        final AtomicBoolean tooSlow = new AtomicBoolean(false);
+        final long start = System.currentTimeMillis();
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        try (TaskScope<Integer> scope = new TaskScope<>()) {
+            scope.setCloseTimeout(100);
+            scope.fork(stubborn(5000, slowStarted, tooSlow));
+            slowStarted.await();
+        }
+        assertTrue("close waited past closeTimeout", System.currentTimeMillis() - start < 2000);
+        assertFalse(tooSlow.get());
+    }
+
+    @Test public void testFailFast () throws Exception {
+        try (TaskScope<Integer> scope = new TaskScope<>(true)) {
+            final Future<Integer> slow = scope.fork(sleepThenReturn(60000, 1));
+            scope.fork(sleepThenReturn(10, -1));
+            final AwaitResult<Integer> result = scope.join(5000);
+            assertEquals(2, result.numFails());
+            assertTrue(slow.isCancelled());
+        }
+    }
+
+    @Test public void testJoinFirst () throws Exception {
+        try (TaskScope<Integer> scope = new TaskScope<>()) {
+            scope.fork(sleepThenReturn(60000, 1));
+            scope.fork(sleepThenReturn(10, 2));
+            assertEquals(2, scope.joinFirst(5000).intValue());
+        }
+    }
+
+    @Test public void testVirtualThreads () throws Exception {
+        assumeTrue(DaemonThreadFactory.virtualThreadsSupported());
+        DaemonThreadFactory.setUseVirtualThreads(true);
+        try (TaskScope<Integer> scope = new TaskScope<>()) {
+            // far more blocked tasks than we would want platform threads for
+            for (int i=0; i<10000; i++) scope.fork(sleepThenReturn(100, i));
+            assertEquals(10000, scope.join(30000).numSuccesses());
+        } finally {
+            DaemonThreadFactory.setUseVirtualThreads(false);
+        }
+    }
+
+}
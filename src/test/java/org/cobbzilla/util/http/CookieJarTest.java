@@ -0,0 +1,55 @@
+package org.cobbzilla.util.http;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CookieJarTest {
+
+    @Test public void testRequestValue () throws Exception {
+        final CookieJar jar = new CookieJar(new HttpCookieBean("a", "1"));
+        assertEquals("a=1", jar.getRequestValue());
+        assertSame(jar.getRequestValue(), jar.getRequestValue()); // cached
+
+        jar.add(new HttpCookieBean("B", "2"));
+        assertTrue(jar.getRequestValue().contains("B=2"));
+        jar.add(new HttpCookieBean("b", "3"));
+        assertTrue(jar.getRequestValue().contains("b=3"));
+        assertFalse(jar.getRequestValue().contains("=2"));
+
+        jar.remove("A");
+        assertEquals("b=3", jar.getRequestValue());
+
+        for (Iterator<HttpCookieBean> iter = jar.values().iterator(); iter.hasNext(); ) {
+            iter.next();
+            iter.remove();
+        }
+        assertEquals("", jar.getRequestValue());
+    }
+
+    @Test public void testConcurrentChanges () throws Exception {
+        final CookieJar jar = new CookieJar();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t=0; t<4; t++) {
+            final int thread = t;
+            threads.add(new Thread(new Runnable() {
+                @Override public void run() {
+                    for (int i=0; i<2000; i++) {
+                        jar.add(new HttpCookieBean("c"+thread, String.valueOf(i)));
+                        jar.getRequestValue();
+                    }
+                }
+            }));
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        // whatever the interleaving, the cached value must reflect the final cookies
+        final String value = jar.getRequestValue();
+        for (int t=0; t<4; t++) assertTrue(value, value.contains("c"+t+"=1999"));
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.cobbzilla.util.http;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HttpContentEncodingTest {
+
+    private HttpStubServer server;
+
+    @BeforeClass public static void noDelay () { HttpStubServer.enableNoDelay(); }
+
+    @Before public void startServer () throws Exception { server = new HttpStubServer().start(); }
+
+    @After public void stopServer () throws Exception { server.stop(); }
+
+    @Test public void testCompressedTransfer () throws Exception {
+        server.addResponse("/gz", new HttpStubResponse().setSize(10000).setCompress(true));
+        final HttpResponseBean response = HttpUtil.getResponse(new HttpRequestBean(server.url("/gz")));
+        assertNull(response.getFirstHeaderValue("Content-Encoding"));
+        assertEquals("10000", response.getFirstHeaderValue("Content-Length"));
+        assertEquals(10000, response.getContentLength());
+        assertEquals(10000, response.getEntity().length);
+        assertTrue(response.getEntityString().startsWith("abcdefghijklmnopqrstuvwxyzabc"));
+
+        final StringBuilder b = new StringBuilder();
+        for (int i=0; i<1000; i++) b.append("compress me please ");
+        final HttpRequestBean request = new HttpRequestBean(HttpMethods.POST, server.url("/echo?echo"), b.toString());
+        request.setCompressionThreshold(1024);
+        final HttpResponseBean echo = HttpUtil.getResponse(request);
+        assertEquals("gzip", server.getLastRequestHeaders().get("content-encoding"));
+        assertTrue(server.getLastRequestBody().length < b.length() / 10);
+        assertEquals(b.toString(), new String(HttpContentEncoding.gzip.decode(echo.getEntity())));
+
+        final HttpTransferStats stats = HttpTransferStats.forHost(request.getHost());
+        assertTrue(stats.getResponseBytesSaved() > 0);
+        assertTrue(stats.getRequestBytesSaved() > 0);
+    }
+
+    @Test public void testClientThatDecodes () throws Exception {
+        // the default client decodes gzip itself: we must not decode it again
+        server.addResponse("/gz", new HttpStubResponse().setSize(5000).setCompress(true));
+        try (CloseableHttpClient client = HttpClients.createDefault()) {
+            final HttpResponseBean response = HttpUtil.getResponse(new HttpRequestBean(server.url("/gz")), client);
+            assertEquals(HttpStatusCodes.OK, response.getStatus());
+            assertEquals(5000, response.getEntity().length);
+            assertTrue(response.getEntityString().startsWith("abcdefghijklmnopqrstuvwxyzabc"));
+            assertNull(response.getFirstHeaderValue("Content-Encoding"));
+        }
+    }
+
+    @Test public void testEncodeDecode () throws Exception {
+        final byte[] data = "some data some data some data".getBytes();
+        for (HttpContentEncoding e : HttpContentEncoding.values()) {
+            if (e.canEncode()) assertArrayEquals(data, e.decode(e.encode(data)));
+        }
+        assertNull(HttpContentEncoding.decode("gzip, unknown", null));
+        assertEquals(HttpContentEncoding.gzip, HttpContentEncoding.fromString(" X-GZIP"));
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.cobbzilla.util.http;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.cobbzilla.util.io.FileUtil.getDefaultTempDir;
+import static org.junit.Assert.*;
+
+public class HttpMultipartUploadTest {
+
+    private HttpStubServer server;
+
+    @BeforeClass public static void noDelay () { HttpStubServer.enableNoDelay(); }
+
+    @Before public void startServer () throws Exception { server = new HttpStubServer().start(); }
+
+    @After public void stopServer () throws Exception { server.stop(); }
+
+    @Test public void testMultipartUpload () throws Exception {
+        final File temp = File.createTempFile("upload", ".txt", getDefaultTempDir());
+        try {
+            FileUtils.writeStringToFile(temp, "file contents");
+            final List<HttpProgressMarker> progress = new ArrayList<>();
+            final HttpResponseBean response = new HttpMultipartUpload(server.url("/upload?echo"))
+                    .addFile("file1", temp)
+                    .addFile("file2", temp, "text/plain")
+                    .addText("name", "value")
+                    .setProgressInterval(1)
+                    .setCallback(new HttpProgressCallback() {
+                        @Override public void updateProgress(HttpProgressMarker marker) { progress.add(marker); }
+                    })
+                    .upload();
+            assertEquals(HttpStatusCodes.OK, response.getStatus());
+            assertEquals("chunked", server.getLastRequestHeaders().get("Transfer-Encoding"));
+            final String body = response.getEntityString();
+            assertTrue(body.contains("name=\"file1\"") && body.contains("name=\"file2\"") && body.contains("value"));
+            assertFalse(progress.isEmpty());
+            assertTrue(progress.get(progress.size()-1).isDone());
+        } finally {
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    @Test public void testStreamedResponse () throws Exception {
+        final byte[] data = new byte[100 * 1024];
+        for (int i=0; i<data.length; i++) data[i] = (byte) ('a' + i % 26);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final HttpResponseBean response = new HttpMultipartUpload(server.url("/upload?echo"))
+                .addStream("data", new ByteArrayInputStream(data), "data.bin")
+                .upload(out);
+        assertEquals(HttpStatusCodes.OK, response.getStatus());
+        assertFalse(response.hasEntity());
+        assertTrue(out.size() > data.length);
+        assertTrue(out.toString().contains("filename=\"data.bin\""));
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.cobbzilla.util.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HttpResiliencePolicyTest {
+
+    private HttpStubServer server;
+
+    @BeforeClass public static void noDelay () { HttpStubServer.enableNoDelay(); }
+
+    @Before public void startServer () throws Exception { server = new HttpStubServer().start(); }
+
+    @After public void stopServer () throws Exception { server.stop(); }
+
+    @Test public void testRetryAndCircuitBreaker () throws Exception {
+        server.addResponse("/flaky", new HttpStubResponse().setStatus(HttpStatusCodes.SERVER_UNAVAILABLE));
+        final HttpResiliencePolicy policy = new HttpResiliencePolicy()
+                .setMaxRetries(2).setBackoffBase(5).setCircuitMaxFailures(5);
+        final HttpRequestBean request = new HttpRequestBean(server.url("/flaky")).setResilience(policy);
+
+        final HttpResponseBean response = HttpUtil.getResponse(request);
+        assertEquals(HttpStatusCodes.SERVER_UNAVAILABLE, response.getStatus());
+        assertEquals(3, server.getRequestCount().get());
+
+        HttpUtil.getResponse(request);
+        assertTrue(policy.isCircuitOpen(request.getHost()));
+        final long count = server.getRequestCount().get();
+        try {
+            HttpUtil.getResponse(request);
+            fail("expected CircuitOpenException");
+        } catch (HttpResiliencePolicy.CircuitOpenException expected) {
+            assertEquals(count, server.getRequestCount().get());
+        }
+    }
+
+    @Test public void testNonIdempotentNotRetried () throws Exception {
+        server.addResponse("/flaky", new HttpStubResponse().setStatus(HttpStatusCodes.SERVER_UNAVAILABLE));
+        final HttpResiliencePolicy policy = new HttpResiliencePolicy().setMaxRetries(2).setBackoffBase(5);
+        final HttpRequestBean post = new HttpRequestBean(HttpMethods.POST, server.url("/flaky"), "data").setResilience(policy);
+
+        assertEquals(HttpStatusCodes.SERVER_UNAVAILABLE, HttpUtil.getResponse(post).getStatus());
+        assertEquals(1, server.getRequestCount().get());
+
+        policy.setRetryNonIdempotent(true);
+        HttpUtil.getResponse(post);
+        assertEquals(4, server.getRequestCount().get());
+    }
+
+    private static Callable<String> failing (final AtomicInteger calls) {
+        return new Callable<String>() {
+            @Override public String call() throws Exception {
+                calls.incrementAndGet();
+                throw new IOException("fail");
+            }
+        };
+    }
+
+    @Test public void testCircuitSettingsApplyAfterUse () throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final HttpResiliencePolicy policy = new HttpResiliencePolicy().setMaxRetries(0).setCircuitMaxFailures(100);
+        for (int i=0; i<3; i++) {
+            try { policy.execute("example.com", failing(calls), true); } catch (IOException expected) {}
+        }
+        assertFalse(policy.isCircuitOpen("example.com"));
+
+        policy.setCircuitMaxFailures(4);
+        try { policy.execute("example.com", failing(calls), true); } catch (IOException expected) {}
+        assertTrue(policy.isCircuitOpen("example.com"));
+        assertEquals(4, calls.get());
+    }
+
+    @Test public void testHedge () throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final HttpResiliencePolicy policy = new HttpResiliencePolicy().setHedge(true).setHedgeDelay(50);
+        final long start = System.currentTimeMillis();
+        final String result = policy.execute("example.com", new Callable<String>() {
+            @Override public String call() throws Exception {
+                if (calls.incrementAndGet() == 1) {
+                    Thread.sleep(10000);
+                    return "slow";
+                }
+                return "hedged";
+            }
+        }, true);
+        assertEquals("hedged", result);
+        assertEquals(2, calls.get());
+        assertTrue("took too long", System.currentTimeMillis() - start < 5000);
+    }
+
+}
@@ -0,0 +1,43 @@
+package org.cobbzilla.util.http;
+
+import org.cobbzilla.util.collection.NameAndValue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HttpResponseBeanTest {
+
+    @Test public void testResponseHeaderIndex () throws Exception {
+        final HttpResponseBean response = new HttpResponseBean();
+        response.addHeader("Set-Cookie", "a=1");
+        response.addHeader("Content-Type", "text/plain");
+        assertEquals("text/plain", response.getFirstHeaderValue("content-type"));
+        assertEquals(1, response.getHeaderValues("SET-COOKIE").size());
+
+        // added after the index was built, and not seen by an earlier result
+        final Collection<String> before = response.getHeaderValues("Set-Cookie");
+        response.addHeader("set-cookie", "b=2");
+        assertEquals(2, response.getHeaderValues("Set-Cookie").size());
+        assertEquals(1, before.size());
+        before.add("mine"); // results are the caller's own copy
+        assertEquals(2, response.getHeaderValues("Set-Cookie").size());
+        assertTrue(response.hasHeader("SET-COOKIE"));
+        assertFalse(response.hasHeader("X-Missing"));
+
+        // added straight to the list
+        response.getHeaders().add(new NameAndValue("X-Direct", "yes"));
+        assertEquals("yes", response.getFirstHeaderValue("x-direct"));
+
+        final List<NameAndValue> replaced = new ArrayList<>();
+        replaced.add(new NameAndValue("Location", "/next"));
+        response.setHeaders(replaced);
+        assertNull(response.getFirstHeaderValue("Content-Type"));
+        assertEquals("/next", response.getFirstHeaderValue("location"));
+        assertTrue(response.getHeaderValues("set-cookie").isEmpty());
+    }
+
+}
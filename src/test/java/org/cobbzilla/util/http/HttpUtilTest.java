@@ -0,0 +1,71 @@
+package org.cobbzilla.util.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class HttpUtilTest {
+
+    private HttpStubServer server;
+
+    @BeforeClass public static void noDelay () { HttpStubServer.enableNoDelay(); }
+
+    @Before public void startServer () throws Exception { server = new HttpStubServer().start(); }
+
+    @After public void stopServer () throws Exception { server.stop(); }
+
+    @Test public void testGetResponse () throws Exception {
+        server.addResponse("/data", new HttpStubResponse().setSize(1000).setChunked(true).withHeader("X-Test", "a"));
+        final HttpResponseBean response = HttpUtil.getResponse(new HttpRequestBean(server.url("/data")));
+        assertEquals(HttpStatusCodes.OK, response.getStatus());
+        assertEquals(1000, response.getEntity().length);
+        assertEquals("a", response.getFirstHeaderValue("x-test"));
+    }
+
+    @Test public void testLoadGenerator () throws Exception {
+        server.addResponse("/load", new HttpStubResponse().setSize(512));
+        final HttpLoadGenerator.Result result = new HttpLoadGenerator(new HttpRequestBean(server.url("/load")))
+                .setConcurrency(4)
+                .setRequests(200)
+                .run();
+        assertEquals(200, result.getCount());
+        assertEquals(0, result.getErrors().get());
+        assertEquals(200, result.getStatusCounts().get(HttpStatusCodes.OK).get());
+        assertEquals(200 * 512, result.getBytes().get());
+    }
+
+    @Test public void testUrl2fileDoesNotShareFailures () throws Exception {
+        server.addResponse("/missing", new HttpStubResponse().setStatus(HttpStatusCodes.NOT_FOUND).setSize(10));
+        server.addResponse("/data", new HttpStubResponse().setSize(1000));
+        for (int i=0; i<10; i++) {
+            try {
+                HttpUtil.url2file(server.url("/missing"), null, 1);
+                fail("expected FileNotFoundException");
+            } catch (FileNotFoundException expected) {}
+        }
+        final File file = HttpUtil.url2file(server.url("/data"), null, 1);
+        assertEquals(1000, file.length());
+        assertTrue(file.delete());
+    }
+
+    @Test public void testUrl2fileHedged () throws Exception {
+        server.addResponse("/slow", new HttpStubResponse().setSize(100000).setLatency(200));
+        final File dir = Files.createTempDirectory("url2file").toFile();
+        final File file = new File(dir, "out.bin");
+        final HttpResiliencePolicy policy = new HttpResiliencePolicy().setMaxRetries(0).setHedge(true).setHedgeDelay(20);
+        assertSame(file, HttpUtil.url2file(server.url("/slow"), file, policy));
+        assertEquals(100000, file.length());
+        Thread.sleep(300); // let the losing attempt finish
+        assertEquals(100000, file.length());
+        assertArrayEquals(new String[] {"out.bin"}, dir.list());
+        assertTrue(file.delete() && dir.delete());
+    }
+
+}